@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the end of ASCII whitespace, identifier and digit runs in bytes
+ * eight at a time, with SWAR arithmetic on longs. The text is read with
+ * {@link ByteBuffer#getLong(int)} in little-endian order, so the first
+ * byte of a run-ending character is the lowest set byte of a mask and
+ * {@link Long#numberOfTrailingZeros} gives its index.
+ * <p>
+ * For a byte below 0x80, adding a constant below 0x80 never carries into
+ * the next byte, and bit 7 of the sum tells whether the byte reached a
+ * bound. A byte of 0x80 or more, part of a UTF-8 sequence, ends every run,
+ * and since carries only move towards later bytes, the bytes before it are
+ * still classified right. The classes match the lexer's character table
+ * for ASCII: whitespace is 9 to 13 and 28 to 32, letters are A to Z and
+ * a to z, digits are 0 to 9.
+ */
+final class AsciiScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long CASE_BIT = 0x2020202020202020L;
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int end;
+
+    /** Scans {@code length} bytes of {@code bytes} from {@code offset}; positions count from the offset. */
+    AsciiScanner(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.offset = offset;
+        this.end = length;
+    }
+
+    int endOfWhitespace(int position) {
+        // Most runs are a single space, so look at one byte before a word
+        if (position < end && !isWhitespace(bytes.get(offset + position))) {
+            return position;
+        }
+        while (position + Long.BYTES <= end) {
+            long word = bytes.getLong(offset + position);
+            long stop = (~(inRange(word, 9, 13) | inRange(word, 28, 32)) | word) & HIGH_BITS;
+            if (stop != 0) {
+                return position + (Long.numberOfTrailingZeros(stop) >>> 3);
+            }
+            position += Long.BYTES;
+        }
+        while (position < end && isWhitespace(bytes.get(offset + position))) {
+            position++;
+        }
+        return position;
+    }
+
+    int endOfIdentifier(int position) {
+        while (position + Long.BYTES <= end) {
+            long word = bytes.getLong(offset + position);
+            long stop = (~(inRange(word | CASE_BIT, 'a', 'z') | inRange(word, '0', '9')) | word) & HIGH_BITS;
+            if (stop != 0) {
+                return position + (Long.numberOfTrailingZeros(stop) >>> 3);
+            }
+            position += Long.BYTES;
+        }
+        while (position < end) {
+            byte b = bytes.get(offset + position);
+            int lower = b | 0x20;
+            if (!(lower >= 'a' && lower <= 'z' || isDigit(b))) {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    int endOfDigits(int position) {
+        while (position + Long.BYTES <= end) {
+            long word = bytes.getLong(offset + position);
+            long stop = (~inRange(word, '0', '9') | word) & HIGH_BITS;
+            if (stop != 0) {
+                return position + (Long.numberOfTrailingZeros(stop) >>> 3);
+            }
+            position += Long.BYTES;
+        }
+        while (position < end && isDigit(bytes.get(offset + position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 9 && b <= 13 || b >= 28 && b <= 32;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Bit 7 set in each byte of the result whose value lies in [low, high]
+    private static long inRange(long word, int low, int high) {
+        long atLeastLow = word + (0x80 - low) * ONES;
+        long aboveHigh = word + (0x7F - high) * ONES;
+        return atLeastLow & ~aboveHigh & HIGH_BITS;
+    }
+}
@@ -0,0 +1,376 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Abstract syntax tree stored as a flat arena. Nodes are int indexes into
+ * parallel primitive arrays rather than objects, so building and walking a
+ * large tree touches a handful of contiguous arrays and creates no garbage.
+ * See {@link NodeKind} for the meaning of each field per node kind.
+ */
+public final class Ast {
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final NameTable names;
+    private final CharSequence sourceCode;
+    private byte[] kinds;
+    private int[] firsts;
+    private int[] seconds;
+    private int[] thirds;
+    private int[] nexts;
+    private int[] positions;
+    private long[] values;
+    private int size;
+    private int root = NONE;
+
+    public Ast(NameTable names, CharSequence sourceCode) {
+        this(names, sourceCode, INITIAL_CAPACITY);
+    }
+
+    private Ast(NameTable names, CharSequence sourceCode, int capacity) {
+        this.names = names;
+        this.sourceCode = sourceCode;
+        this.kinds = new byte[capacity];
+        this.firsts = new int[capacity];
+        this.seconds = new int[capacity];
+        this.thirds = new int[capacity];
+        this.nexts = new int[capacity];
+        this.positions = new int[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * Copies the tree, so that passes which rewrite nodes in place can run
+     * without changing this one. The source is shared; the name table is
+     * copied too, since passes may add names.
+     */
+    public Ast copy() {
+        Ast copy = new Ast(names.copy(), sourceCode, Math.max(size, 1));
+        System.arraycopy(kinds, 0, copy.kinds, 0, size);
+        System.arraycopy(firsts, 0, copy.firsts, 0, size);
+        System.arraycopy(seconds, 0, copy.seconds, 0, size);
+        System.arraycopy(thirds, 0, copy.thirds, 0, size);
+        System.arraycopy(nexts, 0, copy.nexts, 0, size);
+        System.arraycopy(positions, 0, copy.positions, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        copy.root = root;
+        return copy;
+    }
+
+    /**
+     * The same tree over another copy of its source text. The node columns
+     * and names are shared, so neither tree may be changed afterwards; use
+     * {@link #copy} on one that a pass will rewrite.
+     */
+    Ast withSource(CharSequence sourceCode) {
+        Ast view = new Ast(names, sourceCode, 0);
+        view.kinds = kinds;
+        view.firsts = firsts;
+        view.seconds = seconds;
+        view.thirds = thirds;
+        view.nexts = nexts;
+        view.positions = positions;
+        view.values = values;
+        view.size = size;
+        view.root = root;
+        return view;
+    }
+
+    /**
+     * Writes the node columns, the long values starting at a multiple of
+     * eight bytes, in the layout of {@link SyntaxImage}. The size and root
+     * are left to the caller.
+     */
+    void write(ByteBuffer out) {
+        out.put(kinds, 0, size);
+        BinaryArrays.pad(out);
+        BinaryArrays.putInts(out, firsts, size);
+        BinaryArrays.putInts(out, seconds, size);
+        BinaryArrays.putInts(out, thirds, size);
+        BinaryArrays.putInts(out, nexts, size);
+        BinaryArrays.putInts(out, positions, size);
+        BinaryArrays.pad(out);
+        BinaryArrays.putLongs(out, values, size);
+    }
+
+    /** Reads {@code size} nodes in the form {@link #write} produces. */
+    static Ast read(ByteBuffer in, int size, int root, NameTable names, CharSequence sourceCode) {
+        int capacity = Math.max(size, 1);
+        Ast ast = new Ast(names, sourceCode, capacity);
+        in.get(ast.kinds, 0, size);
+        in.position(in.position() + BinaryArrays.aligned(size) - size);
+        ast.firsts = BinaryArrays.getInts(in, size, capacity);
+        ast.seconds = BinaryArrays.getInts(in, size, capacity);
+        ast.thirds = BinaryArrays.getInts(in, size, capacity);
+        ast.nexts = BinaryArrays.getInts(in, size, capacity);
+        ast.positions = BinaryArrays.getInts(in, size, capacity);
+        in.position(BinaryArrays.aligned(in.position()));
+        ast.values = BinaryArrays.getLongs(in, size, capacity);
+        ast.size = size;
+        ast.root = root;
+        return ast;
+    }
+
+    public int add(NodeKind kind, int position, int first, int second, int third) {
+        return add(kind, position, first, second, third, 0);
+    }
+
+    public int add(NodeKind kind, int position, int first, int second, int third, long value) {
+        if (size == kinds.length) {
+            grow();
+        }
+        int node = size++;
+        kinds[node] = (byte) kind.ordinal();
+        firsts[node] = first;
+        seconds[node] = second;
+        thirds[node] = third;
+        nexts[node] = NONE;
+        positions[node] = position;
+        values[node] = value;
+        return node;
+    }
+
+    private void grow() {
+        int capacity = Math.max(kinds.length * 2, INITIAL_CAPACITY);
+        kinds = Arrays.copyOf(kinds, capacity);
+        firsts = Arrays.copyOf(firsts, capacity);
+        seconds = Arrays.copyOf(seconds, capacity);
+        thirds = Arrays.copyOf(thirds, capacity);
+        nexts = Arrays.copyOf(nexts, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int root() {
+        return root;
+    }
+
+    public void setRoot(int root) {
+        this.root = root;
+    }
+
+    public NameTable names() {
+        return names;
+    }
+
+    public CharSequence sourceCode() {
+        return sourceCode;
+    }
+
+    public NodeKind kind(int node) {
+        return NodeKind.of(kinds[node]);
+    }
+
+    public int first(int node) {
+        return firsts[node];
+    }
+
+    public int second(int node) {
+        return seconds[node];
+    }
+
+    public int third(int node) {
+        return thirds[node];
+    }
+
+    public int next(int node) {
+        return nexts[node];
+    }
+
+    public int position(int node) {
+        return positions[node];
+    }
+
+    public long value(int node) {
+        return values[node];
+    }
+
+    public double floatValue(int node) {
+        return Double.longBitsToDouble(values[node]);
+    }
+
+    public TokenType operator(int node) {
+        return TokenType.of(thirds[node]);
+    }
+
+    public String name(int node) {
+        return names.name(firsts[node]);
+    }
+
+    public void setKind(int node, NodeKind kind) {
+        kinds[node] = (byte) kind.ordinal();
+    }
+
+    public void setFirst(int node, int first) {
+        firsts[node] = first;
+    }
+
+    public void setSecond(int node, int second) {
+        seconds[node] = second;
+    }
+
+    public void setThird(int node, int third) {
+        thirds[node] = third;
+    }
+
+    public void setNext(int node, int next) {
+        nexts[node] = next;
+    }
+
+    public void setValue(int node, long value) {
+        values[node] = value;
+    }
+
+    /**
+     * Moves every source offset at or after {@code offset} by {@code delta},
+     * after text has been inserted or removed in front of it. The program
+     * node stays at the start of the file.
+     */
+    public void shiftPositions(int offset, int delta) {
+        for (int node = 0; node < size; node++) {
+            if (positions[node] >= offset && kinds[node] != NodeKind.PROGRAM.ordinal()) {
+                positions[node] += delta;
+                if (kinds[node] == NodeKind.STRING_LITERAL.ordinal()) {
+                    firsts[node] += delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * Nodes of the subtree rooted at {@code node}, each one after every node
+     * below it and children in the order {@link #format} lists them, so an
+     * expression comes out in the order it is evaluated. Walks with its own stack, so passes can
+     * visit trees of any depth without recursing.
+     */
+    public int[] postOrder(int node) {
+        // A pre-order that takes the last child first, reversed
+        int[] order = new int[16];
+        int count = 0;
+        int[] pending = new int[16];
+        int size = 0;
+        if (node != NONE) {
+            pending[size++] = node;
+        }
+        while (size > 0) {
+            int current = pending[--size];
+            if (count == order.length) {
+                order = Arrays.copyOf(order, count * 2);
+            }
+            order[count++] = current;
+            for (int child = 0; child < 4; child++) {
+                int first = child(current, child);
+                boolean list = isList(current, child);
+                for (int element = first; element != NONE; element = list ? nexts[element] : NONE) {
+                    if (size == pending.length) {
+                        pending = Arrays.copyOf(pending, size * 2);
+                    }
+                    pending[size++] = element;
+                }
+            }
+        }
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return Arrays.copyOf(order, count);
+    }
+
+    /** Number of nodes in the subtree rooted at {@code node}. */
+    public int count(int node) {
+        return postOrder(node).length;
+    }
+
+    // The children of a node by position, a for loop's update before its body, or NONE
+    private int child(int node, int index) {
+        return switch (kind(node)) {
+            case PROGRAM, BLOCK -> index == 0 ? firsts[node] : NONE;
+            case VAR_DECL, ARRAY_DECL -> index == 0 ? thirds[node] : NONE;
+            case FUNC, ASSIGN, INDEX -> index == 0 ? seconds[node] : NONE;
+            case ARRAY_ASSIGN -> index == 0 ? seconds[node] : index == 1 ? thirds[node] : NONE;
+            case IF -> index == 0 ? firsts[node] : index == 1 ? seconds[node] : index == 2 ? thirds[node] : NONE;
+            case FOR -> switch (index) {
+                case 0 -> firsts[node];
+                case 1 -> seconds[node];
+                case 2 -> (int) values[node];
+                default -> thirds[node];
+            };
+            case BINARY -> index == 0 ? firsts[node] : index == 1 ? seconds[node] : NONE;
+            case UNARY -> index == 0 ? firsts[node] : NONE;
+            default -> NONE;
+        };
+    }
+
+    // Whether that child starts a list chained through the next links
+    private boolean isList(int node, int index) {
+        NodeKind kind = kind(node);
+        return index == 0 && (kind == NodeKind.PROGRAM || kind == NodeKind.BLOCK || kind == NodeKind.ARRAY_DECL);
+    }
+
+    /**
+     * Renders the subtree rooted at {@code node} as an indented outline, one
+     * node per line. Intended for debugging output.
+     */
+    public String format(int node) {
+        StringBuilder out = new StringBuilder();
+        // Nodes still to print, last child on top, each with its depth
+        int[] pending = new int[16];
+        int[] depths = new int[16];
+        int size = 0;
+        if (node != NONE) {
+            pending[size] = node;
+            depths[size++] = 0;
+        }
+        int[] children = new int[16];
+        while (size > 0) {
+            int current = pending[--size];
+            int depth = depths[size];
+            formatNode(current, depth, out);
+            int count = 0;
+            for (int child = 0; child < 4; child++) {
+                boolean list = isList(current, child);
+                for (int element = child(current, child); element != NONE; element = list ? nexts[element] : NONE) {
+                    if (count == children.length) {
+                        children = Arrays.copyOf(children, count * 2);
+                    }
+                    children[count++] = element;
+                }
+            }
+            if (size + count > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, size + count));
+                depths = Arrays.copyOf(depths, pending.length);
+            }
+            while (count > 0) {
+                pending[size] = children[--count];
+                depths[size++] = depth + 1;
+            }
+        }
+        return out.toString();
+    }
+
+    private void formatNode(int node, int depth, StringBuilder out) {
+        out.append("  ".repeat(depth)).append(kind(node));
+        switch (kind(node)) {
+            case VAR_DECL -> out.append(' ').append(name(node)).append(' ').append(TokenType.of(seconds[node]));
+            case ARRAY_DECL -> out.append(' ').append(name(node)).append(" [").append(values[node]).append(']');
+            case FUNC, ASSIGN, ARRAY_ASSIGN, INCREMENT, DECREMENT, NAME, INDEX, NEW ->
+                    out.append(' ').append(name(node));
+            case INT_LITERAL -> out.append(' ').append(values[node]);
+            case BOOL_LITERAL -> out.append(' ').append(values[node] != 0);
+            case FLOAT_LITERAL -> out.append(' ').append(floatValue(node));
+            case STRING_LITERAL -> out.append(" \"")
+                    .append(sourceCode.subSequence(firsts[node], firsts[node] + seconds[node]).toString()).append('"');
+            case BINARY, UNARY -> out.append(' ').append(operator(node));
+            default -> {
+            }
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Throughput, allocation and scaling benchmarks for the front end, run on
+ * programs from {@link ProgramGenerator} at sizes from 1 KB up to a limit.
+ * Each program is read through {@link SourceFile#decode} over its UTF-8
+ * bytes, as a loaded file is, so lexing takes the byte scanner's path.
+ * <p>
+ * Each measurement is warmed up until the JIT has settled, then timed over
+ * several samples of at least {@link #SAMPLE_NANOS}; the median sample is
+ * reported. Allocation is the calling thread's allocated bytes per
+ * operation. Results can be saved as CSV and later compared against, so a
+ * throughput regression beyond {@link #REGRESSION_TOLERANCE} fails the run.
+ */
+public final class Benchmarks {
+    private static final long SAMPLE_NANOS = 200_000_000L;
+    private static final int WARMUP_SAMPLES = 3;
+    private static final int SAMPLES = 5;
+    private static final double REGRESSION_TOLERANCE = 0.10;
+    private static final long SEED = 42;
+    private static final int[] SIZES = {
+            1 << 10, 10 << 10, 100 << 10, 1 << 20, 10 << 20, 100 << 20
+    };
+
+    public enum Workload {
+        /** {@code Lexer.tokenize} into a token buffer. */
+        LEX,
+        /** {@code ParallelLexer.tokenize} on the common pool. */
+        PARALLEL_LEX,
+        /** {@code Parser.parse} over an already lexed buffer, including the declaration checks. */
+        PARSE,
+        /** Lexing and parsing together, with the parser pulling tokens. */
+        FRONT_END
+    }
+
+    public record Result(Workload workload, ProgramGenerator.Shape shape, int bytes,
+                         double megabytesPerSecond, long allocatedBytesPerOp) {
+        public double nanosPerByte() {
+            return 1e9 / (megabytesPerSecond * 1024 * 1024);
+        }
+
+        String csv() {
+            return workload + "," + shape + "," + bytes + ","
+                    + String.format(Locale.ROOT, "%.3f", megabytesPerSecond) + "," + allocatedBytesPerOp;
+        }
+
+        static Result parse(String line) {
+            String[] fields = line.split(",");
+            return new Result(Workload.valueOf(fields[0]), ProgramGenerator.Shape.valueOf(fields[1]),
+                    Integer.parseInt(fields[2]), Double.parseDouble(fields[3]), Long.parseLong(fields[4]));
+        }
+
+        String key() {
+            return workload + "/" + shape + "/" + bytes;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Keeps results observable so the JIT cannot drop the work
+    private static long sink;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Runs every workload on every shape at each size up to {@code maxBytes},
+     * printing a table as it goes. Returns false if a baseline was given and
+     * some result is slower than it by more than the tolerance.
+     */
+    public static boolean run(int maxBytes, Path save, Path baseline) throws IOException {
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%-12s %-19s %10s %10s %9s %14s%n",
+                "workload", "shape", "bytes", "MB/s", "ns/byte", "alloc/op");
+        for (ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+            for (int size : SIZES) {
+                if (size > maxBytes) {
+                    break;
+                }
+                byte[] bytes = ProgramGenerator.generate(shape, size, SEED).getBytes(StandardCharsets.UTF_8);
+                CharSequence code = SourceFile.decode(ByteBuffer.wrap(bytes));
+                TokenBuffer tokens = new Lexer(code).tokenize();
+                for (Workload workload : Workload.values()) {
+                    Result result = measure(workload, shape, code, tokens);
+                    results.add(result);
+                    System.out.printf(Locale.ROOT, "%-12s %-19s %10d %10.1f %9.2f %14d%n",
+                            workload, shape, code.length(), result.megabytesPerSecond(),
+                            result.nanosPerByte(), result.allocatedBytesPerOp());
+                }
+            }
+        }
+        printScaling(results);
+
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            for (Result result : results) {
+                lines.add(result.csv());
+            }
+            Files.write(save, lines);
+        }
+        return baseline == null || compare(results, baseline);
+    }
+
+    private static Result measure(Workload workload, ProgramGenerator.Shape shape, CharSequence code,
+                                  TokenBuffer tokens) {
+        // Size the sample so that timer resolution does not matter
+        long start = System.nanoTime();
+        runOnce(workload, code, tokens);
+        long once = Math.max(1, System.nanoTime() - start);
+        int operations = (int) Math.max(1, Math.min(Integer.MAX_VALUE, SAMPLE_NANOS / once));
+
+        for (int i = 0; i < WARMUP_SAMPLES; i++) {
+            sample(workload, code, tokens, operations);
+        }
+        long[] nanos = new long[SAMPLES];
+        long allocated = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < SAMPLES; i++) {
+            long before = THREADS.getThreadAllocatedBytes(threadId);
+            nanos[i] = sample(workload, code, tokens, operations);
+            allocated += THREADS.getThreadAllocatedBytes(threadId) - before;
+        }
+        Arrays.sort(nanos);
+        double seconds = nanos[SAMPLES / 2] / 1e9;
+        double megabytes = (double) code.length() * operations / (1024 * 1024);
+        return new Result(workload, shape, code.length(), megabytes / seconds,
+                allocated / ((long) SAMPLES * operations));
+    }
+
+    private static long sample(Workload workload, CharSequence code, TokenBuffer tokens, int operations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            runOnce(workload, code, tokens);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void runOnce(Workload workload, CharSequence code, TokenBuffer tokens) {
+        switch (workload) {
+            case LEX -> sink += new Lexer(code).tokenize().size();
+            case PARALLEL_LEX -> sink += ParallelLexer.tokenize(code).size();
+            case PARSE -> sink += parse(new Parser(tokens));
+            case FRONT_END -> sink += parse(new Parser(new Lexer(code)));
+        }
+    }
+
+    private static int parse(Parser parser) {
+        parser.parse();
+        if (parser.hasErrors()) {
+            throw new IllegalStateException("Generated program does not parse: " + parser.getDiagnostics().get(0));
+        }
+        return parser.getAst().size();
+    }
+
+    // Throughput at the largest size relative to the smallest; well below 1
+    // means some phase is worse than linear in the input size
+    private static void printScaling(List<Result> results) {
+        Map<String, Result> smallest = new HashMap<>();
+        Map<String, Result> largest = new HashMap<>();
+        for (Result result : results) {
+            String key = result.workload() + " " + result.shape();
+            smallest.putIfAbsent(key, result);
+            largest.put(key, result);
+        }
+        System.out.println();
+        System.out.println("Scaling (throughput at largest size / at smallest size):");
+        for (Map.Entry<String, Result> entry : smallest.entrySet().stream().sorted(Map.Entry.comparingByKey()).toList()) {
+            Result last = largest.get(entry.getKey());
+            System.out.printf(Locale.ROOT, "  %-30s %d -> %d bytes: %.2f%n", entry.getKey(),
+                    entry.getValue().bytes(), last.bytes(),
+                    last.megabytesPerSecond() / entry.getValue().megabytesPerSecond());
+        }
+    }
+
+    private static boolean compare(List<Result> results, Path baseline) throws IOException {
+        Map<String, Result> previous = new HashMap<>();
+        for (String line : Files.readAllLines(baseline)) {
+            if (!line.isBlank()) {
+                Result result = Result.parse(line);
+                previous.put(result.key(), result);
+            }
+        }
+        boolean passed = true;
+        System.out.println();
+        for (Result result : results) {
+            Result old = previous.get(result.key());
+            if (old == null) {
+                continue;
+            }
+            double ratio = result.megabytesPerSecond() / old.megabytesPerSecond();
+            if (ratio < 1 - REGRESSION_TOLERANCE) {
+                passed = false;
+                System.out.printf(Locale.ROOT, "Regression: %s at %.1f MB/s, baseline %.1f MB/s (%.0f%%)%n",
+                        result.key(), result.megabytesPerSecond(), old.megabytesPerSecond(), (ratio - 1) * 100);
+            }
+        }
+        System.out.println(passed ? "No regressions against " + baseline : "Regressions against " + baseline);
+        return passed;
+    }
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk transfer of primitive arrays to and from byte buffers, for writing
+ * arenas to disk without going through them element by element. Sections
+ * start at multiples of eight bytes, so that mapped files can be read with
+ * aligned loads.
+ */
+final class BinaryArrays {
+    private BinaryArrays() {
+    }
+
+    static void putInts(ByteBuffer out, int[] values, int count) {
+        out.asIntBuffer().put(values, 0, count);
+        out.position(out.position() + count * Integer.BYTES);
+    }
+
+    static int[] getInts(ByteBuffer in, int count, int capacity) {
+        int[] values = new int[capacity];
+        in.asIntBuffer().get(values, 0, count);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    static void putLongs(ByteBuffer out, long[] values, int count) {
+        out.asLongBuffer().put(values, 0, count);
+        out.position(out.position() + count * Long.BYTES);
+    }
+
+    static long[] getLongs(ByteBuffer in, int count, int capacity) {
+        long[] values = new long[capacity];
+        in.asLongBuffer().get(values, 0, count);
+        in.position(in.position() + count * Long.BYTES);
+        return values;
+    }
+
+    /** {@code size} rounded up to a multiple of eight. */
+    static int aligned(int size) {
+        return (size + 7) & -8;
+    }
+
+    static long aligned(long size) {
+        return (size + 7) & -8L;
+    }
+
+    /** Writes zeros up to the next multiple of eight bytes. */
+    static void pad(ByteBuffer out) {
+        while ((out.position() & 7) != 0) {
+            out.put((byte) 0);
+        }
+    }
+}
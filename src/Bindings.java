@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves every declared name in an {@link Ast} to a type and a storage
+ * class for the execution backends. Top-level declarations are globals and
+ * a declaration inside a function is a local of that function. Names are
+ * scoped as the parser scopes them, so a tree rewritten by a pass is
+ * checked again here: every use must see a declaration, and a name cannot
+ * be declared again while it is visible. Each declaration is a variable of
+ * its own, numbered in source order, and every use is bound to the
+ * declaration it sees, so names reused in other functions or sibling
+ * blocks never share storage. Execution starts with the top-level
+ * statements and then calls {@code main} if the program declares it.
+ */
+public final class Bindings {
+    private final Ast ast;
+    private final int[] variables;
+    private final int[] visible;
+    private final List<Integer> declarations = new ArrayList<>();
+    private final List<ValueType> types = new ArrayList<>();
+    private final List<Integer> declaringFunctions = new ArrayList<>();
+    private final SymbolTable symbols = new SymbolTable();
+    private final List<Integer> globals = new ArrayList<>();
+    private final Map<Integer, List<Integer>> locals = new LinkedHashMap<>();
+    private final Map<Integer, Integer> functionsByName = new LinkedHashMap<>();
+    // Expression types by node, as the ordinal plus one, or zero until asked for
+    private byte[] expressionTypes = new byte[0];
+
+    private Bindings(Ast ast) {
+        this.ast = ast;
+        this.variables = new int[ast.size()];
+        this.visible = new int[ast.names().size()];
+        Arrays.fill(variables, Ast.NONE);
+    }
+
+    public static Bindings resolve(Ast ast) {
+        Bindings bindings = new Bindings(ast);
+        bindings.walkList(ast.first(ast.root()), Ast.NONE);
+        bindings.assignStorage();
+        return bindings;
+    }
+
+    public Ast ast() {
+        return ast;
+    }
+
+    /** The variable a declaration, or a node that reads or writes a variable by name, refers to. */
+    public int variable(int node) {
+        if (node >= variables.length || variables[node] == Ast.NONE) {
+            throw new RuntimeException(ast.kind(node) + " at " + ast.position(node) + " has no variable.");
+        }
+        return variables[node];
+    }
+
+    public int variableCount() {
+        return declarations.size();
+    }
+
+    public String name(int variable) {
+        return ast.name(declarations.get(variable));
+    }
+
+    public ValueType type(int variable) {
+        return types.get(variable);
+    }
+
+    public boolean isGlobal(int variable) {
+        return declaringFunctions.get(variable) == Ast.NONE;
+    }
+
+    /** Global variables in declaration order. */
+    public List<Integer> globals() {
+        return globals;
+    }
+
+    /** FUNC nodes in declaration order. */
+    public List<Integer> functions() {
+        return new ArrayList<>(locals.keySet());
+    }
+
+    /** Local variables of a FUNC node, in declaration order. */
+    public List<Integer> locals(int function) {
+        return locals.get(function);
+    }
+
+    /** The FUNC node named {@code main}, or NONE. */
+    public int mainFunction() {
+        for (Map.Entry<Integer, Integer> entry : functionsByName.entrySet()) {
+            if (ast.names().name(entry.getKey()).equals("main")) {
+                return entry.getValue();
+            }
+        }
+        return Ast.NONE;
+    }
+
+    /** Type of an expression node, or an exception if no backend can evaluate it. */
+    public ValueType expressionType(int node) {
+        if (expressionTypes.length < ast.size()) {
+            expressionTypes = Arrays.copyOf(expressionTypes, ast.size());
+        }
+        if (expressionTypes[node] == 0) {
+            // Operands first, so each node finds its operands' types already known
+            for (int part : ast.postOrder(node)) {
+                if (expressionTypes[part] == 0) {
+                    expressionTypes[part] = (byte) (typeOf(part).ordinal() + 1);
+                }
+            }
+        }
+        return ValueType.values()[expressionTypes[node] - 1];
+    }
+
+    private ValueType typeOf(int node) {
+        switch (ast.kind(node)) {
+            case INT_LITERAL, BOOL_LITERAL -> {
+                return ValueType.INT;
+            }
+            case FLOAT_LITERAL -> {
+                return ValueType.FLOAT;
+            }
+            case NAME -> {
+                ValueType type = type(variable(node));
+                if (type.isArray()) {
+                    throw new RuntimeException("Array " + ast.name(node) + " cannot be used as a value.");
+                }
+                return type;
+            }
+            case INDEX -> {
+                return arrayType(variable(node)).elementType();
+            }
+            case UNARY -> {
+                return expressionType(ast.first(node));
+            }
+            case BINARY -> {
+                ValueType left = expressionType(ast.first(node));
+                ValueType right = expressionType(ast.second(node));
+                if (isArithmetic(ast.operator(node)) && (left == ValueType.FLOAT || right == ValueType.FLOAT)) {
+                    return ValueType.FLOAT;
+                }
+                return ValueType.INT;
+            }
+            default -> throw new RuntimeException(ast.kind(node) + " expressions cannot be executed.");
+        }
+    }
+
+    public ValueType arrayType(int variable) {
+        ValueType type = type(variable);
+        if (!type.isArray()) {
+            throw new RuntimeException("Variable " + name(variable) + " is not an array.");
+        }
+        return type;
+    }
+
+    public static boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.PLUS || operator == TokenType.MINUS
+                || operator == TokenType.MULTIPLY || operator == TokenType.DIVIDE;
+    }
+
+    private void walkList(int node, int function) {
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            walk(node, function);
+        }
+    }
+
+    private void walk(int node, int function) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case PROGRAM -> walkList(ast.first(node), function);
+            case BLOCK -> {
+                symbols.enterScope();
+                walkList(ast.first(node), function);
+                symbols.exitScope();
+            }
+            case VAR_DECL -> {
+                walk(ast.third(node), function);
+                declare(node, ast.second(node) == TokenType.FLOAT.ordinal() ? ValueType.FLOAT : ValueType.INT,
+                        function);
+            }
+            case ARRAY_DECL -> {
+                walkList(ast.third(node), function);
+                declare(node, ast.second(node) == TokenType.FLOAT.ordinal()
+                        ? ValueType.FLOAT_ARRAY : ValueType.INT_ARRAY, function);
+            }
+            case FUNC -> {
+                int nameId = ast.first(node);
+                if (functionsByName.putIfAbsent(nameId, node) != null) {
+                    throw new RuntimeException("Function " + ast.name(node) + " is declared more than once.");
+                }
+                locals.put(node, new ArrayList<>());
+                walk(ast.second(node), node);
+            }
+            case ASSIGN -> {
+                use(node);
+                walk(ast.second(node), function);
+            }
+            case ARRAY_ASSIGN -> {
+                use(node);
+                walk(ast.second(node), function);
+                walk(ast.third(node), function);
+            }
+            case INCREMENT, DECREMENT -> use(node);
+            case IF -> {
+                // Else-if chains can be long, so they are followed in a loop
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    walk(ast.first(branch), function);
+                    walk(ast.second(branch), function);
+                }
+                walk(branch, function);
+            }
+            case FOR -> {
+                // A variable declared in the header is visible in the loop only
+                symbols.enterScope();
+                walk(ast.first(node), function);
+                walk(ast.second(node), function);
+                walk((int) ast.value(node), function);
+                walk(ast.third(node), function);
+                symbols.exitScope();
+            }
+            case NAME, INDEX, BINARY, UNARY -> {
+                for (int part : ast.postOrder(node)) {
+                    if (ast.kind(part) == NodeKind.NAME || ast.kind(part) == NodeKind.INDEX) {
+                        use(part);
+                    }
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void declare(int node, ValueType type, int function) {
+        int nameId = ast.first(node);
+        if (!symbols.declare(nameId, type)) {
+            throw new RuntimeException("Variable " + ast.names().name(nameId) + " is declared more than once.");
+        }
+        int variable = declarations.size();
+        declarations.add(node);
+        types.add(type);
+        declaringFunctions.add(function);
+        variables[node] = variable;
+        visible[nameId] = variable;
+    }
+
+    // Shadowing is not allowed, so a visible name's latest declaration is the one in scope
+    private void use(int node) {
+        int nameId = ast.first(node);
+        if (symbols.type(nameId) == null) {
+            throw new RuntimeException("Variable " + ast.names().name(nameId) + " is not declared.");
+        }
+        variables[node] = visible[nameId];
+    }
+
+    private void assignStorage() {
+        for (int variable = 0; variable < declarations.size(); variable++) {
+            int function = declaringFunctions.get(variable);
+            if (function == Ast.NONE) {
+                globals.add(variable);
+            } else {
+                locals.get(function).add(variable);
+            }
+        }
+    }
+}
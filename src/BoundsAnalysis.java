@@ -0,0 +1,471 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Works out the range of every array index in an {@link Ast}, to tell the
+ * backends which accesses need no bounds check and the parser which can
+ * never succeed. An array's length is known when every declaration of its
+ * name gives the same length. An index range is built from integer
+ * literals, from int variables that nothing but their one declaration
+ * writes, and from the induction variables of counted for loops: inside
+ * the body of {@code for (i = s; i < n; i++)}, where the body does not
+ * write {@code i}, it lies between the least value of {@code s} and the
+ * greatest of {@code n}, minus one.
+ * <p>
+ * Ranges are closed intervals over long, and arithmetic that could overflow
+ * gives up, so an access found in bounds cannot fail. An access whose whole
+ * range is outside its array fails every time it runs, and is an error
+ * even in code that never runs, as a constant index out of range is in Go.
+ */
+public final class BoundsAnalysis {
+    private static final long UNSEEN = -2;
+    private static final long UNKNOWN = -1;
+    // Deeper index expressions are not worth proving
+    private static final int MAX_DEPTH = 32;
+
+    private final Ast ast;
+    private final BitSet inBounds = new BitSet();
+    private final List<Diagnostic> errors = new ArrayList<>();
+
+    // Per name ID
+    private final long[] lengths;
+    private final BitSet declared = new BitSet();
+    private final BitSet redeclared = new BitSet();
+    private final BitSet assigned = new BitSet();
+    private final BitSet notInteger = new BitSet();
+    private final BitSet known = new BitSet();
+    private final long[] lows;
+    private final long[] highs;
+
+    // Induction variables of the loops being walked, hidden inside functions
+    private int[] inductionVariables = new int[8];
+    private int inductionCount;
+    private int[] pending = new int[16];
+
+    // Result of range()
+    private long low;
+    private long high;
+
+    private BoundsAnalysis(Ast ast) {
+        this.ast = ast;
+        int nameCount = ast.names().size();
+        this.lengths = new long[nameCount];
+        this.lows = new long[nameCount];
+        this.highs = new long[nameCount];
+        Arrays.fill(lengths, UNSEEN);
+    }
+
+    public static BoundsAnalysis analyze(Ast ast) {
+        BoundsAnalysis analysis = new BoundsAnalysis(ast);
+        int root = ast.root();
+        boolean arrays = analysis.collect(ast.first(root));
+        // Without arrays there are no indexes to look at
+        if (arrays) {
+            analysis.visitList(ast.first(root));
+            analysis.errors.sort(Comparator.comparingInt(Diagnostic::start));
+        }
+        return analysis;
+    }
+
+    /** Whether the index of an INDEX or ARRAY_ASSIGN node is always within its array. */
+    public boolean inBounds(int access) {
+        return inBounds.get(access);
+    }
+
+    /** Accesses whose index can never be within their array, in source order. */
+    public List<Diagnostic> errors() {
+        return errors;
+    }
+
+    // Records declarations and writes of every name; returns whether any array is declared
+    private boolean collect(int node) {
+        boolean arrays = false;
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            switch (ast.kind(node)) {
+                case BLOCK -> arrays |= collect(ast.first(node));
+                case VAR_DECL -> {
+                    int nameId = ast.first(node);
+                    (declared.get(nameId) ? redeclared : declared).set(nameId);
+                    if (ast.second(node) != TokenType.INT.ordinal()) {
+                        notInteger.set(nameId);
+                    }
+                }
+                case ARRAY_DECL -> {
+                    int nameId = ast.first(node);
+                    long length = ast.value(node);
+                    lengths[nameId] = lengths[nameId] == UNSEEN || lengths[nameId] == length ? length : UNKNOWN;
+                    arrays = true;
+                }
+                case FUNC -> arrays |= collect(ast.second(node));
+                case ASSIGN, INCREMENT, DECREMENT -> assigned.set(ast.first(node));
+                case IF -> {
+                    // Else-if chains can be long, so they are followed in a loop
+                    int branch = node;
+                    for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                        arrays |= collect(ast.second(branch));
+                    }
+                    arrays |= collect(branch);
+                }
+                case FOR -> {
+                    arrays |= collect(ast.first(node));
+                    arrays |= collect((int) ast.value(node));
+                    arrays |= collect(ast.third(node));
+                }
+                default -> {
+                }
+            }
+        }
+        return arrays;
+    }
+
+    private void visitList(int node) {
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            visit(node);
+        }
+    }
+
+    private void visit(int node) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case BLOCK -> visitList(ast.first(node));
+            case VAR_DECL -> {
+                int nameId = ast.first(node);
+                int initializer = ast.third(node);
+                visitExpression(initializer);
+                if (declared.get(nameId) && !redeclared.get(nameId) && !assigned.get(nameId)
+                        && !notInteger.get(nameId) && (initializer == Ast.NONE || range(initializer, 0))) {
+                    // Until its declaration runs, the variable holds zero
+                    if (initializer == Ast.NONE) {
+                        low = 0;
+                        high = 0;
+                    }
+                    known.set(nameId);
+                    lows[nameId] = Math.min(low, 0);
+                    highs[nameId] = Math.max(high, 0);
+                }
+            }
+            case ARRAY_DECL -> {
+                for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+                    visitExpression(element);
+                }
+            }
+            case FUNC -> {
+                // A function runs after the top level, outside every loop
+                BitSet hidden = new BitSet();
+                for (int i = 0; i < inductionCount; i++) {
+                    if (known.get(inductionVariables[i])) {
+                        hidden.set(inductionVariables[i]);
+                        known.clear(inductionVariables[i]);
+                    }
+                }
+                visit(ast.second(node));
+                known.or(hidden);
+            }
+            case ASSIGN -> visitExpression(ast.second(node));
+            case ARRAY_ASSIGN -> {
+                visitExpression(ast.second(node));
+                visitExpression(ast.third(node));
+                check(node, ast.first(node), ast.second(node));
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    visitExpression(ast.first(branch));
+                    visit(ast.second(branch));
+                }
+                visit(branch);
+            }
+            case FOR -> visitLoop(node);
+            default -> {
+            }
+        }
+    }
+
+    private void visitLoop(int loop) {
+        visit(ast.first(loop));
+        visitExpression(ast.second(loop));
+        if (!inductionRange(loop)) {
+            visit(ast.third(loop));
+            return;
+        }
+        int variable = ast.first((int) ast.value(loop));
+        if (inductionCount == inductionVariables.length) {
+            inductionVariables = Arrays.copyOf(inductionVariables, inductionCount * 2);
+        }
+        inductionVariables[inductionCount++] = variable;
+        // A function inside a loop can run a loop over the same name
+        boolean wasKnown = known.get(variable);
+        long outerLow = lows[variable];
+        long outerHigh = highs[variable];
+        known.set(variable);
+        lows[variable] = low;
+        highs[variable] = high;
+        visit(ast.third(loop));
+        known.set(variable, wasKnown);
+        lows[variable] = outerLow;
+        highs[variable] = outerHigh;
+        inductionCount--;
+    }
+
+    /**
+     * Sets low and high to the values the induction variable of a counted
+     * loop takes in its body. Returns false for other loops, and for those
+     * whose body never runs.
+     */
+    private boolean inductionRange(int loop) {
+        int update = (int) ast.value(loop);
+        int init = ast.first(loop);
+        int condition = ast.second(loop);
+        if (update == Ast.NONE || init == Ast.NONE || ast.kind(condition) != NodeKind.BINARY) {
+            return false;
+        }
+        int variable = ast.first(update);
+        if (ast.first(init) != variable || !declared.get(variable) || notInteger.get(variable)) {
+            return false;
+        }
+        int start;
+        switch (ast.kind(init)) {
+            case VAR_DECL -> start = ast.third(init);
+            case ASSIGN -> start = ast.second(init);
+            default -> {
+                return false;
+            }
+        }
+
+        TokenType operator = ast.operator(condition);
+        int bound;
+        if (isVariable(ast.first(condition), variable)) {
+            bound = ast.second(condition);
+        } else if (isVariable(ast.second(condition), variable)) {
+            bound = ast.first(condition);
+            operator = mirror(operator);
+        } else {
+            return false;
+        }
+        if (operator == null || writes(ast.third(loop), variable)) {
+            return false;
+        }
+
+        long startLow = 0;
+        long startHigh = 0;
+        if (start != Ast.NONE) {
+            if (!range(start, 0)) {
+                return false;
+            }
+            startLow = low;
+            startHigh = high;
+        }
+        if (!range(bound, 0)) {
+            return false;
+        }
+        // The step cannot wrap: i++ only runs after a check that i is below a long
+        boolean up = ast.kind(update) == NodeKind.INCREMENT;
+        switch (operator) {
+            case LESS_THAN -> {
+                if (!up || high == Long.MIN_VALUE) {
+                    return false;
+                }
+                high--;
+            }
+            case LESS_THAN_OR_EQUAL -> {
+                if (!up || high == Long.MAX_VALUE) {
+                    return false;
+                }
+            }
+            case GREATER_THAN -> {
+                if (up || low == Long.MAX_VALUE) {
+                    return false;
+                }
+                low++;
+            }
+            case GREATER_THAN_OR_EQUAL -> {
+                if (up || low == Long.MIN_VALUE) {
+                    return false;
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        if (up) {
+            low = startLow;
+        } else {
+            high = startHigh;
+        }
+        return low <= high;
+    }
+
+    private boolean isVariable(int node, int nameId) {
+        return ast.kind(node) == NodeKind.NAME && ast.first(node) == nameId;
+    }
+
+    // The operator with its operands swapped, or null if it is not an ordering
+    private static TokenType mirror(TokenType operator) {
+        return switch (operator) {
+            case LESS_THAN -> TokenType.GREATER_THAN;
+            case LESS_THAN_OR_EQUAL -> TokenType.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN -> TokenType.LESS_THAN;
+            case GREATER_THAN_OR_EQUAL -> TokenType.LESS_THAN_OR_EQUAL;
+            default -> null;
+        };
+    }
+
+    private boolean writes(int node, int nameId) {
+        if (node == Ast.NONE) {
+            return false;
+        }
+        switch (ast.kind(node)) {
+            case BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    if (writes(statement, nameId)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case VAR_DECL, ASSIGN, INCREMENT, DECREMENT -> {
+                return ast.first(node) == nameId;
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    if (writes(ast.second(branch), nameId)) {
+                        return true;
+                    }
+                }
+                return writes(branch, nameId);
+            }
+            case FOR -> {
+                return writes(ast.first(node), nameId) || writes((int) ast.value(node), nameId)
+                        || writes(ast.third(node), nameId);
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    // Checks every INDEX in an expression; nesting can be deep, so this keeps its own stack
+    private void visitExpression(int node) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        int size = 0;
+        pending[size++] = node;
+        while (size > 0) {
+            int expression = pending[--size];
+            if (size + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            switch (ast.kind(expression)) {
+                case INDEX -> {
+                    check(expression, ast.first(expression), ast.second(expression));
+                    pending[size++] = ast.second(expression);
+                }
+                case BINARY -> {
+                    pending[size++] = ast.second(expression);
+                    pending[size++] = ast.first(expression);
+                }
+                case UNARY -> pending[size++] = ast.first(expression);
+                default -> {
+                }
+            }
+        }
+    }
+
+    private void check(int access, int nameId, int index) {
+        long length = lengths[nameId];
+        if (length < 0 || !range(index, 0)) {
+            return;
+        }
+        if (low >= 0 && high < length) {
+            inBounds.set(access);
+        } else if (high < 0 || low >= length) {
+            String name = ast.names().name(nameId);
+            String value = low == high ? "Index " + low : "Index from " + low + " to " + high;
+            errors.add(new Diagnostic(ast.position(access), name.length(),
+                    value + " is out of bounds for array " + name + " of length " + length + "."));
+        }
+    }
+
+    /** Sets low and high to the range of an int expression, or returns false if it is not known. */
+    private boolean range(int node, int depth) {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        switch (ast.kind(node)) {
+            case INT_LITERAL, BOOL_LITERAL -> {
+                low = ast.value(node);
+                high = low;
+                return true;
+            }
+            case NAME -> {
+                int nameId = ast.first(node);
+                if (!known.get(nameId)) {
+                    return false;
+                }
+                low = lows[nameId];
+                high = highs[nameId];
+                return true;
+            }
+            case UNARY -> {
+                if (!range(ast.first(node), depth + 1) || low == Long.MIN_VALUE) {
+                    return false;
+                }
+                long negatedHigh = -low;
+                low = -high;
+                high = negatedHigh;
+                return true;
+            }
+            case BINARY -> {
+                TokenType operator = ast.operator(node);
+                if (!Bindings.isArithmetic(operator) || !range(ast.first(node), depth + 1)) {
+                    return false;
+                }
+                long leftLow = low;
+                long leftHigh = high;
+                if (!range(ast.second(node), depth + 1)) {
+                    return false;
+                }
+                try {
+                    switch (operator) {
+                        case PLUS -> {
+                            low = Math.addExact(leftLow, low);
+                            high = Math.addExact(leftHigh, high);
+                        }
+                        case MINUS -> {
+                            long difference = Math.subtractExact(leftLow, high);
+                            high = Math.subtractExact(leftHigh, low);
+                            low = difference;
+                        }
+                        case MULTIPLY -> corners(Math.multiplyExact(leftLow, low), Math.multiplyExact(leftLow, high),
+                                Math.multiplyExact(leftHigh, low), Math.multiplyExact(leftHigh, high));
+                        default -> {
+                            // Truncating division is monotonic in each operand while the divisor keeps its sign
+                            if (low <= 0) {
+                                return false;
+                            }
+                            corners(leftLow / low, leftLow / high, leftHigh / low, leftHigh / high);
+                        }
+                    }
+                } catch (ArithmeticException e) {
+                    return false;
+                }
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private void corners(long a, long b, long c, long d) {
+        low = Math.min(Math.min(a, b), Math.min(c, d));
+        high = Math.max(Math.max(a, b), Math.max(c, d));
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many source files at once. Every file is loaded, lexed, parsed
+ * and checked independently on a fork-join pool, and writes its messages to
+ * a buffer of its own. The buffers are printed in input order once all files
+ * are done, so the output is the same however the work was scheduled.
+ */
+public final class BuildDriver {
+    private final CompileOptions options;
+    private final int parallelism;
+    private final CompilationCache cache;
+    private final CompilerMetrics metrics;
+    // Source file each syntax image written so far belongs to
+    private final Map<Path, Path> imageSources = new ConcurrentHashMap<>();
+
+    /**
+     * @param cache   where to look up tokens and trees before lexing and
+     *                parsing, or null to always compile from scratch
+     * @param metrics where to record the time and work of each phase
+     */
+    public BuildDriver(CompileOptions options, int parallelism, CompilationCache cache, CompilerMetrics metrics) {
+        this.options = options;
+        this.parallelism = parallelism;
+        // Images are written from cache entries, so one that keeps nothing
+        // stands in when caching is off
+        this.cache = cache == null && options.syntaxDirectory() != null ? new CompilationCache(0, null) : cache;
+        this.metrics = metrics;
+    }
+
+    public record FileResult(Path file, String output, boolean failed) {
+    }
+
+    /**
+     * Expands directories into the regular files below them, sorted by path
+     * so that the build order does not depend on the file system.
+     */
+    public static List<Path> expand(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().startsWith("."))
+                        .sorted()
+                        .forEach(files::add);
+            }
+        }
+        return files;
+    }
+
+    public List<FileResult> build(List<Path> files) {
+        if (files.size() == 1 || parallelism == 1) {
+            List<FileResult> results = new ArrayList<>(files.size());
+            for (Path file : files) {
+                results.add(compile(file));
+            }
+            return results;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<FileResult>> tasks = new ArrayList<>(files.size());
+            for (Path file : files) {
+                tasks.add(pool.submit(() -> compile(file)));
+            }
+            List<FileResult> results = new ArrayList<>(files.size());
+            for (ForkJoinTask<FileResult> task : tasks) {
+                results.add(task.join());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Prints the results in order, with a header per file and a summary line
+     * when there are several, and returns how many failed.
+     */
+    public static int print(List<FileResult> results, PrintStream out) {
+        int failed = 0;
+        for (FileResult result : results) {
+            if (results.size() > 1) {
+                out.println("== " + result.file());
+            }
+            out.print(result.output());
+            if (result.failed()) {
+                failed++;
+            }
+        }
+        if (results.size() > 1) {
+            out.println("Built " + results.size() + " files, " + failed + " failed");
+        }
+        return failed;
+    }
+
+    public FileResult compile(Path file) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        boolean failed;
+        try {
+            failed = !compile(file, out);
+        } catch (IOException | UncheckedIOException e) {
+            out.println("Reading failed: " + e);
+            failed = true;
+        } catch (RuntimeException e) {
+            // Only this file fails; the other tasks of the build go on
+            out.println("Compilation failed: " + e);
+            failed = true;
+        }
+        out.flush();
+        return new FileResult(file, buffer.toString(StandardCharsets.UTF_8), failed);
+    }
+
+    /** Runs the whole pipeline for one file and returns whether it succeeded. */
+    private boolean compile(Path file, PrintStream out) throws IOException {
+        Ast ast;
+        if (cache != null) {
+            CompilerMetrics.Span read = metrics.start(CompilerMetrics.Phase.READ, file);
+            ByteBuffer bytes = SourceFile.readBytes(file);
+            metrics.finish(read, bytes.limit(), 0, 0);
+            CompilationCache.Entry entry = cache.compile(bytes, metrics, file);
+            if (options.syntaxDirectory() != null) {
+                Path image = imagePath(options.syntaxDirectory(), file);
+                Path source = file.toAbsolutePath().normalize();
+                Path other = imageSources.putIfAbsent(image, source);
+                if (other != null && !other.equals(source)) {
+                    out.println("Writing " + image + " failed: it is the syntax image of " + other);
+                    return false;
+                }
+                try {
+                    SyntaxImage.write(image, bytes, entry);
+                } catch (IOException e) {
+                    out.println("Writing " + image + " failed: " + e);
+                    return false;
+                }
+            }
+            if (options.printTokens()) {
+                TokenBuffer tokens = entry.tokens();
+                for (int i = 0; i < tokens.size(); i++) {
+                    out.println(tokens.token(i));
+                }
+            }
+            if (!entry.parsed()) {
+                printDiagnostics(entry.diagnostics(), entry.tokens().sourceCode(), out);
+                return false;
+            }
+            out.println("Parsing completed successfully!");
+            // Cached trees are shared, and the optimizer rewrites in place
+            ast = options.optimize() ? entry.ast().copy() : entry.ast();
+        } else {
+            //Read from file
+            CompilerMetrics.Span read = metrics.start(CompilerMetrics.Phase.READ, file);
+            CharSequence code = SourceFile.load(file);
+            metrics.finish(read, code.length(), 0, 0);
+
+            if (options.printTokens()) {
+                CompilerMetrics.Span lex = metrics.start(CompilerMetrics.Phase.LEX, file);
+                Lexer lexer = new Lexer(code);
+                Token token;
+                long count = 0;
+                do {
+                    token = lexer.nextToken();
+                    out.println(token);
+                    count++;
+                } while (token.getType() != TokenType.EOF);
+                metrics.finish(lex, code.length(), count, 0);
+            }
+
+            // The parser pulls tokens from its own lexer as it goes, so the token
+            // stream is never held in memory as a whole. Lexing is therefore
+            // timed as part of the parse phase here.
+            CompilerMetrics.Span parse = metrics.start(CompilerMetrics.Phase.PARSE, file);
+            Parser parser = new Parser(new Lexer(code));
+            parser.parse();
+            metrics.finish(parse, code.length(), parser.tokenIndex(), parser.getDiagnostics().size());
+            if (parser.hasErrors()) {
+                printDiagnostics(parser.getDiagnostics(), code, out);
+                return false;
+            }
+            out.println("Parsing completed successfully!");
+            ast = parser.getAst();
+        }
+
+        if (options.optimize()) {
+            CompilerMetrics.Span optimize = metrics.start(CompilerMetrics.Phase.OPTIMIZE, file);
+            Optimizer.Report report = new Optimizer(ast).optimize();
+            metrics.finish(optimize, 0, 0, 0);
+            out.println(report);
+            if (!report.loops().isEmpty()) {
+                LineMap lines = LineMap.of(ast.sourceCode());
+                for (LoopOptimizer.Transform loop : report.loops()) {
+                    out.println("  " + loop.format(lines));
+                }
+            }
+        }
+        if (options.printAst()) {
+            out.print(ast.format(ast.root()));
+        }
+
+        if (options.run() || options.interpret()) {
+            CompilerMetrics.Span execute = metrics.start(CompilerMetrics.Phase.EXECUTE, file);
+            try {
+                Map<String, Object> globals = options.interpret()
+                        ? new RegisterVm(ast).run()
+                        : new JvmBackend(ast).run();
+                metrics.finish(execute, 0, 0, 0);
+                printGlobals(globals, out);
+            } catch (RuntimeException e) {
+                metrics.finish(execute, 0, 0, 1);
+                out.println("Execution failed: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where the syntax image of {@code file} goes: its file name and a hash
+     * of its absolute path, so that files of the same name in different
+     * directories do not share one.
+     */
+    static Path imagePath(Path directory, Path file) {
+        String path = file.toAbsolutePath().normalize().toString();
+        long hash = UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        return directory.resolve(String.format("%s.%016x.syn", file.getFileName(), hash));
+    }
+
+    private static void printDiagnostics(List<Diagnostic> diagnostics, CharSequence source, PrintStream out) {
+        out.println("Parsing failed: " + diagnostics.size() + (diagnostics.size() == 1 ? " error" : " errors"));
+        LineMap lines = LineMap.of(source);
+        for (Diagnostic diagnostic : diagnostics) {
+            out.println("  " + diagnostic.format(lines));
+        }
+    }
+
+    private static void printGlobals(Map<String, Object> globals, PrintStream out) {
+        for (Map.Entry<String, Object> entry : globals.entrySet()) {
+            Object value = entry.getValue();
+            String text;
+            if (value instanceof long[] array) {
+                text = Arrays.toString(array);
+            } else if (value instanceof double[] array) {
+                text = Arrays.toString(array);
+            } else {
+                text = String.valueOf(value);
+            }
+            out.println(entry.getKey() + " = " + text);
+        }
+    }
+}
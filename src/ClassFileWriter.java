@@ -0,0 +1,313 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal class file writer: a constant pool, static fields and methods with
+ * a Code attribute. It emits class file version 49, which predates the
+ * StackMapTable attribute, so generated branches need no frame computation
+ * and are checked by the type-inferencing verifier instead.
+ */
+final class ClassFileWriter {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+    private int fieldCount;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileWriter(String className) {
+        this.thisClass = classRef(className);
+        this.superClass = classRef("java/lang/Object");
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int intConstant(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, 2, out -> {
+            out.writeByte(5);
+            out.writeLong(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return constant("D" + bits, 2, out -> {
+            out.writeByte(6);
+            out.writeLong(bits);
+        });
+    }
+
+    void addField(int access, String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        write(() -> {
+            fields.writeShort(access);
+            fields.writeShort(nameIndex);
+            fields.writeShort(descriptorIndex);
+            fields.writeShort(0);
+        });
+        fieldCount++;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        byte[] bytecode = code.finish();
+        write(() -> {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+            methods.writeShort(codeIndex);
+            methods.writeInt(12 + bytecode.length);
+            methods.writeShort(code.maxStack);
+            methods.writeShort(code.maxLocals);
+            methods.writeInt(bytecode.length);
+            methods.write(bytecode);
+            methods.writeShort(0); // exception table
+            methods.writeShort(0); // attributes
+        });
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fieldCount);
+            out.write(fieldBytes.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methodBytes.toByteArray());
+            out.writeShort(0); // attributes
+        });
+        return bytes.toByteArray();
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ' ' + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + '.' + name + ' ' + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    // Entries are deduplicated by key; long and double constants take two slots.
+    private int constant(String key, int slots, PoolEntry entry) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int index = poolCount;
+        write(() -> entry.write(pool));
+        poolCount += slots;
+        if (poolCount > 0xFFFF) {
+            throw new RuntimeException("Program is too large: constant pool overflow.");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    private static void write(IoAction action) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface PoolEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Bytecode for one method. Tracks the operand stack depth as instructions
+     * are emitted so max_stack can be filled in, and patches forward branches
+     * once their labels are placed.
+     */
+    static final class Code {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+
+        private int[] labelPositions = new int[16];
+        private int[] labelStacks = new int[16];
+        private int labelCount;
+        private int[] fixupSites = new int[16];
+        private int[] fixupLabels = new int[16];
+        private int fixupCount;
+
+        Code(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjustStack(stackDelta);
+        }
+
+        void op(int opcode, int operand, int operandBytes, int stackDelta) {
+            u1(opcode);
+            if (operandBytes == 1) {
+                u1(operand);
+            } else {
+                u2(operand);
+            }
+            adjustStack(stackDelta);
+        }
+
+        // Loads and stores, widened when the slot does not fit in a byte.
+        void local(int opcode, int slot, int stackDelta) {
+            if (slot > 0xFF) {
+                u1(0xC4); // wide
+                op(opcode, slot, 2, stackDelta);
+            } else {
+                op(opcode, slot, 1, stackDelta);
+            }
+        }
+
+        int newLabel() {
+            if (labelCount == labelPositions.length) {
+                labelPositions = Arrays.copyOf(labelPositions, labelCount * 2);
+                labelStacks = Arrays.copyOf(labelStacks, labelCount * 2);
+            }
+            labelPositions[labelCount] = -1;
+            labelStacks[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void branch(int opcode, int label, int stackDelta) {
+            int site = length;
+            u1(opcode);
+            u2(0);
+            adjustStack(stackDelta);
+            labelStacks[label] = stack;
+            if (fixupCount == fixupSites.length) {
+                fixupSites = Arrays.copyOf(fixupSites, fixupCount * 2);
+                fixupLabels = Arrays.copyOf(fixupLabels, fixupCount * 2);
+            }
+            fixupSites[fixupCount] = site;
+            fixupLabels[fixupCount] = label;
+            fixupCount++;
+        }
+
+        void place(int label) {
+            labelPositions[label] = length;
+            if (labelStacks[label] >= 0) {
+                stack = labelStacks[label];
+            }
+        }
+
+        void useLocals(int count) {
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        private byte[] finish() {
+            if (length > 0xFFFF) {
+                throw new RuntimeException("Program is too large: method exceeds 64 KB of bytecode.");
+            }
+            if (maxStack > 0xFFFF) {
+                throw new RuntimeException("Program is too large: expression nested too deeply for the JVM stack.");
+            }
+            for (int i = 0; i < fixupCount; i++) {
+                int site = fixupSites[i];
+                int offset = labelPositions[fixupLabels[i]] - site;
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new RuntimeException("Program is too large: branch offset overflow.");
+                }
+                bytes[site + 1] = (byte) (offset >> 8);
+                bytes[site + 2] = (byte) offset;
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void adjustStack(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+}
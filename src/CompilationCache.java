@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lexing and parsing results keyed by a hash of the source bytes, so that
+ * unchanged input skips both phases. Entries live in memory under a byte
+ * budget with least-recently-used eviction, and can also be written to a
+ * directory that outlives the process, as {@link SyntaxImage} files.
+ * <p>
+ * The key mixes in {@link #COMPILER_VERSION}, which must be bumped whenever
+ * the lexer or parser change what they produce. Safe to share between
+ * threads.
+ */
+public final class CompilationCache {
+    static final int COMPILER_VERSION = 3;
+
+    // xxHash64 primes
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    /** Tokens and tree of one source, or the diagnostics if it did not parse. */
+    public record Entry(TokenBuffer tokens, Ast ast, List<Diagnostic> diagnostics) {
+        public boolean parsed() {
+            return ast != null;
+        }
+
+        /** The same entry over another copy of the same source text. */
+        Entry withSource(CharSequence sourceCode) {
+            return new Entry(tokens.withSource(sourceCode), ast == null ? null : ast.withSource(sourceCode),
+                    diagnostics);
+        }
+
+        // Rough heap footprint, for the memory budget
+        long estimatedBytes() {
+            long bytes = 2L * tokens.sourceCode().length() + 13L * tokens.size() + 16L * tokens.names().size();
+            return ast == null ? bytes : bytes + 33L * ast.size();
+        }
+    }
+
+    public record Stats(long hits, long diskHits, long misses, long evictions) {
+        @Override
+        public String toString() {
+            return "Cache: " + hits + " hits (" + diskHits + " from disk), " + misses + " misses, "
+                    + evictions + " evictions";
+        }
+    }
+
+    private record Key(long hash, int length) {
+    }
+
+    private final long maxBytes;
+    private final Path directory;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long diskHits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes  memory budget; 0 keeps nothing in memory
+     * @param directory where to keep entries on disk, or null for memory only
+     */
+    public CompilationCache(long maxBytes, Path directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the tokens and tree for {@code source}, lexing and parsing it
+     * only if no entry for the same bytes is cached.
+     */
+    public Entry compile(ByteBuffer source) {
+        return compile(source, CompilerMetrics.DISABLED, null);
+    }
+
+    /** Like {@link #compile(ByteBuffer)}, recording lexing and parsing of a miss in {@code metrics}. */
+    public Entry compile(ByteBuffer source, CompilerMetrics metrics, Path file) {
+        Key key = new Key(hash(source), source.limit());
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+        }
+
+        CharSequence code = SourceFile.decode(source);
+        Entry entry = directory != null ? readFromDisk(key, code) : null;
+        synchronized (this) {
+            if (entry != null) {
+                hits++;
+                diskHits++;
+            } else {
+                misses++;
+            }
+        }
+        if (entry == null) {
+            entry = compile(code, metrics, file);
+            if (directory != null) {
+                writeToDisk(key, source, entry);
+            }
+        }
+        if (entry.estimatedBytes() <= maxBytes) {
+            // The source may be a mapping of a file that changes or goes away
+            // while the entry is cached, so the entry keeps its own copy
+            ByteBuffer copy = ByteBuffer.allocate(source.limit()).put(source.duplicate().rewind()).flip();
+            remember(key, entry.withSource(SourceFile.decode(copy)));
+        }
+        return entry;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, diskHits, misses, evictions);
+    }
+
+    private static Entry compile(CharSequence code, CompilerMetrics metrics, Path file) {
+        CompilerMetrics.Span lex = metrics.start(CompilerMetrics.Phase.LEX, file);
+        TokenBuffer tokens = ParallelLexer.tokenize(code);
+        metrics.finish(lex, code.length(), tokens.size(), 0);
+        CompilerMetrics.Span parse = metrics.start(CompilerMetrics.Phase.PARSE, file);
+        Parser parser = new Parser(tokens);
+        parser.parse();
+        metrics.finish(parse, code.length(), tokens.size(), parser.getDiagnostics().size());
+        if (parser.hasErrors()) {
+            return new Entry(tokens, null, List.copyOf(parser.getDiagnostics()));
+        }
+        return new Entry(tokens, parser.getAst(), List.of());
+    }
+
+    private synchronized void remember(Key key, Entry entry) {
+        long size = entry.estimatedBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.estimatedBytes();
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().getValue().estimatedBytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * 64-bit hash of the bytes with the compiler version as seed, consuming
+     * eight bytes per step.
+     */
+    static long hash(ByteBuffer source) {
+        ByteBuffer bytes = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int length = bytes.limit();
+        long hash = PRIME3 + COMPILER_VERSION * PRIME1 + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            hash ^= Long.rotateLeft(bytes.getLong(i) * PRIME2, 31) * PRIME1;
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME3;
+        }
+        for (; i < length; i++) {
+            hash ^= (bytes.get(i) & 0xFFL) * PRIME3;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        return hash ^ (hash >>> 32);
+    }
+
+    private Path diskPath(Key key) {
+        return directory.resolve(String.format("%016x-%d.syn", key.hash(), key.length()));
+    }
+
+    // The disk tier is best effort: anything unreadable counts as a miss
+    private Entry readFromDisk(Key key, CharSequence code) {
+        try {
+            SyntaxImage image = SyntaxImage.open(diskPath(key));
+            if (image.sourceHash() != key.hash() || image.sourceLength() != key.length()) {
+                return null;
+            }
+            return image.toEntry(code);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void writeToDisk(Key key, ByteBuffer source, Entry entry) {
+        try {
+            SyntaxImage.write(diskPath(key), source, key.hash(), entry);
+        } catch (IOException e) {
+            // A missing disk entry only costs a recompile later
+        }
+    }
+}
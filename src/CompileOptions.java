@@ -0,0 +1,12 @@
+import java.nio.file.Path;
+
+/**
+ * What to do with each source file after it has been parsed.
+ *
+ * @param syntaxDirectory where to write a {@link SyntaxImage} of each file,
+ *                        named by {@link BuildDriver#imagePath}, or null to
+ *                        write none
+ */
+public record CompileOptions(boolean printTokens, boolean printAst, boolean optimize, boolean run, boolean interpret,
+                             Path syntaxDirectory) {
+}
@@ -0,0 +1,204 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running compiler that takes builds over a Unix domain socket, so
+ * that the lexer and parser stay JIT-compiled and the cache stays warm
+ * between builds. Each connection carries one build and is served on a
+ * thread of its own: a virtual thread when the runtime has them, a pooled
+ * platform thread otherwise.
+ * <p>
+ * A request is the five {@link CompileOptions} flags, the syntax image
+ * directory or an empty string, the client's working directory, a file
+ * count and the file paths as the client named them, written with
+ * {@link DataOutputStream}. The reply is
+ * whether any file failed, then the build output, diagnostics included, as
+ * a length-prefixed UTF-8 string.
+ */
+public final class CompileServer {
+    private final Path socket;
+    private final int parallelism;
+    private final CompilationCache cache;
+
+    /**
+     * @param parallelism threads for each build of several files
+     * @param cache       shared by all builds, or null to compile from scratch
+     */
+    public CompileServer(Path socket, int parallelism, CompilationCache cache) {
+        this.socket = socket;
+        this.parallelism = parallelism;
+        this.cache = cache;
+    }
+
+    /** Accepts builds until the process is killed. */
+    public void serve() throws IOException {
+        if (Files.exists(socket)) {
+            if (request(socket, new CompileOptions(false, false, false, false, false, null), List.of()) != null) {
+                throw new IOException("A compile server is already listening on " + socket);
+            }
+            // Left behind by a server that did not shut down cleanly
+            Files.delete(socket);
+        }
+        ExecutorService executor = newExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException ignored) {
+                }
+            }));
+            System.out.println("Listening on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> handle(client));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+            boolean failed;
+            try {
+                failed = build(in, out) > 0;
+            } catch (RuntimeException | Error e) {
+                // A bug met by one build is that build's failure, not the server's.
+                // Errors too: a mapped file that shrinks under the build throws
+                // InternalError, and this thread must live on to reply.
+                out.println("Build failed: " + e);
+                failed = true;
+            }
+            out.flush();
+
+            DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(client));
+            byte[] output = buffer.toByteArray();
+            reply.writeBoolean(failed);
+            reply.writeInt(output.length);
+            reply.write(output);
+            reply.flush();
+        } catch (IOException e) {
+            // The client went away; nothing is left to tell it
+        }
+    }
+
+    // Reads one request, builds it and prints the results; returns how many files failed
+    private int build(DataInputStream in, PrintStream out) throws IOException {
+        boolean printTokens = in.readBoolean();
+        boolean printAst = in.readBoolean();
+        boolean optimize = in.readBoolean();
+        boolean run = in.readBoolean();
+        boolean interpret = in.readBoolean();
+        String syntaxDirectory = in.readUTF();
+        Path workingDirectory = Path.of(in.readUTF());
+        CompileOptions options = new CompileOptions(printTokens, printAst, optimize, run, interpret,
+                syntaxDirectory.isEmpty() ? null : workingDirectory.resolve(syntaxDirectory));
+        int count = in.readInt();
+        List<Path> names = new ArrayList<>(count);
+        List<Path> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Path name = Path.of(in.readUTF());
+            names.add(name);
+            files.add(workingDirectory.resolve(name));
+        }
+
+        List<BuildDriver.FileResult> results =
+                new BuildDriver(options, parallelism, cache, CompilerMetrics.DISABLED).build(files);
+        // Report files under the names the client gave them
+        for (int i = 0; i < results.size(); i++) {
+            BuildDriver.FileResult result = results.get(i);
+            results.set(i, new BuildDriver.FileResult(names.get(i), result.output(), result.failed()));
+        }
+        return BuildDriver.print(results, out);
+    }
+
+    /** What a build on the server printed, and whether any of its files failed. */
+    public record Reply(String output, boolean failed) {
+    }
+
+    /**
+     * Has the server listening on {@code socket} build {@code files}, and
+     * returns its reply, or null if no server is listening there. Relative
+     * paths are resolved against this process's working directory, not the
+     * server's.
+     */
+    public static Reply request(Path socket, CompileOptions options, List<Path> files) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (SocketException e) {
+            return null;
+        }
+        try (channel) {
+            return exchange(channel, options, files);
+        } catch (EOFException e) {
+            return new Reply("Build failed: the compile server closed the connection before it replied"
+                    + System.lineSeparator(), true);
+        } catch (IOException e) {
+            // The server is there but the connection broke, such as when it
+            // closes the connection before reading the whole request
+            return new Reply("Build failed: lost the connection to the compile server: " + e.getMessage()
+                    + System.lineSeparator(), true);
+        }
+    }
+
+    private static Reply exchange(SocketChannel channel, CompileOptions options, List<Path> files)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+        out.writeBoolean(options.printTokens());
+        out.writeBoolean(options.printAst());
+        out.writeBoolean(options.optimize());
+        out.writeBoolean(options.run());
+        out.writeBoolean(options.interpret());
+        out.writeUTF(options.syntaxDirectory() != null ? options.syntaxDirectory().toString() : "");
+        out.writeUTF(Path.of("").toAbsolutePath().toString());
+        out.writeInt(files.size());
+        for (Path file : files) {
+            out.writeUTF(file.toString());
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        boolean failed = in.readBoolean();
+        byte[] output = new byte[in.readInt()];
+        in.readFully(output);
+        return new Reply(new String(output, StandardCharsets.UTF_8), failed);
+    }
+
+    // Virtual threads are final from Java 21 on; look them up so that this
+    // still runs on 17, where builds get pooled platform threads instead
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threads = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "compile-server-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Per-phase totals for a build: wall time, bytes and tokens processed,
+ * diagnostics and bytes allocated by the compiling thread. Every finished
+ * phase is also committed as a {@link PhaseEvent} when a JFR recording has
+ * that event enabled.
+ * <p>
+ * With the summary off and no recording, {@link #start} returns null
+ * without reading any clock, so the instrumentation costs one branch per
+ * phase. Totals are shared by all build threads.
+ */
+public final class CompilerMetrics {
+    public enum Phase {
+        READ, LEX, PARSE, OPTIMIZE, EXECUTE
+    }
+
+    /** Records nothing, but still feeds JFR when it is recording. */
+    public static final CompilerMetrics DISABLED = new CompilerMetrics(false);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int COUNT = 0;
+    private static final int NANOS = 1;
+    private static final int BYTES = 2;
+    private static final int TOKENS = 3;
+    private static final int DIAGNOSTICS = 4;
+    private static final int ALLOCATED = 5;
+
+    private final boolean enabled;
+    private final long[][] totals = new long[Phase.values().length][ALLOCATED + 1];
+
+    public CompilerMetrics() {
+        this(true);
+    }
+
+    private CompilerMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** A phase in progress, from {@link #start} to {@link #finish}. */
+    public static final class Span {
+        private final Phase phase;
+        private final Path file;
+        private final PhaseEvent event;
+        private final long startNanos;
+        private final long startAllocated;
+
+        private Span(Phase phase, Path file, PhaseEvent event) {
+            this.phase = phase;
+            this.file = file;
+            this.event = event;
+            this.startAllocated = THREADS.getCurrentThreadAllocatedBytes();
+            this.startNanos = System.nanoTime();
+            event.begin();
+        }
+    }
+
+    /** Starts timing a phase, or returns null if nobody is listening. */
+    public Span start(Phase phase, Path file) {
+        PhaseEvent event = new PhaseEvent();
+        if (!enabled && !event.isEnabled()) {
+            return null;
+        }
+        return new Span(phase, file, event);
+    }
+
+    /** Ends a phase started by {@link #start}; does nothing for null. */
+    public void finish(Span span, long bytes, long tokens, int diagnostics) {
+        if (span == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - span.startNanos;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - span.startAllocated;
+        PhaseEvent event = span.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = span.phase.name();
+            event.file = span.file == null ? null : span.file.toString();
+            event.bytes = bytes;
+            event.tokens = tokens;
+            event.diagnostics = diagnostics;
+            event.allocated = allocated;
+            event.commit();
+        }
+        if (enabled) {
+            synchronized (totals) {
+                long[] phase = totals[span.phase.ordinal()];
+                phase[COUNT]++;
+                phase[NANOS] += nanos;
+                phase[BYTES] += bytes;
+                phase[TOKENS] += tokens;
+                phase[DIAGNOSTICS] += diagnostics;
+                phase[ALLOCATED] += allocated;
+            }
+        }
+    }
+
+    /**
+     * The totals as a JSON object, together with the file counts and the
+     * wall time of the whole build. Phase times are summed over threads, so
+     * with parallel builds they can add up to more than the wall time.
+     */
+    public String toJson(int files, int failed, long wallNanos) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"files\":").append(files)
+                .append(",\"failed\":").append(failed)
+                .append(",\"wallNanos\":").append(wallNanos)
+                .append(",\"phases\":[");
+        synchronized (totals) {
+            for (Phase phase : Phase.values()) {
+                long[] total = totals[phase.ordinal()];
+                if (phase.ordinal() > 0) {
+                    json.append(',');
+                }
+                double seconds = total[NANOS] / 1e9;
+                json.append("{\"phase\":\"").append(phase).append('"')
+                        .append(",\"count\":").append(total[COUNT])
+                        .append(",\"nanos\":").append(total[NANOS])
+                        .append(",\"bytes\":").append(total[BYTES])
+                        .append(",\"tokens\":").append(total[TOKENS])
+                        .append(",\"tokensPerSecond\":")
+                        .append(String.format(Locale.ROOT, "%.0f", seconds > 0 ? total[TOKENS] / seconds : 0.0))
+                        .append(",\"diagnostics\":").append(total[DIAGNOSTICS])
+                        .append(",\"allocatedBytes\":").append(total[ALLOCATED])
+                        .append('}');
+            }
+        }
+        return json.append("]}").toString();
+    }
+}
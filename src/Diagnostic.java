@@ -0,0 +1,16 @@
+/**
+ * An error found in a source file, located by the offset and length of the
+ * text it refers to. Line and column are only worked out when the
+ * diagnostic is shown, through a {@link LineMap}.
+ */
+public record Diagnostic(int start, int length, String message) {
+    /** The diagnostic as "line:column: message". */
+    public String format(LineMap lines) {
+        return lines.position(start) + ": " + message;
+    }
+
+    @Override
+    public String toString() {
+        return "offset " + start + ": " + message;
+    }
+}
@@ -0,0 +1,562 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Source text kept in sync with its tokens and syntax tree across edits, for
+ * editor integration. An edit re-lexes from the token before the change until
+ * the new tokens line up with the old ones again, then re-parses only the
+ * statements of the innermost block that encloses the changed tokens, until
+ * the parser is back on an old statement boundary.
+ * <p>
+ * The remaining per-edit work that grows with the file is moving token and
+ * node offsets after the change, which are plain array passes.
+ * <p>
+ * Statements with errors are left out of the tree, which keeps only what
+ * parsed cleanly, and their diagnostics are kept by offset. A re-parse
+ * replaces the diagnostics of the statements it went over and keeps the
+ * rest, so edits stay local while the text has errors somewhere. A full
+ * parse is used instead when a statement left out may have declared a
+ * name, when the change adds or removes a variable declaration (later
+ * statements are parsed differently depending on which names are
+ * declared), and now and then to drop nodes that earlier edits left
+ * unreachable in the arena. Array indexes are checked against the whole
+ * tree, so that check waits until the tree or the diagnostics are asked
+ * for.
+ */
+public final class IncrementalDocument {
+    private final StringBuilder text;
+    private final NameTable names = new NameTable();
+    private final TokenBuffer tokens;
+    // Every statement that parsed without errors, or null when the ones left
+    // out may have declared names
+    private Ast ast;
+    private StatementSpans spans;
+    // Errors of the statements left out of the tree, in source order
+    private List<Diagnostic> errors = List.of();
+    private List<Diagnostic> boundsErrors = List.of();
+    private LineMap lines;
+    private int liveNodes;
+    // The tree changed since indexes were last checked
+    private boolean boundsPending;
+
+    public IncrementalDocument(CharSequence source) {
+        this.text = new StringBuilder(source);
+        this.tokens = new Lexer(text, names).tokenize();
+        parseFully();
+    }
+
+    /** What an edit cost: tokens produced by the lexer and tokens the parser went over. */
+    public record EditResult(int relexedTokens, int reparsedTokens, boolean fullParse) {
+    }
+
+    public CharSequence text() {
+        return text;
+    }
+
+    public TokenBuffer tokens() {
+        return tokens;
+    }
+
+    /** The current tree, or null if the text does not parse; see {@link #diagnostics()}. */
+    public Ast ast() {
+        return diagnostics().isEmpty() ? ast : null;
+    }
+
+    public List<Diagnostic> diagnostics() {
+        checkBounds();
+        return errors.isEmpty() ? boundsErrors : errors;
+    }
+
+    // An index can go out of bounds through an edit anywhere, so this looks at
+    // the whole tree, once it has no statements left out
+    private void checkBounds() {
+        if (boundsPending) {
+            boundsPending = false;
+            boundsErrors = errors.isEmpty() ? List.copyOf(BoundsAnalysis.analyze(ast).errors()) : List.of();
+        }
+    }
+
+    /** Line starts of the current text, rebuilt on first use after an edit. */
+    public LineMap lines() {
+        if (lines == null) {
+            lines = LineMap.of(text);
+        }
+        return lines;
+    }
+
+    /**
+     * Replaces {@code removedLength} characters at {@code offset} with
+     * {@code inserted} and brings tokens and tree up to date.
+     */
+    public EditResult edit(int offset, int removedLength, CharSequence inserted) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removedLength + " outside text of length "
+                    + text.length());
+        }
+        int oldEnd = offset + removedLength;
+        int delta = inserted.length() - removedLength;
+
+        // A string literal's token starts after the identifier the lexer began
+        // scanning it at, so it is not a safe place to restart.
+        int first = lastTokenBefore(offset);
+        while (first >= 0 && tokens.type(first) == TokenType.STRING_LITERAL) {
+            first--;
+        }
+        int restart = first >= 0 ? tokens.start(first) : 0;
+        first = Math.max(first, 0);
+
+        text.replace(offset, oldEnd, inserted.toString());
+        lines = null;
+
+        TokenBuffer fresh = new TokenBuffer(text, names, 16);
+        Lexer lexer = new Lexer(text, names, restart);
+        int resync = first;
+        while (true) {
+            TokenType type = lexer.next();
+            int start = lexer.tokenStart();
+            int length = lexer.tokenLength();
+            // Past the edit, stop at the first token identical to an old one
+            if (start >= offset + inserted.length() && type != TokenType.STRING_LITERAL) {
+                int oldStart = start - delta;
+                while (resync < tokens.size() - 1 && tokens.start(resync) < oldStart) {
+                    resync++;
+                }
+                if (tokens.start(resync) == oldStart && tokens.type(resync) == type
+                        && tokens.length(resync) == length) {
+                    break;
+                }
+            }
+            fresh.add(type, start, length, lexer.tokenName());
+            if (type == TokenType.EOF) {
+                resync = tokens.size();
+                break;
+            }
+        }
+
+        // Narrow the replaced range down to the tokens that really changed
+        int replaced = resync - first;
+        int prefix = 0;
+        while (prefix < replaced && prefix < fresh.size() && sameToken(first + prefix, fresh, prefix, 0)
+                && (tokens.start(first + prefix) + tokens.length(first + prefix) <= offset
+                || !hasOwnText(tokens.type(first + prefix)))) {
+            prefix++;
+        }
+        // Tokens after the edit count as unchanged only if they were entirely
+        // after it, so that they move by exactly delta like the tree's offsets
+        int suffix = 0;
+        while (suffix < replaced - prefix && suffix < fresh.size() - prefix
+                && tokens.start(resync - 1 - suffix) >= oldEnd
+                && sameToken(resync - 1 - suffix, fresh, fresh.size() - 1 - suffix, delta)) {
+            suffix++;
+        }
+        int oldFrom = first + prefix;
+        int oldTo = resync - suffix;
+        int tokenDelta = fresh.size() - replaced;
+
+        boolean unchanged = oldFrom == oldTo && tokenDelta == 0;
+        Region region = ast != null && !unchanged ? findRegion(oldFrom, oldTo) : null;
+
+        tokens.replace(first, resync, fresh, delta);
+        if (ast != null) {
+            ast.shiftPositions(oldEnd, delta);
+            spans.shift(ast.size(), oldTo, tokenDelta);
+        }
+        // Errors on removed text go and the re-parse reports them again. They
+        // sit on token starts, so when no token changed they only move.
+        int removed = unchanged ? oldEnd : offset;
+        errors = shift(errors, removed, oldEnd, delta);
+        boundsErrors = shift(boundsErrors, removed, oldEnd, delta);
+
+        if (unchanged) {
+            // Only whitespace moved
+            return new EditResult(fresh.size(), 0, false);
+        }
+        if (region == null || !reparse(region, oldTo, tokenDelta)) {
+            parseFully();
+            return new EditResult(fresh.size(), tokens.size(), true);
+        }
+        if (ast.size() > 2 * liveNodes + 4096) {
+            parseFully();
+            return new EditResult(fresh.size(), tokens.size(), true);
+        }
+        boundsPending = true;
+        return new EditResult(fresh.size(), region.parsedTokens, false);
+    }
+
+    // Drops the diagnostics from offset from to offset to and moves those after
+    private static List<Diagnostic> shift(List<Diagnostic> diagnostics, int from, int to, int delta) {
+        List<Diagnostic> shifted = new ArrayList<>(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.start() < from || diagnostic.start() >= to) {
+                int start = diagnostic.start() >= to ? diagnostic.start() + delta : diagnostic.start();
+                shifted.add(new Diagnostic(start, diagnostic.length(), diagnostic.message()));
+            }
+        }
+        return List.copyOf(shifted);
+    }
+
+    private boolean sameToken(int index, TokenBuffer fresh, int freshIndex, int delta) {
+        return tokens.type(index) == fresh.type(freshIndex)
+                && tokens.start(index) + delta == fresh.start(freshIndex)
+                && tokens.length(index) == fresh.length(freshIndex)
+                && (tokens.type(index) != TokenType.IDENTIFIER || tokens.nameId(index) == fresh.nameId(freshIndex));
+    }
+
+    // Literals with the same type and range can still differ in their text
+    private static boolean hasOwnText(TokenType type) {
+        return type == TokenType.INTEGER_LITERAL || type == TokenType.FLOAT_LITERAL
+                || type == TokenType.STRING_LITERAL || type == TokenType.ERROR;
+    }
+
+    // Index of the last token starting before offset, or -1
+    private int lastTokenBefore(int offset) {
+        int low = 0;
+        int high = tokens.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (tokens.start(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Statements to re-parse: everything in the list of {@code parent} after
+     * {@code previous} (or from the start of the list), up to where the parser
+     * lines up with one of {@code following} again.
+     */
+    private static final class Region {
+        int parent;
+        int previous = Ast.NONE;
+        int start;
+        int end;
+        final List<Integer> following = new ArrayList<>();
+        // Statements whose blocks lead from the root down to parent, and those blocks
+        final List<Integer> enclosing = new ArrayList<>();
+        final List<Integer> blocks = new ArrayList<>();
+        // following before this index lie in the change and are always replaced
+        int resumable;
+        int parsedTokens;
+    }
+
+    // Works in token indexes from before the edit
+    private Region findRegion(int oldFrom, int oldTo) {
+        Region region = new Region();
+        region.parent = ast.root();
+        region.start = 0;
+        region.end = tokens.size() - 1;
+
+        // Descend while the change lies inside one block of a statement
+        int block = region.parent;
+        while (block != Ast.NONE) {
+            region.parent = block;
+            if (block != ast.root()) {
+                region.start = spans.first(block) + 1;
+                region.end = spans.end(block) - 1;
+            }
+            block = Ast.NONE;
+            for (int statement = ast.first(region.parent); statement != Ast.NONE; statement = ast.next(statement)) {
+                if (spans.end(statement) >= oldFrom) {
+                    block = enclosingBlock(statement, oldFrom, oldTo);
+                    if (block != Ast.NONE) {
+                        region.enclosing.add(statement);
+                        region.blocks.add(block);
+                    }
+                    break;
+                }
+            }
+        }
+
+        // The statement before the change is only safe if the token after it did not change
+        for (int statement = ast.first(region.parent); statement != Ast.NONE; statement = ast.next(statement)) {
+            if (spans.end(statement) < oldFrom) {
+                region.previous = statement;
+                region.start = spans.end(statement);
+            } else {
+                if (spans.first(statement) < oldTo) {
+                    region.resumable = region.following.size() + 1;
+                }
+                region.following.add(statement);
+            }
+        }
+        return region;
+    }
+
+    private int enclosingBlock(int statement, int oldFrom, int oldTo) {
+        switch (ast.kind(statement)) {
+            case FUNC -> {
+                return encloses(ast.second(statement), oldFrom, oldTo) ? ast.second(statement) : Ast.NONE;
+            }
+            case FOR -> {
+                return encloses(ast.third(statement), oldFrom, oldTo) ? ast.third(statement) : Ast.NONE;
+            }
+            case IF -> {
+                int branch = statement;
+                for (; ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    if (encloses(ast.second(branch), oldFrom, oldTo)) {
+                        return ast.second(branch);
+                    }
+                    if (ast.third(branch) == Ast.NONE) {
+                        return Ast.NONE;
+                    }
+                }
+                return encloses(branch, oldFrom, oldTo) ? branch : Ast.NONE;
+            }
+            default -> {
+                return Ast.NONE;
+            }
+        }
+    }
+
+    // Both braces of the block lie outside the changed tokens
+    private boolean encloses(int block, int oldFrom, int oldTo) {
+        return spans.first(block) < oldFrom && spans.end(block) - 1 >= oldTo;
+    }
+
+    /**
+     * Parses the region again and splices the new statements in. Returns
+     * false when only a full parse can give the right tree.
+     */
+    private boolean reparse(Region region, int oldTo, int tokenDelta) {
+        // Indexes are after the edit from here on
+        int end = region.parent == ast.root() ? tokens.size() - 1 : region.end + tokenDelta;
+        int changeEnd = oldTo + tokenDelta;
+
+        SymbolTable symbols = symbolsAt(region);
+        int visible = symbols.size();
+        Parser parser = new Parser(tokens.reader(region.start), ast, symbols, spans, region.start, nesting(region));
+        int firstNew = Ast.NONE;
+        int lastNew = Ast.NONE;
+        int resume = region.resumable;
+        int next = Ast.NONE;
+        try {
+            while (true) {
+                int index = parser.tokenIndex();
+                while (resume < region.following.size() && spans.first(region.following.get(resume)) < index) {
+                    resume++;
+                }
+                if (resume < region.following.size() && index >= changeEnd
+                        && spans.first(region.following.get(resume)) == index) {
+                    next = region.following.get(resume);
+                    break;
+                }
+                if (index >= end) {
+                    if (index > end) {
+                        return false;
+                    }
+                    resume = region.following.size();
+                    break;
+                }
+                // The block now closes early, so its statement ends somewhere else
+                if (region.parent != ast.root() && tokens.type(index) == TokenType.RIGHT_BRACE) {
+                    return false;
+                }
+                int statement = parseClean(parser);
+                if (statement != Ast.NONE) {
+                    if (lastNew == Ast.NONE) {
+                        firstNew = statement;
+                    } else {
+                        ast.setNext(lastNew, statement);
+                    }
+                    lastNew = statement;
+                }
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+        region.parsedTokens = parser.tokenIndex() - region.start;
+
+        // Later statements depend on which names are declared before them, and
+        // as what; those declared in the list itself stay visible after it
+        List<Integer> oldDeclarations = new ArrayList<>();
+        List<Integer> oldListed = new ArrayList<>();
+        for (int i = 0; i < resume; i++) {
+            collectDeclarations(region.following.get(i), oldDeclarations);
+            collectListed(region.following.get(i), oldListed);
+        }
+        List<Integer> newDeclarations = new ArrayList<>();
+        List<Integer> newListed = new ArrayList<>();
+        for (int statement = firstNew; statement != Ast.NONE; statement = ast.next(statement)) {
+            collectDeclarations(statement, newDeclarations);
+            collectListed(statement, newListed);
+        }
+        // The parser declares names even for declarations that failed, which the tree leaves out
+        if (!sameDeclarations(oldDeclarations, newDeclarations) || !sameDeclarations(oldListed, newListed)
+                || symbols.size() != visible + newListed.size()) {
+            return false;
+        }
+        int after = region.start == 0 ? 0 : tokens.start(region.start - 1) + tokens.length(region.start - 1);
+        replaceErrors(after, tokens.start(parser.tokenIndex()), parser.getDiagnostics());
+
+        if (lastNew != Ast.NONE) {
+            ast.setNext(lastNew, next);
+        } else {
+            firstNew = next;
+        }
+        if (region.previous == Ast.NONE) {
+            ast.setFirst(region.parent, firstNew);
+        } else {
+            ast.setNext(region.previous, firstNew);
+        }
+        return true;
+    }
+
+    /**
+     * Parses the next statement of a list, or returns NONE for one that had
+     * errors, which leaves the tree only holding statements that parsed
+     * cleanly and whose ends are where the parser went on.
+     */
+    private static int parseClean(Parser parser) {
+        int errors = parser.getDiagnostics().size();
+        int statement = parser.parseNextStatement();
+        return parser.getDiagnostics().size() == errors ? statement : Ast.NONE;
+    }
+
+    /**
+     * Replaces the errors from {@code start}, the end of the token before the
+     * re-parsed ones, to {@code end}, the start of the token after them, with
+     * those found there now. An error at the token after a statement is that
+     * statement's, so the end is included.
+     */
+    private void replaceErrors(int start, int end, List<Diagnostic> found) {
+        List<Diagnostic> merged = new ArrayList<>(errors.size() + found.size());
+        int i = 0;
+        while (i < errors.size() && errors.get(i).start() < start) {
+            merged.add(errors.get(i++));
+        }
+        merged.addAll(found);
+        while (i < errors.size() && errors.get(i).start() <= end) {
+            i++;
+        }
+        merged.addAll(errors.subList(i, errors.size()));
+        errors = List.copyOf(merged);
+    }
+
+    /**
+     * Names visible where the region starts: the declarations before it in
+     * every enclosing statement list, and the header of every enclosing for
+     * loop. Names cannot be shadowed, so one scope holds them all.
+     */
+    private SymbolTable symbolsAt(Region region) {
+        SymbolTable symbols = new SymbolTable();
+        int list = ast.root();
+        for (int i = 0; i < region.enclosing.size(); i++) {
+            int statement = region.enclosing.get(i);
+            declareBefore(symbols, ast.first(list), statement);
+            if (ast.kind(statement) == NodeKind.FOR) {
+                declare(symbols, ast.first(statement));
+            }
+            list = region.blocks.get(i);
+        }
+        int stop = region.previous == Ast.NONE ? ast.first(list) : ast.next(region.previous);
+        declareBefore(symbols, ast.first(list), stop);
+        return symbols;
+    }
+
+    // Blocks around the region, counted as the parser counts them
+    private int nesting(Region region) {
+        return region.blocks.size();
+    }
+
+    private void declareBefore(SymbolTable symbols, int statement, int stop) {
+        for (; statement != stop && statement != Ast.NONE; statement = ast.next(statement)) {
+            declare(symbols, statement);
+        }
+    }
+
+    private void declare(SymbolTable symbols, int node) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        boolean isFloat = ast.second(node) == TokenType.FLOAT.ordinal();
+        if (ast.kind(node) == NodeKind.VAR_DECL) {
+            symbols.declare(ast.first(node), isFloat ? ValueType.FLOAT : ValueType.INT);
+        } else if (ast.kind(node) == NodeKind.ARRAY_DECL) {
+            symbols.declare(ast.first(node), isFloat ? ValueType.FLOAT_ARRAY : ValueType.INT_ARRAY);
+        }
+    }
+
+    // A declaration made by a statement of the list itself rather than inside one of its blocks
+    private void collectListed(int statement, List<Integer> out) {
+        if (ast.kind(statement) == NodeKind.VAR_DECL || ast.kind(statement) == NodeKind.ARRAY_DECL) {
+            out.add(statement);
+        }
+    }
+
+    private void collectDeclarations(int node, List<Integer> out) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case VAR_DECL, ARRAY_DECL -> out.add(node);
+            case BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    collectDeclarations(statement, out);
+                }
+            }
+            case FUNC -> collectDeclarations(ast.second(node), out);
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    collectDeclarations(ast.second(branch), out);
+                }
+                collectDeclarations(branch, out);
+            }
+            case FOR -> {
+                collectDeclarations(ast.first(node), out);
+                collectDeclarations(ast.third(node), out);
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Same names in the same order, each still a variable or an array of the same element type
+    private boolean sameDeclarations(List<Integer> a, List<Integer> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            int before = a.get(i);
+            int after = b.get(i);
+            if (ast.first(before) != ast.first(after) || ast.kind(before) != ast.kind(after)
+                    || ast.second(before) != ast.second(after)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parseFully() {
+        spans = new StatementSpans();
+        SymbolTable symbols = new SymbolTable();
+        ast = new Ast(names, text);
+        Parser parser = new Parser(tokens.reader(), ast, symbols, spans, 0, 0);
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        List<Integer> listed = new ArrayList<>();
+        while (parser.tokenIndex() < tokens.size() - 1) {
+            int statement = parseClean(parser);
+            if (statement != Ast.NONE) {
+                collectListed(statement, listed);
+                if (last == Ast.NONE) {
+                    first = statement;
+                } else {
+                    ast.setNext(last, statement);
+                }
+                last = statement;
+            }
+        }
+        ast.setRoot(ast.add(NodeKind.PROGRAM, 0, first, Ast.NONE, Ast.NONE));
+        errors = List.copyOf(parser.getDiagnostics());
+        boundsPending = true;
+        liveNodes = ast.size();
+        // A statement left out may have declared a name that later edits would not know about
+        if (symbols.size() != listed.size()) {
+            ast = null;
+        }
+    }
+}
@@ -0,0 +1,570 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a parsed program to JVM bytecode and runs it as a hidden class,
+ * so loops execute as JIT-compiled code. Globals become static fields,
+ * every FUNC becomes a static method with its own variables in JVM locals,
+ * and the top-level statements form a static {@code run} method that ends
+ * by calling {@code main} when the program declares one.
+ */
+public final class JvmBackend {
+    private static final String CLASS_NAME = "GoProgram";
+    private static final String RUN_METHOD = "run";
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int LCONST_0 = 0x09;
+    private static final int LCONST_1 = 0x0A;
+    private static final int DCONST_0 = 0x0E;
+    private static final int DCONST_1 = 0x0F;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int LLOAD = 0x16;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int LALOAD = 0x2F;
+    private static final int DALOAD = 0x31;
+    private static final int LSTORE = 0x37;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE = 0x3A;
+    private static final int LASTORE = 0x50;
+    private static final int DASTORE = 0x52;
+    private static final int DUP = 0x59;
+    private static final int LADD = 0x61;
+    private static final int DADD = 0x63;
+    private static final int LSUB = 0x65;
+    private static final int DSUB = 0x67;
+    private static final int LMUL = 0x69;
+    private static final int DMUL = 0x6B;
+    private static final int LDIV = 0x6D;
+    private static final int DDIV = 0x6F;
+    private static final int LNEG = 0x75;
+    private static final int DNEG = 0x77;
+    private static final int I2L = 0x85;
+    private static final int L2I = 0x88;
+    private static final int L2D = 0x8A;
+    private static final int D2L = 0x8F;
+    private static final int LCMP = 0x94;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9A;
+    private static final int IFLT = 0x9B;
+    private static final int IFGE = 0x9C;
+    private static final int IFGT = 0x9D;
+    private static final int IFLE = 0x9E;
+    private static final int GOTO = 0xA7;
+    private static final int RETURN = 0xB1;
+    private static final int GETSTATIC = 0xB2;
+    private static final int PUTSTATIC = 0xB3;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int NEWARRAY = 0xBC;
+    private static final int ARRAYLENGTH = 0xBE;
+
+    private static final int T_DOUBLE = 7;
+    private static final int T_LONG = 11;
+
+    // Kinds of expression task; see runTasks
+    private static final byte VALUE = 0;
+    private static final byte BRANCH = 1;
+    private static final byte OP = 2;
+    private static final byte INDEXED = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte COMPARE = 5;
+    private static final byte TEST = 6;
+    private static final byte PLACE = 7;
+
+    private final Ast ast;
+    private final Bindings bindings;
+    private final BoundsAnalysis bounds;
+    private final ClassFileWriter writer = new ClassFileWriter(CLASS_NAME);
+    private final int[] localSlots;
+    private final String[] fieldNames;
+    private ClassFileWriter.Code code;
+    private byte[] taskKinds = new byte[16];
+    private int[] taskNodes = new int[16];
+    private int[] taskArguments = new int[16];
+    private int[] taskFlags = new int[16];
+    private int taskCount;
+
+    public JvmBackend(Ast ast) {
+        this.ast = ast;
+        this.bindings = Bindings.resolve(ast);
+        this.bounds = BoundsAnalysis.analyze(ast);
+        this.localSlots = new int[bindings.variableCount()];
+        Arrays.fill(localSlots, -1);
+        // Globals declared by sibling top-level blocks can share a name
+        this.fieldNames = new String[bindings.variableCount()];
+        Set<String> taken = new HashSet<>();
+        for (int global : bindings.globals()) {
+            String name = bindings.name(global);
+            fieldNames[global] = taken.add(name) ? name : name + "$" + global;
+        }
+    }
+
+    public byte[] compile() {
+        for (int global : bindings.globals()) {
+            writer.addField(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC,
+                    fieldNames[global], descriptor(bindings.type(global)));
+        }
+        for (int function : bindings.functions()) {
+            compileFunction(function);
+        }
+
+        code = new ClassFileWriter.Code(0);
+        compileList(ast.first(ast.root()));
+        int main = bindings.mainFunction();
+        if (main != Ast.NONE) {
+            code.op(INVOKESTATIC, writer.methodRef(CLASS_NAME, methodName(main), "()V"), 2, 0);
+        }
+        code.op(RETURN, 0);
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, RUN_METHOD, "()V", code);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Compiles and runs the program, returning the final value of every
+     * global variable by name in order of first appearance. Of several
+     * globals with one name, the last declared is reported.
+     */
+    public Map<String, Object> run() {
+        byte[] classBytes = compile();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            Class<?> program = lookup.lookupClass();
+            lookup.findStatic(program, RUN_METHOD, MethodType.methodType(void.class)).invoke();
+
+            Map<String, Object> globals = new LinkedHashMap<>();
+            for (int global : bindings.globals()) {
+                globals.put(bindings.name(global), lookup.findStaticGetter(program, fieldNames[global],
+                        javaType(bindings.type(global))).invoke());
+            }
+            return globals;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void compileFunction(int function) {
+        List<Integer> locals = bindings.locals(function);
+        int slot = 0;
+        for (int variable : locals) {
+            localSlots[variable] = slot;
+            slot += bindings.type(variable).isArray() ? 1 : 2;
+        }
+
+        code = new ClassFileWriter.Code(slot);
+        // Locals are zeroed up front so every load is preceded by a store on
+        // all paths, as the verifier requires.
+        for (int variable : locals) {
+            pushZero(bindings.type(variable));
+            store(variable);
+        }
+        compileList(ast.first(ast.second(function)));
+        code.op(RETURN, 0);
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, methodName(function), "()V", code);
+    }
+
+    private void compileList(int node) {
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            compileStatement(node);
+        }
+    }
+
+    private void compileStatement(int node) {
+        switch (ast.kind(node)) {
+            case BLOCK -> compileList(ast.first(node));
+            case VAR_DECL -> {
+                int variable = bindings.variable(node);
+                ValueType type = bindings.type(variable);
+                if (ast.third(node) != Ast.NONE) {
+                    compileExpression(ast.third(node), type);
+                } else {
+                    pushZero(type);
+                }
+                store(variable);
+            }
+            case ARRAY_DECL -> compileArrayDeclaration(node);
+            case ASSIGN -> {
+                int variable = bindings.variable(node);
+                compileExpression(ast.second(node), bindings.type(variable));
+                store(variable);
+            }
+            case ARRAY_ASSIGN -> {
+                int variable = bindings.variable(node);
+                ValueType type = bindings.arrayType(variable);
+                load(variable);
+                compileIndex(node, variable, ast.second(node));
+                compileExpression(ast.third(node), type.elementType());
+                code.op(type == ValueType.INT_ARRAY ? LASTORE : DASTORE, -4);
+            }
+            case INCREMENT, DECREMENT -> {
+                int variable = bindings.variable(node);
+                ValueType type = bindings.type(variable);
+                load(variable);
+                if (type == ValueType.INT) {
+                    code.op(LCONST_1, 2);
+                    code.op(ast.kind(node) == NodeKind.INCREMENT ? LADD : LSUB, -2);
+                } else {
+                    code.op(DCONST_1, 2);
+                    code.op(ast.kind(node) == NodeKind.INCREMENT ? DADD : DSUB, -2);
+                }
+                store(variable);
+            }
+            case IF -> {
+                // Else-if chains can be long, so they are followed in a loop
+                int endLabel = code.newLabel();
+                int branch = node;
+                while (branch != Ast.NONE && ast.kind(branch) == NodeKind.IF) {
+                    int elseLabel = code.newLabel();
+                    if (ast.first(branch) != Ast.NONE) {
+                        compileBranch(ast.first(branch), elseLabel, false);
+                    }
+                    compileStatement(ast.second(branch));
+                    if (ast.third(branch) != Ast.NONE) {
+                        code.branch(GOTO, endLabel, 0);
+                    }
+                    code.place(elseLabel);
+                    branch = ast.third(branch);
+                }
+                if (branch != Ast.NONE) {
+                    compileStatement(branch);
+                }
+                code.place(endLabel);
+            }
+            case FOR -> {
+                if (ast.first(node) != Ast.NONE) {
+                    compileStatement(ast.first(node));
+                }
+                int conditionLabel = code.newLabel();
+                int endLabel = code.newLabel();
+                code.place(conditionLabel);
+                compileBranch(ast.second(node), endLabel, false);
+                compileStatement(ast.third(node));
+                if (ast.value(node) != Ast.NONE) {
+                    compileStatement((int) ast.value(node));
+                }
+                code.branch(GOTO, conditionLabel, 0);
+                code.place(endLabel);
+            }
+            case FUNC -> {
+                // Compiled as a method of its own
+            }
+            default -> throw new RuntimeException(ast.kind(node) + " statements cannot be executed.");
+        }
+    }
+
+    private void compileArrayDeclaration(int node) {
+        int variable = bindings.variable(node);
+        ValueType type = bindings.arrayType(variable);
+        pushInt((int) ast.value(node));
+        code.op(NEWARRAY, type == ValueType.INT_ARRAY ? T_LONG : T_DOUBLE, 1, 0);
+        int index = 0;
+        for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+            code.op(DUP, 1);
+            pushInt(index++);
+            compileExpression(element, type.elementType());
+            code.op(type == ValueType.INT_ARRAY ? LASTORE : DASTORE, -4);
+        }
+        store(variable);
+    }
+
+    private void compileExpression(int node, ValueType wanted) {
+        int base = taskCount;
+        pushTask(VALUE, node, wanted.ordinal(), 0);
+        runTasks(base);
+    }
+
+    /**
+     * Evaluates a condition and jumps to {@code label} when its truth equals
+     * {@code jumpIf}, falling through otherwise. Any non-zero value is true.
+     */
+    private void compileBranch(int node, int label, boolean jumpIf) {
+        int base = taskCount;
+        pushTask(BRANCH, node, label, jumpIf ? 1 : 0);
+        runTasks(base);
+    }
+
+    // Expressions can nest deeper than the Java stack allows, so they are
+    // compiled from a stack of tasks: a node to compile, or code to emit once
+    // the operands pushed after it are done. Operands are pushed last-first.
+    private void runTasks(int base) {
+        while (taskCount > base) {
+            taskCount--;
+            int node = taskNodes[taskCount];
+            int a = taskArguments[taskCount];
+            int b = taskFlags[taskCount];
+            switch (taskKinds[taskCount]) {
+                case VALUE -> compileValue(node, a);
+                case BRANCH -> compileCondition(node, a, b != 0);
+                case OP -> code.op(a, b);
+                case INDEXED -> {
+                    int variable = bindings.variable(node);
+                    compileIndexCheck(node, variable);
+                    code.op(bindings.arrayType(variable) == ValueType.INT_ARRAY ? LALOAD : DALOAD, 0);
+                }
+                case BOOLEAN -> {
+                    code.op(LCONST_1, 2);
+                    code.branch(GOTO, b, 0);
+                    code.place(a);
+                    code.op(LCONST_0, 2);
+                    code.place(b);
+                }
+                case COMPARE -> {
+                    TokenType operator = ast.operator(node);
+                    if (comparisonType(node) == ValueType.INT) {
+                        code.op(LCMP, -3);
+                    } else {
+                        // Pick the NaN result that makes the comparison false
+                        boolean lessThan = operator == TokenType.LESS_THAN || operator == TokenType.LESS_THAN_OR_EQUAL;
+                        code.op(lessThan ? DCMPG : DCMPL, -3);
+                    }
+                    int comparison = comparisonOpcode(operator);
+                    code.branch(b != 0 ? comparison : negate(comparison), a, -1);
+                }
+                case TEST -> {
+                    if (bindings.expressionType(node) == ValueType.INT) {
+                        code.op(LCONST_0, 2);
+                        code.op(LCMP, -3);
+                    } else {
+                        code.op(DCONST_0, 2);
+                        code.op(DCMPL, -3);
+                    }
+                    code.branch(b != 0 ? IFNE : IFEQ, a, -1);
+                }
+                default -> code.place(a);
+            }
+        }
+    }
+
+    // Pushes the value of node converted to the wanted type, or as it is for -1
+    private void compileValue(int node, int wanted) {
+        ValueType type = bindings.expressionType(node);
+        if (type == ValueType.INT && wanted == ValueType.FLOAT.ordinal()) {
+            pushTask(OP, node, L2D, 0);
+        } else if (type == ValueType.FLOAT && wanted == ValueType.INT.ordinal()) {
+            pushTask(OP, node, D2L, 0);
+        }
+        switch (ast.kind(node)) {
+            case INT_LITERAL, BOOL_LITERAL -> pushLong(ast.value(node));
+            case FLOAT_LITERAL -> pushDouble(ast.floatValue(node));
+            case NAME -> load(bindings.variable(node));
+            case INDEX -> {
+                load(bindings.variable(node));
+                pushTask(INDEXED, node, 0, 0);
+                pushTask(VALUE, ast.second(node), ValueType.INT.ordinal(), 0);
+            }
+            case UNARY -> {
+                pushTask(OP, node, type == ValueType.INT ? LNEG : DNEG, 0);
+                pushTask(VALUE, ast.first(node), -1, 0);
+            }
+            case BINARY -> {
+                TokenType operator = ast.operator(node);
+                if (Bindings.isArithmetic(operator)) {
+                    pushTask(OP, node, arithmeticOpcode(operator, type), -2);
+                    pushTask(VALUE, ast.second(node), type.ordinal(), 0);
+                    pushTask(VALUE, ast.first(node), type.ordinal(), 0);
+                } else {
+                    // Comparisons and logical operators yield 1 or 0
+                    int falseLabel = code.newLabel();
+                    int endLabel = code.newLabel();
+                    pushTask(BOOLEAN, node, falseLabel, endLabel);
+                    pushTask(BRANCH, node, falseLabel, 0);
+                }
+            }
+            default -> throw new RuntimeException(ast.kind(node) + " expressions cannot be executed.");
+        }
+    }
+
+    private void compileCondition(int node, int label, boolean jumpIf) {
+        if (ast.kind(node) == NodeKind.BINARY) {
+            TokenType operator = ast.operator(node);
+            if (operator == TokenType.AND || operator == TokenType.OR) {
+                boolean shortCircuitsOn = operator == TokenType.OR;
+                if (jumpIf == shortCircuitsOn) {
+                    pushTask(BRANCH, ast.second(node), label, jumpIf ? 1 : 0);
+                    pushTask(BRANCH, ast.first(node), label, jumpIf ? 1 : 0);
+                } else {
+                    int skip = code.newLabel();
+                    pushTask(PLACE, node, skip, 0);
+                    pushTask(BRANCH, ast.second(node), label, jumpIf ? 1 : 0);
+                    pushTask(BRANCH, ast.first(node), skip, jumpIf ? 0 : 1);
+                }
+                return;
+            }
+            if (comparisonOpcode(operator) != 0) {
+                ValueType type = comparisonType(node);
+                pushTask(COMPARE, node, label, jumpIf ? 1 : 0);
+                pushTask(VALUE, ast.second(node), type.ordinal(), 0);
+                pushTask(VALUE, ast.first(node), type.ordinal(), 0);
+                return;
+            }
+        }
+        pushTask(TEST, node, label, jumpIf ? 1 : 0);
+        pushTask(VALUE, node, -1, 0);
+    }
+
+    // Operands of a comparison are compared as floats if either one is
+    private ValueType comparisonType(int comparison) {
+        ValueType left = bindings.expressionType(ast.first(comparison));
+        ValueType right = bindings.expressionType(ast.second(comparison));
+        return left == ValueType.FLOAT || right == ValueType.FLOAT ? ValueType.FLOAT : ValueType.INT;
+    }
+
+    private void pushTask(byte kind, int node, int argument, int flag) {
+        if (taskCount == taskKinds.length) {
+            taskKinds = Arrays.copyOf(taskKinds, taskCount * 2);
+            taskNodes = Arrays.copyOf(taskNodes, taskCount * 2);
+            taskArguments = Arrays.copyOf(taskArguments, taskCount * 2);
+            taskFlags = Arrays.copyOf(taskFlags, taskCount * 2);
+        }
+        taskKinds[taskCount] = kind;
+        taskNodes[taskCount] = node;
+        taskArguments[taskCount] = argument;
+        taskFlags[taskCount++] = flag;
+    }
+
+    private void compileIndex(int access, int variable, int node) {
+        compileExpression(node, ValueType.INT);
+        compileIndexCheck(access, variable);
+    }
+
+    // The JVM checks the int index; a long index not known to be in range is checked whole, so L2I cannot wrap it
+    private void compileIndexCheck(int access, int variable) {
+        if (!bounds.inBounds(access)) {
+            load(variable);
+            code.op(ARRAYLENGTH, 0);
+            code.op(I2L, 1);
+            code.op(INVOKESTATIC, writer.methodRef("java/util/Objects", "checkIndex", "(JJ)J"), 2, -2);
+        }
+        code.op(L2I, -1);
+    }
+
+    private static int arithmeticOpcode(TokenType operator, ValueType type) {
+        boolean isInt = type == ValueType.INT;
+        return switch (operator) {
+            case PLUS -> isInt ? LADD : DADD;
+            case MINUS -> isInt ? LSUB : DSUB;
+            case MULTIPLY -> isInt ? LMUL : DMUL;
+            default -> isInt ? LDIV : DDIV;
+        };
+    }
+
+    private static int comparisonOpcode(TokenType operator) {
+        return switch (operator) {
+            case EQUAL -> IFEQ;
+            case NOT_EQUAL -> IFNE;
+            case LESS_THAN -> IFLT;
+            case LESS_THAN_OR_EQUAL -> IFLE;
+            case GREATER_THAN -> IFGT;
+            case GREATER_THAN_OR_EQUAL -> IFGE;
+            default -> 0;
+        };
+    }
+
+    private static int negate(int comparison) {
+        return switch (comparison) {
+            case IFEQ -> IFNE;
+            case IFNE -> IFEQ;
+            case IFLT -> IFGE;
+            case IFGE -> IFLT;
+            case IFGT -> IFLE;
+            default -> IFGT;
+        };
+    }
+
+    private void load(int variable) {
+        ValueType type = bindings.type(variable);
+        if (bindings.isGlobal(variable)) {
+            code.op(GETSTATIC, fieldRef(variable), 2, slotSize(type));
+        } else {
+            code.local(type == ValueType.INT ? LLOAD : type == ValueType.FLOAT ? DLOAD : ALOAD,
+                    localSlots[variable], slotSize(type));
+        }
+    }
+
+    private void store(int variable) {
+        ValueType type = bindings.type(variable);
+        if (bindings.isGlobal(variable)) {
+            code.op(PUTSTATIC, fieldRef(variable), 2, -slotSize(type));
+        } else {
+            code.local(type == ValueType.INT ? LSTORE : type == ValueType.FLOAT ? DSTORE : ASTORE,
+                    localSlots[variable], -slotSize(type));
+        }
+    }
+
+    private void pushZero(ValueType type) {
+        switch (type) {
+            case INT -> code.op(LCONST_0, 2);
+            case FLOAT -> code.op(DCONST_0, 2);
+            default -> code.op(ACONST_NULL, 1);
+        }
+    }
+
+    private void pushLong(long value) {
+        if (value == 0 || value == 1) {
+            code.op(value == 0 ? LCONST_0 : LCONST_1, 2);
+        } else {
+            code.op(LDC2_W, writer.longConstant(value), 2, 2);
+        }
+    }
+
+    private void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0 || value == 1.0) {
+            code.op(value == 0 ? DCONST_0 : DCONST_1, 2);
+        } else {
+            code.op(LDC2_W, writer.doubleConstant(value), 2, 2);
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH, value & 0xFF, 1, 1);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(SIPUSH, value & 0xFFFF, 2, 1);
+        } else {
+            code.op(LDC_W, writer.intConstant(value), 2, 1);
+        }
+    }
+
+    private int fieldRef(int variable) {
+        return writer.fieldRef(CLASS_NAME, fieldNames[variable], descriptor(bindings.type(variable)));
+    }
+
+    private String methodName(int function) {
+        return "func$" + ast.name(function);
+    }
+
+    private static int slotSize(ValueType type) {
+        return type.isArray() ? 1 : 2;
+    }
+
+    private static String descriptor(ValueType type) {
+        return switch (type) {
+            case INT -> "J";
+            case FLOAT -> "D";
+            case INT_ARRAY -> "[J";
+            case FLOAT_ARRAY -> "[D";
+        };
+    }
+
+    private static Class<?> javaType(ValueType type) {
+        return switch (type) {
+            case INT -> long.class;
+            case FLOAT -> double.class;
+            case INT_ARRAY -> long[].class;
+            case FLOAT_ARRAY -> double[].class;
+        };
+    }
+}
@@ -1,267 +1,404 @@
-import java.util.ArrayList;
-import java.util.List;
+public class Lexer implements TokenSource {
+    // Character classes for ASCII input. Anything outside the table goes
+    // through the Character-based slow path in classifyNonAscii.
+    private static final byte INVALID = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte OPERATOR = 4;
+    private static final byte[] CHAR_CLASS = new byte[128];
 
-public class Lexer {
-    private String sourceCode;
+    // Operator DFA: the token for a character on its own, and the second
+    // character that turns it into a two-character operator together with
+    // that operator's token. A null single token marks '|' and '&', which
+    // are only valid when doubled.
+    private static final TokenType[] SINGLE_OPERATOR = new TokenType[128];
+    private static final char[] PAIR_CHAR = new char[128];
+    private static final TokenType[] PAIR_OPERATOR = new TokenType[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            if (Character.isWhitespace(c)) {
+                CHAR_CLASS[c] = WHITESPACE;
+            } else if (Character.isLetter(c)) {
+                CHAR_CLASS[c] = LETTER;
+            } else if (Character.isDigit(c)) {
+                CHAR_CLASS[c] = DIGIT;
+            }
+        }
+
+        operator('+', TokenType.PLUS, '+', TokenType.INCREMENT);
+        operator('-', TokenType.MINUS, '-', TokenType.DECREMENT);
+        operator('=', TokenType.ASSIGN, '=', TokenType.EQUAL);
+        operator('!', TokenType.NOT, '=', TokenType.NOT_EQUAL);
+        operator('<', TokenType.LESS_THAN, '=', TokenType.LESS_THAN_OR_EQUAL);
+        operator('>', TokenType.GREATER_THAN, '=', TokenType.GREATER_THAN_OR_EQUAL);
+        operator('|', null, '|', TokenType.OR);
+        operator('&', null, '&', TokenType.AND);
+        operator('*', TokenType.MULTIPLY);
+        operator('/', TokenType.DIVIDE);
+        operator(';', TokenType.SEMICOLON);
+        operator(',', TokenType.COMMA);
+        operator('(', TokenType.LEFT_PAREN);
+        operator(')', TokenType.RIGHT_PAREN);
+        operator('{', TokenType.LEFT_BRACE);
+        operator('}', TokenType.RIGHT_BRACE);
+        operator('[', TokenType.LEFT_BRACKET);
+        operator(']', TokenType.RIGHT_BRACKET);
+    }
+
+    private static void operator(char c, TokenType single) {
+        CHAR_CLASS[c] = OPERATOR;
+        SINGLE_OPERATOR[c] = single;
+    }
+
+    private static void operator(char c, TokenType single, char second, TokenType pair) {
+        operator(c, single);
+        PAIR_CHAR[c] = second;
+        PAIR_OPERATOR[c] = pair;
+    }
+
+    private CharSequence sourceCode;
+    // Set when the source is a view over UTF-8 bytes. Positions are then byte
+    // offsets, and a character outside ASCII spans several of them.
+    private final SourceFile.Utf8CharSequence utf8;
+    // Word-at-a-time run scanning over those bytes
+    private final AsciiScanner scanner;
+    // Whether the identifier being scanned had to be decoded
+    private boolean decodedName;
+    private final NameTable names;
     private int currentPosition;
+    private int tokenStart;
+    private int tokenLength;
+    private int tokenName;
+
+    public Lexer(CharSequence sourceCode) {
+        this(sourceCode, new NameTable());
+    }
+
+    public Lexer(CharSequence sourceCode, NameTable names) {
+        this(sourceCode, names, 0);
+    }
 
-    public Lexer(String sourceCode) {
+    /**
+     * Starts lexing at {@code position}, which must be where the lexer began
+     * scanning some token; any token start other than a string literal's is.
+     */
+    public Lexer(CharSequence sourceCode, NameTable names, int position) {
         this.sourceCode = sourceCode;
-        this.currentPosition = 0;
+        this.utf8 = sourceCode instanceof SourceFile.Utf8CharSequence bytes ? bytes : null;
+        this.scanner = utf8 != null ? utf8.scanner() : null;
+        this.names = names;
+        this.currentPosition = position;
     }
 
-    public List<Token> tokenize() {
-        List<Token> tokens = new ArrayList<>();
+    public TokenBuffer tokenize() {
+        TokenBuffer tokens = new TokenBuffer(sourceCode, names);
+
+        TokenType type;
+        do {
+            type = next();
+            tokens.add(type, tokenStart, tokenLength, tokenName);
+        } while (type != TokenType.EOF);
+
+        return tokens;
+    }
 
-        while (currentPosition < sourceCode.length()) {
+    @Override
+    public TokenType next() {
+        int length = sourceCode.length();
+        while (currentPosition < length) {
             char currentChar = sourceCode.charAt(currentPosition);
+            byte charClass = currentChar < 128 ? CHAR_CLASS[currentChar] : classifyNonAscii(nonAsciiChar(currentPosition));
 
-            if (Character.isWhitespace(currentChar)) {
-                // Skip whitespace characters
-                currentPosition++;
-            } else if (Character.isLetter(currentChar)) {
-                tokens.add(scanIdentifierOrKeyword());
-            } else if (Character.isDigit(currentChar)) {
-                tokens.add(scanNumber());
-            } else {
-                Token operatorOrPunctuation = scanOperatorOrPunctuation();
-                if (operatorOrPunctuation != null) {
-                    tokens.add(operatorOrPunctuation);
-                } else {
-                    // Invalid token or unrecognized character
+            switch (charClass) {
+                case WHITESPACE -> {
+                    int next = currentPosition + (currentChar < 128 ? 1 : nonAsciiWidth(currentPosition));
+                    currentPosition = scanner != null ? scanner.endOfWhitespace(next) : next;
+                }
+                case LETTER -> {
+                    return scanIdentifierOrKeyword();
+                }
+                case DIGIT -> {
+                    return scanNumber();
+                }
+                case OPERATOR -> {
+                    TokenType operatorOrPunctuation = scanOperatorOrPunctuation(currentChar);
+                    if (operatorOrPunctuation != null) {
+                        return operatorOrPunctuation;
+                    }
+                    // A lone '|' or '&': skip it together with the character after it
                     currentPosition++;
                 }
+                // Invalid token or unrecognized character
+                default -> currentPosition += currentChar < 128 ? 1 : nonAsciiWidth(currentPosition);
             }
         }
 
-        // Add the EOF token
-        tokens.add(new Token(TokenType.EOF, "EOF"));
-        return tokens;
+        tokenStart = length;
+        tokenLength = 0;
+        return TokenType.EOF;
     }
 
-    private Token scanIdentifierOrKeyword() {
-        StringBuilder identifier = new StringBuilder();
-
-        while (currentPosition < sourceCode.length() && Character.isLetterOrDigit(sourceCode.charAt(currentPosition))) {
-            identifier.append(sourceCode.charAt(currentPosition));
-            currentPosition++;
+    // The character at a position holding one outside ASCII. Only those are
+    // decoded from UTF-8; one beyond the BMP is two surrogates in a String,
+    // neither of them a letter, digit or space, and reads as U+FFFD here.
+    private char nonAsciiChar(int position) {
+        if (utf8 == null) {
+            return sourceCode.charAt(position);
         }
+        int codePoint = utf8.codePointAt(position);
+        return codePoint < 0x10000 ? (char) codePoint : '\uFFFD';
+    }
 
-        String identifierString = identifier.toString();
-
-        // Check if the identifier is a keyword or a variable declaration
-        switch (identifierString) {
-            case "var":
-                return new Token(TokenType.VAR, identifierString);
-            case "int":
-                return new Token(TokenType.INT, identifierString);
-            case "float":
-                return new Token(TokenType.FLOAT, identifierString);
-            case "if":
-                return new Token(TokenType.IF, identifierString);
-            case "else":
-                return new Token(TokenType.ELSE, identifierString);
-            case "for":
-                return new Token(TokenType.FOR, identifierString);
-            case "func":
-                return new Token(TokenType.FUNC, identifierString);
-            case "return":
-                return new Token(TokenType.RETURN, identifierString);
-            case "array":
-                return new Token(TokenType.ARRAY, identifierString);
-            case "true":
-                return new Token(TokenType.TRUE, identifierString);
-            case "false":
-                return new Token(TokenType.FALSE, identifierString);
-            case "new": // Handle NEW keyword
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == ' ') {
-                    currentPosition++; // Consume the space character
-
-                    // Check if the next token is '=' to indicate a variable declaration
-                    if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '=') {
-                        currentPosition++; // Consume the '=' character
-                        return new Token(TokenType.NEW, identifierString);
-                    }
-                }
-
-                return new Token(TokenType.IDENTIFIER, identifierString);
-            default:
-                // Check if it is a string literal
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '"') {
-                    currentPosition++; // Consume the opening quote character
-
-                    StringBuilder stringLiteral = new StringBuilder();
-                    while (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) != '"') {
-                        stringLiteral.append(sourceCode.charAt(currentPosition));
-                        currentPosition++;
-                    }
-
-                    if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '"') {
-                        currentPosition++; // Consume the closing quote character
-                        return new Token(TokenType.STRING_LITERAL, stringLiteral.toString());
-                    } else {
-                        // Unterminated string literal
-                        return new Token(TokenType.ERROR, identifierString);
-                    }
-                }
+    private int nonAsciiWidth(int position) {
+        return utf8 == null ? 1 : utf8.sequenceLength(position);
+    }
 
-                // Check if it is a valid identifier or a variable declaration
-                if (identifier.length() > 0) {
-                    return new Token(TokenType.IDENTIFIER, identifierString);
-                }
+    private static byte classifyNonAscii(char c) {
+        if (Character.isWhitespace(c)) {
+            return WHITESPACE;
+        } else if (Character.isLetter(c)) {
+            return LETTER;
+        } else if (Character.isDigit(c)) {
+            return DIGIT;
+        }
+        return INVALID;
+    }
 
-                // Invalid token or unrecognized character
-                currentPosition++;
-                return new Token(TokenType.ERROR, identifierString);
+    private static boolean isIdentifierPart(char c) {
+        if (c < 128) {
+            byte charClass = CHAR_CLASS[c];
+            return charClass == LETTER || charClass == DIGIT;
         }
+        return Character.isLetterOrDigit(c);
     }
 
+    private static boolean isDigit(char c) {
+        return c < 128 ? CHAR_CLASS[c] == DIGIT : Character.isDigit(c);
+    }
 
+    @Override
+    public int tokenStart() {
+        return tokenStart;
+    }
 
-    private Token scanNumber() {
-        StringBuilder number = new StringBuilder();
+    @Override
+    public int tokenLength() {
+        return tokenLength;
+    }
 
-        while (currentPosition < sourceCode.length() && Character.isDigit(sourceCode.charAt(currentPosition))) {
-            number.append(sourceCode.charAt(currentPosition));
-            currentPosition++;
-        }
-        if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '.') {
-            number.append('.');
-            currentPosition++;
+    @Override
+    public int tokenName() {
+        return tokenName;
+    }
 
-            while (currentPosition < sourceCode.length() && Character.isDigit(sourceCode.charAt(currentPosition))) {
-                number.append(sourceCode.charAt(currentPosition));
-                currentPosition++;
-            }
+    @Override
+    public CharSequence sourceCode() {
+        return sourceCode;
+    }
 
-            return new Token(TokenType.FLOAT_LITERAL, number.toString());
-        } else {
-            return new Token(TokenType.INTEGER_LITERAL, number.toString());
-        }
+    /** Offset where scanning for the next token starts. */
+    int position() {
+        return currentPosition;
     }
 
-    private Token scanOperatorOrPunctuation() {
-        char currentChar = sourceCode.charAt(currentPosition);
+    @Override
+    public NameTable names() {
+        return names;
+    }
 
-        switch (currentChar) {
-            case '+' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '+') {
-                    currentPosition++;
-                    return new Token(TokenType.INCREMENT, "++");
-                } else {
-                    return new Token(TokenType.PLUS, "+");
-                }
-            }
-            case '-' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '-') {
-                    currentPosition++;
-                    return new Token(TokenType.DECREMENT, "--");
-                } else {
-                    return new Token(TokenType.MINUS, "-");
-                }
-            }
-            case '*' -> {
-                currentPosition++;
-                return new Token(TokenType.MULTIPLY, "*");
-            }
-            case '/' -> {
-                currentPosition++;
-                return new Token(TokenType.DIVIDE, "/");
-            }
-            case '=' -> {
-                currentPosition++;
+    private TokenType scanIdentifierOrKeyword() {
+        int start = currentPosition;
+        decodedName = false;
+        currentPosition = endOfIdentifier(currentPosition);
+        tokenStart = start;
+        tokenLength = currentPosition - start;
+
+        TokenType keyword = matchKeyword(start, tokenLength);
+        if (keyword == TokenType.NEW) {
+            // Handle NEW keyword
+            if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == ' ') {
+                currentPosition++; // Consume the space character
+
+                // Check if the next token is '=' to indicate a variable declaration
                 if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '=') {
-                    currentPosition++;
-                    return new Token(TokenType.EQUAL, "==");
-                } else {
-                    return new Token(TokenType.ASSIGN, "=");
+                    currentPosition++; // Consume the '=' character
+                    return TokenType.NEW;
                 }
             }
-            case ';' -> {
-                currentPosition++;
-                return new Token(TokenType.SEMICOLON, ";");
-            }
-            case ',' -> {
-                currentPosition++;
-                return new Token(TokenType.COMMA, ",");
-            }
-            case '(' -> {
-                currentPosition++;
-                return new Token(TokenType.LEFT_PAREN, "(");
-            }
-            case ')' -> {
+        } else if (keyword != null) {
+            return keyword;
+        } else if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '"') {
+            // Check if it is a string literal
+            currentPosition++; // Consume the opening quote character
+
+            int literalStart = currentPosition;
+            while (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) != '"') {
                 currentPosition++;
-                return new Token(TokenType.RIGHT_PAREN, ")");
             }
-            case '{' -> {
-                currentPosition++;
-                return new Token(TokenType.LEFT_BRACE, "{");
+
+            if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '"') {
+                tokenStart = literalStart;
+                tokenLength = currentPosition - literalStart;
+                currentPosition++; // Consume the closing quote character
+                return TokenType.STRING_LITERAL;
+            } else {
+                // Unterminated string literal
+                return TokenType.ERROR;
             }
-            case '}' -> {
-                currentPosition++;
-                return new Token(TokenType.RIGHT_BRACE, "}");
+        }
+
+        tokenName = decodedName
+                ? names.intern(sourceCode.subSequence(start, currentPosition).toString())
+                : names.intern(sourceCode, start, tokenLength);
+        return TokenType.IDENTIFIER;
+    }
+
+    private int endOfIdentifier(int position) {
+        int length = sourceCode.length();
+        while (true) {
+            if (scanner != null) {
+                position = scanner.endOfIdentifier(position);
             }
-            case '[' -> {
-                currentPosition++;
-                return new Token(TokenType.LEFT_BRACKET, "[");
+            if (position >= length) {
+                return position;
             }
-            case ']' -> {
-                currentPosition++;
-                return new Token(TokenType.RIGHT_BRACKET, "]");
+            char c = sourceCode.charAt(position);
+            if (c < 128) {
+                if (!isIdentifierPart(c)) {
+                    return position;
+                }
+                position++;
+            } else if (isIdentifierPart(nonAsciiChar(position))) {
+                decodedName = utf8 != null;
+                position += nonAsciiWidth(position);
+            } else {
+                return position;
             }
-            case '<' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '=') {
-                    currentPosition++;
-                    return new Token(TokenType.LESS_THAN_OR_EQUAL, "<=");
-                } else {
-                    return new Token(TokenType.LESS_THAN, "<");
+        }
+    }
+
+    // Keywords are recognized by length and first character, then compared in
+    // place, so no String is built for the common identifier path.
+    private TokenType matchKeyword(int start, int length) {
+        char first = sourceCode.charAt(start);
+        switch (length) {
+            case 2 -> {
+                if (first == 'i' && sourceCode.charAt(start + 1) == 'f') {
+                    return TokenType.IF;
                 }
             }
-            case '>' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '=') {
-                    currentPosition++;
-                    return new Token(TokenType.GREATER_THAN_OR_EQUAL, ">=");
-                } else {
-                    return new Token(TokenType.GREATER_THAN, ">");
+            case 3 -> {
+                switch (first) {
+                    case 'v' -> {
+                        return restEquals(start, "var") ? TokenType.VAR : null;
+                    }
+                    case 'i' -> {
+                        return restEquals(start, "int") ? TokenType.INT : null;
+                    }
+                    case 'f' -> {
+                        return restEquals(start, "for") ? TokenType.FOR : null;
+                    }
+                    case 'n' -> {
+                        return restEquals(start, "new") ? TokenType.NEW : null;
+                    }
                 }
             }
-            case '!' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '=') {
-                    currentPosition++;
-                    return new Token(TokenType.NOT_EQUAL, "!=");
-                } else {
-                    return new Token(TokenType.NOT, "!");
+            case 4 -> {
+                switch (first) {
+                    case 'e' -> {
+                        return restEquals(start, "else") ? TokenType.ELSE : null;
+                    }
+                    case 'f' -> {
+                        return restEquals(start, "func") ? TokenType.FUNC : null;
+                    }
+                    case 't' -> {
+                        return restEquals(start, "true") ? TokenType.TRUE : null;
+                    }
                 }
             }
-            case '|' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '|') {
-                    currentPosition++;
-                    return new Token(TokenType.OR, "||");
-                } else {
-                    return null; // Invalid token
+            case 5 -> {
+                switch (first) {
+                    case 'f' -> {
+                        if (restEquals(start, "float")) {
+                            return TokenType.FLOAT;
+                        }
+                        return restEquals(start, "false") ? TokenType.FALSE : null;
+                    }
+                    case 'a' -> {
+                        return restEquals(start, "array") ? TokenType.ARRAY : null;
+                    }
                 }
             }
-            case '&' -> {
-                currentPosition++;
-                if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '&') {
-                    currentPosition++;
-                    return new Token(TokenType.AND, "&&");
-                } else {
-                    return null; // Invalid token
+            case 6 -> {
+                if (first == 'r' && restEquals(start, "return")) {
+                    return TokenType.RETURN;
                 }
             }
-            // Add more cases for other operators and punctuations as needed
-            default -> {
-                return null; // Unrecognized character or invalid token
+        }
+        return null;
+    }
+
+    // The first character has already been matched by the caller.
+    private boolean restEquals(int start, String keyword) {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (sourceCode.charAt(start + i) != keyword.charAt(i)) {
+                return false;
             }
         }
+        return true;
     }
-}
 
 
+
+    private TokenType scanNumber() {
+        tokenStart = currentPosition;
+        TokenType type = TokenType.INTEGER_LITERAL;
+
+        currentPosition = endOfDigits(currentPosition);
+        if (currentPosition < sourceCode.length() && sourceCode.charAt(currentPosition) == '.') {
+            currentPosition = endOfDigits(currentPosition + 1);
+            type = TokenType.FLOAT_LITERAL;
+        }
+
+        tokenLength = currentPosition - tokenStart;
+        return type;
+    }
+
+    private int endOfDigits(int position) {
+        int length = sourceCode.length();
+        while (true) {
+            if (scanner != null) {
+                position = scanner.endOfDigits(position);
+            }
+            if (position >= length) {
+                return position;
+            }
+            char c = sourceCode.charAt(position);
+            if (c < 128) {
+                if (!isDigit(c)) {
+                    return position;
+                }
+                position++;
+            } else if (isDigit(nonAsciiChar(position))) {
+                position += nonAsciiWidth(position);
+            } else {
+                return position;
+            }
+        }
+    }
+
+    private TokenType scanOperatorOrPunctuation(char currentChar) {
+        tokenStart = currentPosition;
+        currentPosition++;
+        if (currentPosition < sourceCode.length() && PAIR_CHAR[currentChar] != 0
+                && sourceCode.charAt(currentPosition) == PAIR_CHAR[currentChar]) {
+            currentPosition++;
+            tokenLength = 2;
+            return PAIR_OPERATOR[currentChar];
+        }
+        tokenLength = 1;
+        return SINGLE_OPERATOR[currentChar];
+    }
+}
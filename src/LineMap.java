@@ -0,0 +1,73 @@
+import java.util.Arrays;
+
+/**
+ * Start offsets of the lines of a source text, for turning offsets into
+ * line and column numbers. Tokens and diagnostics only carry offsets, so the
+ * lexer never tracks lines; a map is built in one pass over the text when a
+ * position is first needed, and each lookup is a binary search.
+ * <p>
+ * Lines and columns count from 1. Lines end at '\n', and columns count
+ * chars, so a '\r' before the '\n' belongs to the line it ends. Over a
+ * UTF-8 view offsets are byte offsets, and columns still count the chars
+ * the bytes decode to.
+ */
+public final class LineMap {
+    private final int[] lineStarts;
+    private final int lineCount;
+    private final SourceFile.Utf8CharSequence utf8;
+
+    private LineMap(int[] lineStarts, int lineCount, SourceFile.Utf8CharSequence utf8) {
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+        this.utf8 = utf8;
+    }
+
+    public static LineMap of(CharSequence source) {
+        int[] starts = new int[Math.max(16, source.length() / 32)];
+        int count = 1;
+        if (source instanceof String text) {
+            // indexOf is vectorized, much faster than a charAt loop
+            for (int newline = text.indexOf('\n'); newline >= 0; newline = text.indexOf('\n', newline + 1)) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = newline + 1;
+            }
+        } else {
+            for (int i = 0; i < source.length(); i++) {
+                if (source.charAt(i) == '\n') {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = i + 1;
+                }
+            }
+        }
+        return new LineMap(starts, count, source instanceof SourceFile.Utf8CharSequence bytes ? bytes : null);
+    }
+
+    public int lineCount() {
+        return lineCount;
+    }
+
+    public int line(int offset) {
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        // Between two starts, binarySearch returns -(next start) - 1
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    public int column(int offset) {
+        return column(line(offset), offset);
+    }
+
+    /** The offset formatted as "line:column". */
+    public String position(int offset) {
+        int line = line(offset);
+        return line + ":" + column(line, offset);
+    }
+
+    private int column(int line, int offset) {
+        int lineStart = lineStarts[line - 1];
+        return (utf8 != null ? utf8.charCount(lineStart, offset) : offset - lineStart) + 1;
+    }
+}
@@ -0,0 +1,803 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Optimizes counted for loops: those whose update is {@code i++} or
+ * {@code i--} on an int variable that the body never writes, so that
+ * {@code i} is an induction variable stepping by one. Inner loops are
+ * transformed before the loops around them.
+ * <ul>
+ * <li>A loop that starts from a literal and is compared against a literal
+ *     is run at compile time to count its iterations, and if there are at
+ *     most {@value #MAX_UNROLLED_ITERATIONS} of a small body, it is replaced
+ *     by that many copies of the body with {@code i} read as a literal.
+ * <li>Expressions in the condition and body that read no variable written
+ *     in the loop are hoisted into temporaries declared before it. Only
+ *     expressions that cannot fail are hoisted, so a division by a variable
+ *     or an array read still fails, or not, where it did.
+ * <li>Products {@code i * c} of the induction variable and an invariant int
+ *     become a derived variable set to {@code i * c} before the loop and
+ *     stepped by {@code c} at the end of each iteration.
+ * </ul>
+ * Temporaries are named with a '$', which no identifier can contain. They
+ * are function locals, so hoisting and strength reduction only apply to
+ * loops inside functions; at the top level a temporary would become a
+ * global and show up in the program's output.
+ */
+public final class LoopOptimizer {
+    static final int MAX_UNROLLED_ITERATIONS = 8;
+    private static final int MAX_UNROLLED_NODES = 256;
+
+    /** What was done to the loop at {@code position}, a FOR node's source offset. */
+    public record Transform(int position, String variable, int unrolledIterations, int hoisted, int reduced) {
+        public boolean unrolled() {
+            return unrolledIterations >= 0;
+        }
+
+        /** The transform as "line:column: ...". */
+        public String format(LineMap lines) {
+            String loop = lines.position(position) + ": loop over " + variable;
+            if (unrolled()) {
+                return loop + " unrolled " + plural(unrolledIterations, "iteration");
+            }
+            return loop + ": hoisted " + plural(hoisted, "invariant expression") + ", strength-reduced "
+                    + plural(reduced, "multiplication");
+        }
+
+        private static String plural(int count, String noun) {
+            return count + " " + noun + (count == 1 ? "" : "s");
+        }
+    }
+
+    private final Ast ast;
+    private final List<Transform> transforms = new ArrayList<>();
+    // By name ID, the type of the latest declaration walked so far, or null.
+    // Shadowing is not allowed, so for any name visible at a loop this is
+    // the declaration the loop sees. Grows as temporaries are added.
+    private ValueType[] types;
+
+    // State of the loop being transformed
+    private int inductionVariable;
+    private BitSet written;
+    private int prelude;
+    private int preludeEnd;
+    private final List<Integer> hoistedExpressions = new ArrayList<>();
+    private final List<Integer> hoistedTemporaries = new ArrayList<>();
+    private final List<Integer> factors = new ArrayList<>();
+    private final List<Integer> derivedVariables = new ArrayList<>();
+
+    public LoopOptimizer(Ast ast) {
+        this.ast = ast;
+    }
+
+    /** Transforms every counted loop and returns what was done, in source order. */
+    public List<Transform> optimize() {
+        try {
+            Bindings.resolve(ast);
+        } catch (RuntimeException e) {
+            // The backends will refuse the program anyway
+            return List.of();
+        }
+        types = new ValueType[ast.names().size()];
+
+        int root = ast.root();
+        ast.setFirst(root, optimizeList(ast.first(root), Ast.NONE));
+        transforms.sort(Comparator.comparingInt(Transform::position));
+        return List.copyOf(transforms);
+    }
+
+    private int optimizeList(int node, int function) {
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (node != Ast.NONE) {
+            int next = ast.next(node);
+            ast.setNext(node, Ast.NONE);
+            int statement = optimizeStatement(node, function);
+            // A loop comes back as a chain of statements that replaces it
+            while (statement != Ast.NONE) {
+                if (last == Ast.NONE) {
+                    first = statement;
+                } else {
+                    ast.setNext(last, statement);
+                }
+                last = statement;
+                statement = ast.next(statement);
+            }
+            node = next;
+        }
+        return first;
+    }
+
+    private int optimizeStatement(int node, int function) {
+        switch (ast.kind(node)) {
+            case BLOCK -> ast.setFirst(node, optimizeList(ast.first(node), function));
+            case VAR_DECL -> types[ast.first(node)] = ast.second(node) == TokenType.FLOAT.ordinal()
+                    ? ValueType.FLOAT : ValueType.INT;
+            case ARRAY_DECL -> types[ast.first(node)] = ast.second(node) == TokenType.FLOAT.ordinal()
+                    ? ValueType.FLOAT_ARRAY : ValueType.INT_ARRAY;
+            case FUNC -> optimizeStatement(ast.second(node), node);
+            case IF -> {
+                // Else-if chains can be long, so they are followed in a loop
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    optimizeStatement(ast.second(branch), function);
+                }
+                if (branch != Ast.NONE) {
+                    optimizeStatement(branch, function);
+                }
+            }
+            case FOR -> {
+                if (ast.first(node) != Ast.NONE) {
+                    optimizeStatement(ast.first(node), function);
+                }
+                optimizeStatement(ast.third(node), function);
+                return optimizeLoop(node, function);
+            }
+            default -> {
+            }
+        }
+        return node;
+    }
+
+    private int optimizeLoop(int loop, int function) {
+        int update = (int) ast.value(loop);
+        if (update == Ast.NONE || ast.kind(update) != NodeKind.INCREMENT && ast.kind(update) != NodeKind.DECREMENT) {
+            return loop;
+        }
+        inductionVariable = ast.first(update);
+        if (types[inductionVariable] != ValueType.INT) {
+            return loop;
+        }
+        BitSet bodyWrites = new BitSet();
+        collectWrites(ast.third(loop), bodyWrites);
+        if (bodyWrites.get(inductionVariable)) {
+            return loop;
+        }
+        written = bodyWrites;
+        collectWrites(ast.first(loop), written);
+        written.set(inductionVariable);
+
+        String variable = ast.names().name(inductionVariable);
+        long step = ast.kind(update) == NodeKind.INCREMENT ? 1 : -1;
+        int iterations = tripCount(loop, step);
+        // A loop that never runs is kept, since its body may declare names used elsewhere
+        if (iterations > 0 && (long) iterations * ast.count(ast.third(loop)) <= MAX_UNROLLED_NODES) {
+            transforms.add(new Transform(ast.position(loop), variable, iterations, 0, 0));
+            int init = ast.first(loop);
+            return scoped(loop, init, unroll(loop, step, iterations));
+        }
+        if (function == Ast.NONE) {
+            return loop;
+        }
+
+        prelude = Ast.NONE;
+        preludeEnd = Ast.NONE;
+        hoistedExpressions.clear();
+        hoistedTemporaries.clear();
+        factors.clear();
+        derivedVariables.clear();
+        hoist(ast.second(loop));
+        hoistInStatement(ast.third(loop));
+        int hoisted = hoistedTemporaries.size();
+
+        int init = ast.first(loop);
+        int hoistedEnd = preludeEnd;
+        reduce(ast.second(loop), loop);
+        reduceInStatement(ast.third(loop), loop);
+        int reduced = derivedVariables.size();
+        if (reduced > 0) {
+            // The derived variables start from the induction variable's first
+            // value, so the init statement moves out in front of them
+            if (init != Ast.NONE) {
+                int derived = hoistedEnd == Ast.NONE ? prelude : ast.next(hoistedEnd);
+                ast.setNext(init, derived);
+                if (hoistedEnd == Ast.NONE) {
+                    prelude = init;
+                } else {
+                    ast.setNext(hoistedEnd, init);
+                }
+                ast.setFirst(loop, Ast.NONE);
+            }
+            appendSteps(loop, step);
+        }
+        if (hoisted == 0 && reduced == 0) {
+            return loop;
+        }
+        transforms.add(new Transform(ast.position(loop), variable, -1, hoisted, reduced));
+        int last = prelude;
+        while (ast.next(last) != Ast.NONE) {
+            last = ast.next(last);
+        }
+        ast.setNext(last, loop);
+        return reduced > 0 ? scoped(loop, init, prelude) : prelude;
+    }
+
+    // A variable declared in the loop header stays out of the enclosing
+    // scope when its declaration moves in front of the loop
+    private int scoped(int loop, int init, int statements) {
+        if (init == Ast.NONE || ast.kind(init) != NodeKind.VAR_DECL) {
+            return statements;
+        }
+        return ast.add(NodeKind.BLOCK, ast.position(loop), statements, Ast.NONE, Ast.NONE);
+    }
+
+    private void collectWrites(int node, BitSet names) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    collectWrites(statement, names);
+                }
+            }
+            case VAR_DECL, ARRAY_DECL, ASSIGN, ARRAY_ASSIGN, INCREMENT, DECREMENT -> names.set(ast.first(node));
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    collectWrites(ast.second(branch), names);
+                }
+                collectWrites(branch, names);
+            }
+            case FOR -> {
+                collectWrites(ast.first(node), names);
+                collectWrites((int) ast.value(node), names);
+                collectWrites(ast.third(node), names);
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Unrolling
+
+    /**
+     * Replaces a loop by its init statement, giving the induction variable
+     * its final value, and one copy of the body per iteration. Returns the
+     * first statement.
+     */
+    private int unroll(int loop, long step, int iterations) {
+        int init = ast.first(loop);
+        int initialValue = ast.kind(init) == NodeKind.VAR_DECL ? ast.third(init) : ast.second(init);
+        long value = ast.value(initialValue);
+        int last = init;
+        for (int i = 0; i < iterations; i++, value += step) {
+            int copy = copyStatement(ast.third(loop), value);
+            ast.setNext(last, copy);
+            last = copy;
+        }
+        ast.setValue(initialValue, value);
+        return init;
+    }
+
+    /** Iterations of a loop from a literal to a literal, or -1 if unknown or too many. */
+    private int tripCount(int loop, long step) {
+        int init = ast.first(loop);
+        if (init == Ast.NONE || ast.first(init) != inductionVariable) {
+            return -1;
+        }
+        int initialValue;
+        if (ast.kind(init) == NodeKind.VAR_DECL) {
+            initialValue = ast.third(init);
+        } else if (ast.kind(init) == NodeKind.ASSIGN) {
+            initialValue = ast.second(init);
+        } else {
+            return -1;
+        }
+        int condition = ast.second(loop);
+        if (initialValue == Ast.NONE || ast.kind(initialValue) != NodeKind.INT_LITERAL
+                || ast.kind(condition) != NodeKind.BINARY) {
+            return -1;
+        }
+        int left = ast.first(condition);
+        int right = ast.second(condition);
+        TokenType operator = ast.operator(condition);
+        if (isName(right, inductionVariable)) {
+            operator = mirror(operator);
+            int swap = left;
+            left = right;
+            right = swap;
+        }
+        if (operator == null || !isName(left, inductionVariable) || ast.kind(right) != NodeKind.INT_LITERAL) {
+            return -1;
+        }
+
+        long value = ast.value(initialValue);
+        long bound = ast.value(right);
+        int iterations = 0;
+        while (compare(operator, value, bound)) {
+            if (++iterations > MAX_UNROLLED_ITERATIONS) {
+                return -1;
+            }
+            value += step;
+        }
+        return iterations;
+    }
+
+    // The operator that gives the same result with its operands swapped, or null for a non-comparison
+    private static TokenType mirror(TokenType operator) {
+        return switch (operator) {
+            case LESS_THAN -> TokenType.GREATER_THAN;
+            case LESS_THAN_OR_EQUAL -> TokenType.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN -> TokenType.LESS_THAN;
+            case GREATER_THAN_OR_EQUAL -> TokenType.LESS_THAN_OR_EQUAL;
+            case EQUAL, NOT_EQUAL -> operator;
+            default -> null;
+        };
+    }
+
+    private static boolean compare(TokenType operator, long a, long b) {
+        return switch (operator) {
+            case LESS_THAN -> a < b;
+            case LESS_THAN_OR_EQUAL -> a <= b;
+            case GREATER_THAN -> a > b;
+            case GREATER_THAN_OR_EQUAL -> a >= b;
+            case EQUAL -> a == b;
+            case NOT_EQUAL -> a != b;
+            default -> false;
+        };
+    }
+
+    /** Copies a statement and everything below it, reading the induction variable as {@code value}. */
+    private int copyStatement(int node, long value) {
+        if (node == Ast.NONE) {
+            return Ast.NONE;
+        }
+        int position = ast.position(node);
+        return switch (ast.kind(node)) {
+            case BLOCK -> ast.add(NodeKind.BLOCK, position, copyList(ast.first(node), value, true), Ast.NONE, Ast.NONE);
+            case VAR_DECL, ASSIGN -> ast.add(ast.kind(node), position, ast.first(node),
+                    ast.kind(node) == NodeKind.ASSIGN ? copyExpression(ast.second(node), value) : ast.second(node),
+                    ast.kind(node) == NodeKind.VAR_DECL ? copyExpression(ast.third(node), value) : Ast.NONE);
+            case ARRAY_DECL -> ast.add(NodeKind.ARRAY_DECL, position, ast.first(node), ast.second(node),
+                    copyList(ast.third(node), value, false), ast.value(node));
+            case ARRAY_ASSIGN -> ast.add(NodeKind.ARRAY_ASSIGN, position, ast.first(node),
+                    copyExpression(ast.second(node), value), copyExpression(ast.third(node), value));
+            case IF -> ast.add(NodeKind.IF, position, copyExpression(ast.first(node), value),
+                    copyStatement(ast.second(node), value), copyStatement(ast.third(node), value));
+            case FOR -> ast.add(NodeKind.FOR, position, copyStatement(ast.first(node), value),
+                    copyExpression(ast.second(node), value), copyStatement(ast.third(node), value),
+                    copyStatement((int) ast.value(node), value));
+            default -> ast.add(ast.kind(node), position, ast.first(node), ast.second(node), ast.third(node),
+                    ast.value(node));
+        };
+    }
+
+    private int copyList(int node, long value, boolean statements) {
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            int copy = statements ? copyStatement(node, value) : copyExpression(node, value);
+            if (last == Ast.NONE) {
+                first = copy;
+            } else {
+                ast.setNext(last, copy);
+            }
+            last = copy;
+        }
+        return first;
+    }
+
+    private int copyExpression(int node, long value) {
+        // Copies of the operands wait on a stack until their parent is copied
+        int[] copies = new int[16];
+        int count = 0;
+        for (int part : ast.postOrder(node)) {
+            int position = ast.position(part);
+            int copy = switch (ast.kind(part)) {
+                case NAME -> ast.first(part) == inductionVariable
+                        ? ast.add(NodeKind.INT_LITERAL, position, Ast.NONE, Ast.NONE, Ast.NONE, value)
+                        : ast.add(NodeKind.NAME, position, ast.first(part), Ast.NONE, Ast.NONE);
+                case INDEX -> ast.add(NodeKind.INDEX, position, ast.first(part), copies[--count], Ast.NONE);
+                case BINARY -> {
+                    count -= 2;
+                    yield ast.add(NodeKind.BINARY, position, copies[count], copies[count + 1], ast.third(part));
+                }
+                case UNARY -> ast.add(NodeKind.UNARY, position, copies[--count], Ast.NONE, ast.third(part));
+                default -> ast.add(ast.kind(part), position, ast.first(part), ast.second(part), ast.third(part),
+                        ast.value(part));
+            };
+            if (count == copies.length) {
+                copies = Arrays.copyOf(copies, count * 2);
+            }
+            copies[count++] = copy;
+        }
+        return count == 0 ? Ast.NONE : copies[0];
+    }
+
+    // Loop-invariant code motion
+
+    private void hoistInStatement(int node) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    hoistInStatement(statement);
+                }
+            }
+            case VAR_DECL -> hoist(ast.third(node));
+            case ARRAY_DECL -> {
+                for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+                    hoist(element);
+                }
+            }
+            case ASSIGN -> hoist(ast.second(node));
+            case ARRAY_ASSIGN -> {
+                hoist(ast.second(node));
+                hoist(ast.third(node));
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    hoist(ast.first(branch));
+                    hoistInStatement(ast.second(branch));
+                }
+                hoistInStatement(branch);
+            }
+            case FOR -> {
+                hoistInStatement(ast.first(node));
+                hoist(ast.second(node));
+                hoistInStatement(ast.third(node));
+            }
+            default -> {
+            }
+        }
+    }
+
+    /** Replaces the largest invariant expressions below {@code node} with temporaries. */
+    private void hoist(int node) {
+        BitSet hoistable = hoistable(node);
+        if (hoistable.isEmpty()) {
+            return;
+        }
+        // Top down, so only the largest invariant expressions are replaced
+        int[] pending = new int[16];
+        int size = 0;
+        pending[size++] = node;
+        while (size > 0) {
+            int current = pending[--size];
+            NodeKind kind = ast.kind(current);
+            if (hoistable.get(current)) {
+                int temporary = Ast.NONE;
+                for (int i = 0; i < hoistedExpressions.size() && temporary == Ast.NONE; i++) {
+                    if (sameExpression(current, hoistedExpressions.get(i))) {
+                        temporary = hoistedTemporaries.get(i);
+                    }
+                }
+                if (temporary == Ast.NONE) {
+                    int expression = ast.add(kind, ast.position(current), ast.first(current), ast.second(current),
+                            ast.third(current));
+                    temporary = declareTemporary(expression, typeOf(current));
+                    hoistedExpressions.add(expression);
+                    hoistedTemporaries.add(temporary);
+                }
+                makeName(current, temporary);
+                continue;
+            }
+            if (size + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            switch (kind) {
+                case BINARY -> {
+                    pending[size++] = ast.second(current);
+                    pending[size++] = ast.first(current);
+                }
+                case UNARY -> pending[size++] = ast.first(current);
+                case INDEX -> pending[size++] = ast.second(current);
+                default -> {
+                }
+            }
+        }
+    }
+
+    // Operators below node that read a variable and are invariant and sure
+    // not to fail: they read only variables the loop never writes, no array
+    // elements, and divide ints only by non-zero literals
+    private BitSet hoistable(int node) {
+        BitSet hoistable = new BitSet();
+        // Per operand waiting for its parent: its type, and whether it is invariant and reads a variable
+        ValueType[] types = new ValueType[16];
+        boolean[] invariant = new boolean[16];
+        boolean[] reads = new boolean[16];
+        int count = 0;
+        for (int part : ast.postOrder(node)) {
+            ValueType type = null;
+            boolean isInvariant = false;
+            boolean readsVariable = false;
+            switch (ast.kind(part)) {
+                case INT_LITERAL, BOOL_LITERAL -> {
+                    type = ValueType.INT;
+                    isInvariant = true;
+                }
+                case FLOAT_LITERAL -> {
+                    type = ValueType.FLOAT;
+                    isInvariant = true;
+                }
+                case NAME -> {
+                    ValueType declared = type(ast.first(part));
+                    type = declared == null || declared.isArray() ? null : declared;
+                    isInvariant = type != null && !written.get(ast.first(part));
+                    readsVariable = true;
+                }
+                case INDEX -> count--;
+                case UNARY -> {
+                    count--;
+                    type = types[count];
+                    isInvariant = invariant[count];
+                    readsVariable = reads[count];
+                }
+                case BINARY -> {
+                    count -= 2;
+                    ValueType left = types[count];
+                    ValueType right = types[count + 1];
+                    if (left != null && right != null) {
+                        boolean isFloat = left == ValueType.FLOAT || right == ValueType.FLOAT;
+                        type = Bindings.isArithmetic(ast.operator(part)) && isFloat ? ValueType.FLOAT : ValueType.INT;
+                    }
+                    int divisor = ast.second(part);
+                    boolean safe = !(ast.operator(part) == TokenType.DIVIDE && type == ValueType.INT
+                            && !(ast.kind(divisor) == NodeKind.INT_LITERAL && ast.value(divisor) != 0));
+                    isInvariant = safe && type != null && invariant[count] && invariant[count + 1];
+                    readsVariable = reads[count] || reads[count + 1];
+                }
+                default -> {
+                }
+            }
+            NodeKind kind = ast.kind(part);
+            if ((kind == NodeKind.BINARY || kind == NodeKind.UNARY) && readsVariable && isInvariant) {
+                hoistable.set(part);
+            }
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count * 2);
+                invariant = Arrays.copyOf(invariant, count * 2);
+                reads = Arrays.copyOf(reads, count * 2);
+            }
+            types[count] = type;
+            invariant[count] = isInvariant;
+            reads[count++] = readsVariable;
+        }
+        return hoistable;
+    }
+
+    private boolean sameExpression(int a, int b) {
+        // Pairs of nodes still to compare
+        int[] pending = new int[16];
+        int size = 0;
+        pending[size++] = a;
+        pending[size++] = b;
+        while (size > 0) {
+            int right = pending[--size];
+            int left = pending[--size];
+            NodeKind kind = ast.kind(left);
+            if (kind != ast.kind(right)) {
+                return false;
+            }
+            boolean same = switch (kind) {
+                case INT_LITERAL, BOOL_LITERAL, FLOAT_LITERAL -> ast.value(left) == ast.value(right);
+                case NAME -> ast.first(left) == ast.first(right);
+                case UNARY, BINARY -> ast.third(left) == ast.third(right);
+                default -> false;
+            };
+            if (!same) {
+                return false;
+            }
+            if (size + 4 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            if (kind == NodeKind.UNARY || kind == NodeKind.BINARY) {
+                pending[size++] = ast.first(left);
+                pending[size++] = ast.first(right);
+            }
+            if (kind == NodeKind.BINARY) {
+                pending[size++] = ast.second(left);
+                pending[size++] = ast.second(right);
+            }
+        }
+        return true;
+    }
+
+    // Strength reduction
+
+    private void reduceInStatement(int node, int loop) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    reduceInStatement(statement, loop);
+                }
+            }
+            case VAR_DECL -> reduce(ast.third(node), loop);
+            case ARRAY_DECL -> {
+                for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+                    reduce(element, loop);
+                }
+            }
+            case ASSIGN -> reduce(ast.second(node), loop);
+            case ARRAY_ASSIGN -> {
+                reduce(ast.second(node), loop);
+                reduce(ast.third(node), loop);
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    reduce(ast.first(branch), loop);
+                    reduceInStatement(ast.second(branch), loop);
+                }
+                reduceInStatement(branch, loop);
+            }
+            case FOR -> {
+                reduceInStatement(ast.first(node), loop);
+                reduce(ast.second(node), loop);
+                reduceInStatement(ast.third(node), loop);
+            }
+            default -> {
+            }
+        }
+    }
+
+    /** Replaces products of the induction variable and an invariant int with derived variables. */
+    private void reduce(int node, int loop) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        // Top down, left operand first, so a replaced product's operands are not visited
+        int[] pending = new int[16];
+        int size = 0;
+        pending[size++] = node;
+        while (size > 0) {
+            int current = pending[--size];
+            if (size + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            switch (ast.kind(current)) {
+                case BINARY -> {
+                    int factor = Ast.NONE;
+                    if (ast.operator(current) == TokenType.MULTIPLY) {
+                        if (isName(ast.first(current), inductionVariable)) {
+                            factor = ast.second(current);
+                        } else if (isName(ast.second(current), inductionVariable)) {
+                            factor = ast.first(current);
+                        }
+                    }
+                    if (factor != Ast.NONE && isFactor(factor)) {
+                        makeName(current, derivedVariable(factor, loop));
+                    } else {
+                        pending[size++] = ast.second(current);
+                        pending[size++] = ast.first(current);
+                    }
+                }
+                case UNARY -> pending[size++] = ast.first(current);
+                case INDEX -> pending[size++] = ast.second(current);
+                default -> {
+                }
+            }
+        }
+    }
+
+    private boolean isFactor(int node) {
+        return ast.kind(node) == NodeKind.INT_LITERAL
+                || ast.kind(node) == NodeKind.NAME && type(ast.first(node)) == ValueType.INT
+                && !written.get(ast.first(node));
+    }
+
+    private int derivedVariable(int factor, int loop) {
+        for (int i = 0; i < factors.size(); i++) {
+            if (sameExpression(factor, factors.get(i))) {
+                return derivedVariables.get(i);
+            }
+        }
+        int position = ast.position(loop);
+        int product = ast.add(NodeKind.BINARY, position,
+                ast.add(NodeKind.NAME, position, inductionVariable, Ast.NONE, Ast.NONE),
+                copyExpression(factor, 0), TokenType.MULTIPLY.ordinal());
+        int derived = declareTemporary(product, ValueType.INT);
+        factors.add(factor);
+        derivedVariables.add(derived);
+        return derived;
+    }
+
+    // Ends the body with derived = derived + factor (or - for a decrement) for each derived variable
+    private void appendSteps(int loop, long step) {
+        int body = ast.third(loop);
+        int last = ast.first(body);
+        while (last != Ast.NONE && ast.next(last) != Ast.NONE) {
+            last = ast.next(last);
+        }
+        int position = ast.position(loop);
+        TokenType operator = step > 0 ? TokenType.PLUS : TokenType.MINUS;
+        for (int i = 0; i < derivedVariables.size(); i++) {
+            int derived = derivedVariables.get(i);
+            int sum = ast.add(NodeKind.BINARY, position, ast.add(NodeKind.NAME, position, derived, Ast.NONE, Ast.NONE),
+                    copyExpression(factors.get(i), 0), operator.ordinal());
+            int assign = ast.add(NodeKind.ASSIGN, position, derived, sum, Ast.NONE);
+            if (last == Ast.NONE) {
+                ast.setFirst(body, assign);
+            } else {
+                ast.setNext(last, assign);
+            }
+            last = assign;
+        }
+    }
+
+    // Temporaries
+
+    /** Declares a fresh local initialized to {@code expression} in front of the loop. */
+    private int declareTemporary(int expression, ValueType type) {
+        NameTable names = ast.names();
+        int nameId = names.intern("$" + names.size());
+        if (nameId >= types.length) {
+            types = Arrays.copyOf(types, Math.max(types.length * 2, nameId + 1));
+        }
+        types[nameId] = type;
+        int typeName = (type == ValueType.FLOAT ? TokenType.FLOAT : TokenType.INT).ordinal();
+        int declaration = ast.add(NodeKind.VAR_DECL, ast.position(expression), nameId, typeName, expression);
+        if (prelude == Ast.NONE) {
+            prelude = declaration;
+        } else {
+            ast.setNext(preludeEnd, declaration);
+        }
+        preludeEnd = declaration;
+        return nameId;
+    }
+
+    // Rewrites an expression node in place into a read of a variable, so its parent needs no change
+    private void makeName(int node, int nameId) {
+        ast.setKind(node, NodeKind.NAME);
+        ast.setFirst(node, nameId);
+        ast.setSecond(node, Ast.NONE);
+        ast.setThird(node, Ast.NONE);
+        ast.setValue(node, 0);
+    }
+
+    private boolean isName(int node, int nameId) {
+        return ast.kind(node) == NodeKind.NAME && ast.first(node) == nameId;
+    }
+
+    private ValueType type(int nameId) {
+        return nameId < types.length ? types[nameId] : null;
+    }
+
+    // The type Bindings would give an expression, or null if it has none
+    private ValueType typeOf(int node) {
+        // Types of the operands waiting for their parent
+        ValueType[] operands = new ValueType[16];
+        int count = 0;
+        for (int part : ast.postOrder(node)) {
+            ValueType type = switch (ast.kind(part)) {
+                case INT_LITERAL, BOOL_LITERAL -> ValueType.INT;
+                case FLOAT_LITERAL -> ValueType.FLOAT;
+                case NAME -> {
+                    ValueType declared = type(ast.first(part));
+                    yield declared == null || declared.isArray() ? null : declared;
+                }
+                case INDEX -> {
+                    count--;
+                    yield null;
+                }
+                case UNARY -> operands[--count];
+                case BINARY -> {
+                    ValueType right = operands[--count];
+                    ValueType left = operands[--count];
+                    if (left == null || right == null) {
+                        yield null;
+                    }
+                    yield Bindings.isArithmetic(ast.operator(part))
+                            && (left == ValueType.FLOAT || right == ValueType.FLOAT) ? ValueType.FLOAT : ValueType.INT;
+                }
+                default -> null;
+            };
+            if (count == operands.length) {
+                operands = Arrays.copyOf(operands, count * 2);
+            }
+            operands[count++] = type;
+        }
+        return operands[0];
+    }
+}
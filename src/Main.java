@@ -1,34 +1,175 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Main {
     public static void main(String[] args) throws IOException {
-        //Read from file
-        String result = "";
-        try (InputStream in = new FileInputStream("/home/ghost/IdeaProjects/Compiler/src/program.txt");
-             InputStreamReader r = new InputStreamReader(in);
-             BufferedReader reader = new BufferedReader(r);) {
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                result += line + "\n";
+        boolean printTokens = false;
+        boolean lexThroughput = false;
+        boolean bench = false;
+        boolean selfTest = false;
+        int benchMegabytes = 100;
+        Path benchSave = null;
+        Path benchBaseline = null;
+        boolean printAst = false;
+        boolean run = false;
+        boolean interpret = false;
+        boolean optimize = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        long cacheMegabytes = 64;
+        Path cacheDirectory = null;
+        Path syntaxDirectory = null;
+        String metricsTarget = null;
+        Path serveSocket = null;
+        Path connectSocket = null;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--tokens")) {
+                printTokens = true;
+            } else if (arg.equals("--ast")) {
+                printAst = true;
+            } else if (arg.equals("--run")) {
+                run = true;
+            } else if (arg.equals("--interpret")) {
+                interpret = true;
+            } else if (arg.equals("--optimize")) {
+                optimize = true;
+            } else if (arg.equals("--jobs") && i + 1 < args.length) {
+                jobs = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("--cache-size") && i + 1 < args.length) {
+                cacheMegabytes = Math.max(0, Long.parseLong(args[++i]));
+            } else if (arg.equals("--cache-dir") && i + 1 < args.length) {
+                cacheDirectory = Path.of(args[++i]);
+            } else if (arg.equals("--emit-syntax") && i + 1 < args.length) {
+                syntaxDirectory = Path.of(args[++i]);
+            } else if (arg.equals("--metrics") && i + 1 < args.length) {
+                metricsTarget = args[++i];
+            } else if (arg.equals("--serve") && i + 1 < args.length) {
+                serveSocket = Path.of(args[++i]);
+            } else if (arg.equals("--connect") && i + 1 < args.length) {
+                connectSocket = Path.of(args[++i]);
+            } else if (arg.equals("--lex-throughput")) {
+                lexThroughput = true;
+            } else if (arg.equals("--bench")) {
+                bench = true;
+            } else if (arg.equals("--selftest")) {
+                selfTest = true;
+            } else if (arg.equals("--bench-max") && i + 1 < args.length) {
+                benchMegabytes = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("--bench-save") && i + 1 < args.length) {
+                benchSave = Path.of(args[++i]);
+            } else if (arg.equals("--bench-baseline") && i + 1 < args.length) {
+                benchBaseline = Path.of(args[++i]);
+            } else {
+                files.add(Path.of(arg));
             }
         }
 
-        String code = result;
-        Lexer lexer = new Lexer(code);
-        List<Token> tokens = lexer.tokenize();
-        for(Token token: tokens){
-            System.out.println(token);
+        if (selfTest) {
+            if (!SelfTest.run()) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (bench) {
+            if (!Benchmarks.run(benchMegabytes << 20, benchSave, benchBaseline)) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        CompilationCache cache = cacheMegabytes > 0 || cacheDirectory != null
+                ? new CompilationCache(cacheMegabytes * 1024 * 1024, cacheDirectory)
+                : null;
+        if (serveSocket != null) {
+            new CompileServer(serveSocket, jobs, cache).serve();
+            return;
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: java Main [--tokens] [--ast] [--optimize] [--run | --interpret] [--jobs <n>] [--cache-size <MB>] [--cache-dir <dir>] [--emit-syntax <dir>] [--metrics <json-file | ->] [--lex-throughput] [--connect <socket>] <source-file | directory>...");
+            System.err.println("       java Main --serve <socket> [--jobs <n>] [--cache-size <MB>] [--cache-dir <dir>]");
+            System.err.println("       java Main --bench [--bench-max <MB>] [--bench-save <csv>] [--bench-baseline <csv>]");
+            System.err.println("       java Main --selftest");
+            System.exit(2);
+        }
+
+        files = BuildDriver.expand(files);
+        if (lexThroughput) {
+            for (Path file : files) {
+                if (files.size() > 1) {
+                    System.out.println("== " + file);
+                }
+                reportLexThroughput(file);
+            }
+            return;
+        }
+
+        CompileOptions options = new CompileOptions(printTokens, printAst, optimize, run, interpret, syntaxDirectory);
+        if (connectSocket != null && metricsTarget == null) {
+            CompileServer.Reply reply = CompileServer.request(connectSocket, options, files);
+            if (reply != null) {
+                System.out.print(reply.output());
+                if (reply.failed()) {
+                    System.exit(1);
+                }
+                return;
+            }
+            // No server is running, so build here instead
         }
-        Parser parser = new Parser(tokens);
 
-        try {
-            parser.parse();
-            System.out.println("Parsing completed successfully!");
-        } catch (RuntimeException e) {
-            System.out.println("Parsing failed:" + e.getMessage());
+        CompilerMetrics metrics = metricsTarget != null ? new CompilerMetrics() : CompilerMetrics.DISABLED;
+        long buildStart = System.nanoTime();
+        List<BuildDriver.FileResult> results = new BuildDriver(options, jobs, cache, metrics).build(files);
+        long buildNanos = System.nanoTime() - buildStart;
+        int failed = BuildDriver.print(results, System.out);
+        if (cache != null && (files.size() > 1 || cacheDirectory != null)) {
+            System.out.println(cache.stats());
+        }
+        if (metricsTarget != null) {
+            String summary = metrics.toJson(files.size(), failed, buildNanos);
+            if (metricsTarget.equals("-")) {
+                System.out.println(summary);
+            } else {
+                Files.writeString(Path.of(metricsTarget), summary + System.lineSeparator());
+            }
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void reportLexThroughput(Path file) throws IOException {
+        CharSequence code = SourceFile.load(file);
+
+        // Warm up first so the timed runs measure JIT-compiled code
+        for (int i = 0; i < 5; i++) {
+            countTokens(code);
         }
 
+        int iterations = 10;
+        long tokenCount = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            tokenCount = countTokens(code);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double megabytes = (double) code.length() * iterations / (1024 * 1024);
+        double seconds = elapsed / 1e9;
+        System.out.printf("Lexed %d tokens from %d bytes: %.1f MB/s%n",
+                tokenCount, code.length(), megabytes / seconds);
     }
-}
 
+    private static long countTokens(CharSequence code) {
+        Lexer lexer = new Lexer(code);
+        long count = 0;
+        while (lexer.next() != TokenType.EOF) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * Intern table for identifier names. Each distinct name gets a stable int ID
+ * in order of first appearance, so later phases can compare names by ID.
+ * Lookups hash the name straight from its source range; characters are only
+ * copied (into a shared char pool) the first time a name is seen, and Strings
+ * are created lazily by {@link #name(int)}.
+ */
+public final class NameTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private char[] pool = new char[INITIAL_CAPACITY * 8];
+    private int poolSize;
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int size;
+
+    // Open addressing over name IDs; 0 marks an empty slot, otherwise ID + 1.
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    public int intern(CharSequence source, int start, int length) {
+        int hash = 0;
+        for (int i = start, end = start + length; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && equalsRange(id, source, start, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = add(source, start, length, hash);
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    public String name(int id) {
+        String name = strings[id];
+        if (name == null) {
+            name = new String(pool, offsets[id], lengths[id]);
+            strings[id] = name;
+        }
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** A table with the same names under the same IDs, which grows independently of this one. */
+    public NameTable copy() {
+        NameTable copy = new NameTable();
+        copy.pool = pool.clone();
+        copy.poolSize = poolSize;
+        copy.offsets = offsets.clone();
+        copy.lengths = lengths.clone();
+        copy.hashes = hashes.clone();
+        copy.strings = strings.clone();
+        copy.size = size;
+        copy.slots = slots.clone();
+        return copy;
+    }
+
+    private boolean equalsRange(int id, CharSequence source, int start, int length) {
+        if (lengths[id] != length) {
+            return false;
+        }
+        int offset = offsets[id];
+        for (int i = 0; i < length; i++) {
+            if (pool[offset + i] != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(CharSequence source, int start, int length, int hash) {
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+        }
+        if (poolSize + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+        }
+        for (int i = 0; i < length; i++) {
+            pool[poolSize + i] = source.charAt(start + i);
+        }
+
+        int id = size++;
+        offsets[id] = poolSize;
+        lengths[id] = length;
+        hashes[id] = hash;
+        poolSize += length;
+        return id;
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
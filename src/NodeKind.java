@@ -0,0 +1,39 @@
+/**
+ * Node kinds stored in an {@link Ast}. Each node has three int fields
+ * (first, second, third), a long value and a next-sibling link; the comment
+ * on each kind says how they are used. Names are {@link NameTable} IDs,
+ * operators and types are TokenType ordinals, and absent children are
+ * {@link Ast#NONE}. Statement lists are chained through the next link.
+ */
+public enum NodeKind {
+    // Statements
+    PROGRAM,        // first = first statement
+    BLOCK,          // first = first statement
+    VAR_DECL,       // first = name, second = type (INT or FLOAT), third = initializer
+    ARRAY_DECL,     // first = name, second = element type or NONE, third = first element, value = declared length
+    FUNC,           // first = name, second = body block
+    ASSIGN,         // first = name, second = value
+    ARRAY_ASSIGN,   // first = name, second = index, third = value
+    INCREMENT,      // first = name
+    DECREMENT,      // first = name
+    IF,             // first = condition or NONE, second = then block, third = else block, else-if or NONE
+    FOR,            // first = init statement, second = condition, third = body block, value = update statement or NONE
+
+    // Expressions
+    INT_LITERAL,    // value = the integer
+    BOOL_LITERAL,   // value = 1 for true, 0 for false; evaluates as an INT
+    FLOAT_LITERAL,  // value = Double.doubleToRawLongBits of the number
+    STRING_LITERAL, // first = start offset of the text in the source, second = its length
+    NAME,           // first = name
+    INDEX,          // first = array name, second = index
+    BINARY,         // first = left, second = right, third = operator
+    UNARY,          // first = operand, third = operator
+    NEW,            // first = type name
+    ERROR;          // stands in for an expression that failed to parse
+
+    private static final NodeKind[] VALUES = values();
+
+    public static NodeKind of(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
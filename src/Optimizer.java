@@ -0,0 +1,480 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Constant folding, loop optimization (see {@link LoopOptimizer}) and
+ * dead-code elimination over an {@link Ast}. Nodes are
+ * rewritten in place, so parents never need to be relinked for a folded
+ * expression; statement lists are rebuilt as branches and declarations
+ * disappear.
+ * <p>
+ * Integer division by a constant zero is left alone so it still fails at
+ * run time, and && / || only fold when their left side is constant, which
+ * keeps short-circuit evaluation intact. Unused variables are only removed
+ * when they are local to a function, since globals are the program's output.
+ */
+public final class Optimizer {
+    private static final int UNSEEN = -2;
+
+    private final Ast ast;
+    private int foldedExpressions;
+    private int removedBranches;
+    private int removedDeclarations;
+
+    // Per name ID, recomputed on every dead-variable sweep
+    private int[] reads;
+    private int[] declaringFunction;
+    private boolean[] keep;
+
+    public Optimizer(Ast ast) {
+        this.ast = ast;
+    }
+
+    public Report optimize() {
+        int root = ast.root();
+        int before = ast.count(root);
+
+        ast.setFirst(root, optimizeList(ast.first(root)));
+        int eliminated = before - ast.count(root);
+        // Loops are counted on folded bounds, and unrolled bodies fold further
+        List<LoopOptimizer.Transform> loops = new LoopOptimizer(ast).optimize();
+        if (!loops.isEmpty()) {
+            int grown = ast.count(root);
+            ast.setFirst(root, optimizeList(ast.first(root)));
+            eliminated += grown - ast.count(root);
+        }
+        // Removing one dead assignment can leave the variables it read unused
+        int beforeSweep = ast.count(root);
+        while (removeUnusedLocals()) {
+            ast.setFirst(root, removeDeadStatements(ast.first(root)));
+        }
+        eliminated += beforeSweep - ast.count(root);
+
+        return new Report(foldedExpressions, removedBranches, removedDeclarations, eliminated, loops);
+    }
+
+    /**
+     * @param eliminatedNodes nodes removed by folding and dead-code
+     *                        elimination; copies made by unrolling are not
+     *                        counted against them
+     * @param loops           the loops {@link LoopOptimizer} transformed
+     */
+    public record Report(int foldedExpressions, int removedBranches, int removedDeclarations, int eliminatedNodes,
+                         List<LoopOptimizer.Transform> loops) {
+        @Override
+        public String toString() {
+            return "Folded " + foldedExpressions + " expressions, removed " + removedBranches + " branches and "
+                    + removedDeclarations + " unused declarations; " + eliminatedNodes + " nodes eliminated; "
+                    + loops.size() + (loops.size() == 1 ? " loop" : " loops") + " transformed";
+        }
+    }
+
+    private int optimizeList(int node) {
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (node != Ast.NONE) {
+            int next = ast.next(node);
+            ast.setNext(node, Ast.NONE);
+            int result = optimizeStatement(node);
+            // A BLOCK left behind by a removed branch is spliced into the list,
+            // unless its declarations would then share the list's scope
+            int statement = result != Ast.NONE && ast.kind(result) == NodeKind.BLOCK && result != node
+                    && !declaresNames(result) ? ast.first(result) : result;
+            while (statement != Ast.NONE) {
+                int following = result == statement ? Ast.NONE : ast.next(statement);
+                if (last == Ast.NONE) {
+                    first = statement;
+                } else {
+                    ast.setNext(last, statement);
+                }
+                last = statement;
+                statement = following;
+            }
+            node = next;
+        }
+        return first;
+    }
+
+    private boolean declaresNames(int block) {
+        for (int statement = ast.first(block); statement != Ast.NONE; statement = ast.next(statement)) {
+            if (ast.kind(statement) == NodeKind.VAR_DECL || ast.kind(statement) == NodeKind.ARRAY_DECL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Optimizes one statement and returns what should take its place: the
+     * statement itself, a BLOCK whose contents replace it, or NONE.
+     */
+    private int optimizeStatement(int node) {
+        switch (ast.kind(node)) {
+            case BLOCK -> ast.setFirst(node, optimizeList(ast.first(node)));
+            case VAR_DECL -> fold(ast.third(node));
+            case ARRAY_DECL -> {
+                for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+                    fold(element);
+                }
+            }
+            case FUNC -> optimizeStatement(ast.second(node));
+            case ASSIGN -> fold(ast.second(node));
+            case ARRAY_ASSIGN -> {
+                fold(ast.second(node));
+                fold(ast.third(node));
+            }
+            case IF -> {
+                return optimizeIf(node);
+            }
+            case FOR -> {
+                int init = ast.first(node);
+                if (init != Ast.NONE) {
+                    optimizeStatement(init);
+                }
+                fold(ast.second(node));
+                optimizeStatement(ast.third(node));
+                if (isLiteral(ast.second(node)) && !isTrue(ast.second(node))) {
+                    removedBranches++;
+                    return init;
+                }
+            }
+            default -> {
+            }
+        }
+        return node;
+    }
+
+    // Else-if chains can be long, so the links are folded on the way down
+    // and replaced by their taken branch on the way back up, without recursion
+    private int optimizeIf(int node) {
+        int[] links = new int[8];
+        int count = 0;
+        int branch = node;
+        for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+            if (count == links.length) {
+                links = Arrays.copyOf(links, count * 2);
+            }
+            links[count++] = branch;
+            fold(ast.first(branch));
+            optimizeStatement(ast.second(branch));
+        }
+        int result = branch == Ast.NONE ? Ast.NONE : optimizeStatement(branch);
+        while (count > 0) {
+            int link = links[--count];
+            ast.setThird(link, result);
+            int condition = ast.first(link);
+            if (condition == Ast.NONE || isLiteral(condition)) {
+                removedBranches++;
+                result = condition == Ast.NONE || isTrue(condition) ? ast.second(link) : result;
+            } else {
+                result = link;
+            }
+        }
+        return result;
+    }
+
+    private void fold(int node) {
+        // Operands come first, so each node sees its operands already folded
+        for (int part : ast.postOrder(node)) {
+            switch (ast.kind(part)) {
+                case UNARY -> {
+                    int operand = ast.first(part);
+                    if (isLiteral(operand)) {
+                        if (ast.kind(operand) == NodeKind.FLOAT_LITERAL) {
+                            setFloat(part, -ast.floatValue(operand));
+                        } else {
+                            setInt(part, -ast.value(operand));
+                        }
+                    }
+                }
+                case BINARY -> foldBinary(part, ast.operator(part), ast.first(part), ast.second(part));
+                default -> {
+                }
+            }
+        }
+    }
+
+    private void foldBinary(int node, TokenType operator, int left, int right) {
+        if (operator == TokenType.AND || operator == TokenType.OR) {
+            if (!isLiteral(left)) {
+                return;
+            }
+            boolean leftTrue = isTrue(left);
+            if (operator == TokenType.AND && !leftTrue) {
+                setInt(node, 0);
+            } else if (operator == TokenType.OR && leftTrue) {
+                setInt(node, 1);
+            } else if (isLiteral(right)) {
+                setInt(node, isTrue(right) ? 1 : 0);
+            }
+            return;
+        }
+        if (!isLiteral(left) || !isLiteral(right)) {
+            return;
+        }
+
+        boolean isFloat = ast.kind(left) == NodeKind.FLOAT_LITERAL || ast.kind(right) == NodeKind.FLOAT_LITERAL;
+        if (isFloat) {
+            double a = numericValue(left);
+            double b = numericValue(right);
+            switch (operator) {
+                case PLUS -> setFloat(node, a + b);
+                case MINUS -> setFloat(node, a - b);
+                case MULTIPLY -> setFloat(node, a * b);
+                case DIVIDE -> setFloat(node, a / b);
+                default -> setInt(node, compare(operator, a, b) ? 1 : 0);
+            }
+        } else {
+            long a = ast.value(left);
+            long b = ast.value(right);
+            switch (operator) {
+                case PLUS -> setInt(node, a + b);
+                case MINUS -> setInt(node, a - b);
+                case MULTIPLY -> setInt(node, a * b);
+                case DIVIDE -> {
+                    // Division by zero must still fail when the program runs
+                    if (b != 0) {
+                        setInt(node, a / b);
+                    }
+                }
+                default -> setInt(node, compare(operator, a, b) ? 1 : 0);
+            }
+        }
+    }
+
+    // The primitive operators, like the backends: -0.0 equals 0.0, and NaN
+    // compares false except with !=
+    private static boolean compare(TokenType operator, double a, double b) {
+        return switch (operator) {
+            case EQUAL -> a == b;
+            case NOT_EQUAL -> a != b;
+            case LESS_THAN -> a < b;
+            case LESS_THAN_OR_EQUAL -> a <= b;
+            case GREATER_THAN -> a > b;
+            default -> a >= b;
+        };
+    }
+
+    private static boolean compare(TokenType operator, long a, long b) {
+        return switch (operator) {
+            case EQUAL -> a == b;
+            case NOT_EQUAL -> a != b;
+            case LESS_THAN -> a < b;
+            case LESS_THAN_OR_EQUAL -> a <= b;
+            case GREATER_THAN -> a > b;
+            default -> a >= b;
+        };
+    }
+
+    private void setInt(int node, long value) {
+        replace(node, NodeKind.INT_LITERAL, value);
+    }
+
+    private void setFloat(int node, double value) {
+        replace(node, NodeKind.FLOAT_LITERAL, Double.doubleToRawLongBits(value));
+    }
+
+    private void replace(int node, NodeKind kind, long value) {
+        ast.setKind(node, kind);
+        ast.setFirst(node, Ast.NONE);
+        ast.setSecond(node, Ast.NONE);
+        ast.setThird(node, Ast.NONE);
+        ast.setValue(node, value);
+        foldedExpressions++;
+    }
+
+    private boolean isLiteral(int node) {
+        if (node == Ast.NONE) {
+            return false;
+        }
+        NodeKind kind = ast.kind(node);
+        return kind == NodeKind.INT_LITERAL || kind == NodeKind.BOOL_LITERAL || kind == NodeKind.FLOAT_LITERAL;
+    }
+
+    private boolean isTrue(int literal) {
+        return ast.kind(literal) == NodeKind.FLOAT_LITERAL ? ast.floatValue(literal) != 0 : ast.value(literal) != 0;
+    }
+
+    private double numericValue(int literal) {
+        return ast.kind(literal) == NodeKind.FLOAT_LITERAL ? ast.floatValue(literal) : ast.value(literal);
+    }
+
+    /**
+     * Finds function-local variables that are never read and marks them for
+     * removal. Returns whether there is anything to remove.
+     */
+    private boolean removeUnusedLocals() {
+        int nameCount = ast.names().size();
+        reads = new int[nameCount];
+        declaringFunction = new int[nameCount];
+        keep = new boolean[nameCount];
+        Arrays.fill(declaringFunction, UNSEEN);
+        scanReferences(ast.first(ast.root()), Ast.NONE);
+
+        boolean found = false;
+        for (int nameId = 0; nameId < nameCount; nameId++) {
+            boolean local = declaringFunction[nameId] >= 0;
+            if (local && reads[nameId] == 0 && !keep[nameId]) {
+                found = true;
+            } else {
+                keep[nameId] = true;
+            }
+        }
+        return found;
+    }
+
+    private void scanReferences(int node, int function) {
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            scanNode(node, function);
+        }
+    }
+
+    private void scanNode(int node, int function) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        switch (ast.kind(node)) {
+            case PROGRAM, BLOCK -> scanReferences(ast.first(node), function);
+            case VAR_DECL, ARRAY_DECL -> {
+                int nameId = ast.first(node);
+                // Reads are counted by name across every declaration, so a
+                // name that is a global anywhere is kept everywhere
+                if (declaringFunction[nameId] != Ast.NONE) {
+                    declaringFunction[nameId] = function;
+                }
+                if (ast.kind(node) == NodeKind.VAR_DECL) {
+                    scanExpression(ast.third(node));
+                    keepUnlessSafe(nameId, ast.third(node));
+                } else {
+                    for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+                        scanExpression(element);
+                        keepUnlessSafe(nameId, element);
+                    }
+                }
+            }
+            case FUNC -> scanNode(ast.second(node), node);
+            case ASSIGN -> {
+                scanExpression(ast.second(node));
+                keepUnlessSafe(ast.first(node), ast.second(node));
+            }
+            case ARRAY_ASSIGN -> {
+                // Stores can fail on a bad index, so they keep their array alive
+                keep[ast.first(node)] = true;
+                scanExpression(ast.second(node));
+                scanExpression(ast.third(node));
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    scanExpression(ast.first(branch));
+                    scanNode(ast.second(branch), function);
+                }
+                scanNode(branch, function);
+            }
+            case FOR -> {
+                scanNode(ast.first(node), function);
+                scanExpression(ast.second(node));
+                scanNode((int) ast.value(node), function);
+                scanNode(ast.third(node), function);
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void scanExpression(int node) {
+        for (int part : ast.postOrder(node)) {
+            if (ast.kind(part) == NodeKind.NAME || ast.kind(part) == NodeKind.INDEX) {
+                reads[ast.first(part)]++;
+            }
+        }
+    }
+
+
+    private void keepUnlessSafe(int nameId, int expression) {
+        if (!isSafe(expression)) {
+            keep[nameId] = true;
+        }
+    }
+
+    // Expressions that can neither fail at run time nor be rejected by a backend
+    private boolean isSafe(int node) {
+        for (int part : ast.postOrder(node)) {
+            switch (ast.kind(part)) {
+                case INT_LITERAL, BOOL_LITERAL, FLOAT_LITERAL, NAME, UNARY -> {
+                }
+                case BINARY -> {
+                    int right = ast.second(part);
+                    boolean nonZero = ast.kind(right) == NodeKind.FLOAT_LITERAL
+                            || isLiteral(right) && ast.value(right) != 0;
+                    if (ast.operator(part) == TokenType.DIVIDE && !nonZero) {
+                        return false;
+                    }
+                }
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int removeDeadStatements(int node) {
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (node != Ast.NONE) {
+            int next = ast.next(node);
+            ast.setNext(node, Ast.NONE);
+            if (!removeDeadChildren(node)) {
+                if (last == Ast.NONE) {
+                    first = node;
+                } else {
+                    ast.setNext(last, node);
+                }
+                last = node;
+            }
+            node = next;
+        }
+        return first;
+    }
+
+    /** Removes dead statements below {@code node}; returns whether the node itself is dead. */
+    private boolean removeDeadChildren(int node) {
+        switch (ast.kind(node)) {
+            case BLOCK -> ast.setFirst(node, removeDeadStatements(ast.first(node)));
+            case FUNC -> removeDeadChildren(ast.second(node));
+            case VAR_DECL, ARRAY_DECL -> {
+                if (!keep[ast.first(node)]) {
+                    removedDeclarations++;
+                    return true;
+                }
+            }
+            case ASSIGN, INCREMENT, DECREMENT -> {
+                return !keep[ast.first(node)];
+            }
+            case IF -> {
+                int branch = node;
+                for (; branch != Ast.NONE && ast.kind(branch) == NodeKind.IF; branch = ast.third(branch)) {
+                    removeDeadChildren(ast.second(branch));
+                }
+                if (branch != Ast.NONE) {
+                    removeDeadChildren(branch);
+                }
+            }
+            case FOR -> {
+                int init = ast.first(node);
+                if (init != Ast.NONE && removeDeadChildren(init)) {
+                    ast.setFirst(node, Ast.NONE);
+                }
+                int update = (int) ast.value(node);
+                if (update != Ast.NONE && removeDeadChildren(update)) {
+                    ast.setValue(node, Ast.NONE);
+                }
+                removeDeadChildren(ast.third(node));
+            }
+            default -> {
+            }
+        }
+        return false;
+    }
+}
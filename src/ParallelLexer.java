@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lexes one large source on several threads. The text is cut into chunks
+ * just after newlines, each chunk is lexed with a name table of its own, and
+ * the chunk buffers are stitched together with their name IDs translated
+ * into one shared table. Names are added chunk by chunk in order of first
+ * appearance, so the result is the same as {@link Lexer#tokenize()}'s.
+ * <p>
+ * A newline is only a safe place to cut when no token runs across it, and
+ * the only tokens that can are string literals. A chunk whose last token
+ * carries the lexer past the chunk's end therefore makes the whole input
+ * fall back to sequential lexing.
+ */
+public final class ParallelLexer {
+    /** Chunks are at least this long; smaller inputs are lexed on the calling thread. */
+    static final int MIN_CHUNK_LENGTH = 1 << 20;
+
+    private ParallelLexer() {
+    }
+
+    public static TokenBuffer tokenize(CharSequence code) {
+        return tokenize(code, ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Lexes {@code code} in up to {@code parallelism} times four chunks, run
+     * in the current fork-join pool, or the common pool outside of one.
+     */
+    public static TokenBuffer tokenize(CharSequence code, int parallelism) {
+        int chunks = (int) Math.min(4L * parallelism, code.length() / MIN_CHUNK_LENGTH);
+        List<Integer> bounds = parallelism > 1 && chunks > 1 ? boundaries(code, chunks) : List.of();
+        if (bounds.size() < 3) {
+            return new Lexer(code).tokenize();
+        }
+
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>(bounds.size() - 1);
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            int start = bounds.get(i);
+            int end = bounds.get(i + 1);
+            boolean last = i + 2 == bounds.size();
+            tasks.add(ForkJoinTask.adapt(() -> lexChunk(code, start, end, last)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        int total = 0;
+        for (ForkJoinTask<TokenBuffer> task : tasks) {
+            TokenBuffer chunk = task.join();
+            if (chunk == null) {
+                return new Lexer(code).tokenize();
+            }
+            total += chunk.size();
+        }
+
+        NameTable names = new NameTable();
+        TokenBuffer tokens = new TokenBuffer(code, names, total);
+        for (ForkJoinTask<TokenBuffer> task : tasks) {
+            TokenBuffer chunk = task.join();
+            NameTable chunkNames = chunk.names();
+            int[] nameMap = new int[chunkNames.size()];
+            for (int id = 0; id < nameMap.length; id++) {
+                nameMap[id] = names.intern(chunkNames.name(id));
+            }
+            tokens.append(chunk, nameMap);
+        }
+        return tokens;
+    }
+
+    // Chunk starts, each just after a newline, followed by the text length
+    private static List<Integer> boundaries(CharSequence code, int chunks) {
+        List<Integer> bounds = new ArrayList<>(chunks + 1);
+        bounds.add(0);
+        for (int i = 1; i < chunks; i++) {
+            int target = (int) ((long) code.length() * i / chunks);
+            int newline = indexOfNewline(code, Math.max(target, bounds.get(bounds.size() - 1)));
+            if (newline < 0 || newline + 1 >= code.length()) {
+                break;
+            }
+            if (newline + 1 > bounds.get(bounds.size() - 1)) {
+                bounds.add(newline + 1);
+            }
+        }
+        bounds.add(code.length());
+        return bounds;
+    }
+
+    private static int indexOfNewline(CharSequence code, int from) {
+        if (code instanceof String text) {
+            return text.indexOf('\n', from);
+        }
+        for (int i = from; i < code.length(); i++) {
+            if (code.charAt(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns null if a token starting in the chunk does not end in it
+    private static TokenBuffer lexChunk(CharSequence code, int start, int end, boolean last) {
+        NameTable names = new NameTable();
+        Lexer lexer = new Lexer(code, names, start);
+        TokenBuffer tokens = new TokenBuffer(code, names, TokenBuffer.capacityFor(end - start));
+        while (true) {
+            TokenType type = lexer.next();
+            if (last) {
+                tokens.add(type, lexer.tokenStart(), lexer.tokenLength(), lexer.tokenName());
+                if (type == TokenType.EOF) {
+                    return tokens;
+                }
+                continue;
+            }
+            // A string literal's start is past the identifier before it, but
+            // both lie on one line, so this still tells which chunk it is in
+            if (type == TokenType.EOF || lexer.tokenStart() >= end) {
+                return tokens;
+            }
+            tokens.add(type, lexer.tokenStart(), lexer.tokenLength(), lexer.tokenName());
+            if (lexer.position() > end) {
+                return null;
+            }
+        }
+    }
+}
@@ -1,173 +1,367 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public class Parser {
-    private List<Token> tokens;
-    private int currentTokenIndex;
-    private Token currentToken;
-    private Map<String, TokenType> variables;
-    private List<String> errors;
+    // consume/match only look at the current token and peek() at the next one,
+    // so two slots are all the parser ever needs to hold.
+    private static final int LOOKAHEAD = 2;
+    private static final int WINDOW_MASK = LOOKAHEAD - 1;
+
+    // Binding strength of each binary operator by TokenType ordinal, 0 for
+    // other tokens. AND and OR share the lowest level.
+    private static final byte[] PRECEDENCE = new byte[TokenType.values().length];
+    private static final int BOOLEAN = 1;
+    private static final int COMPARISON = 2;
+
+    // The passes after the parser walk expressions and else-if chains with
+    // their own stacks, but still recurse once per block, so blocks nested
+    // deeper than this are reported here instead of overflowing their stacks.
+    static final int MAX_DEPTH = 1000;
+
+    static {
+        precedence(BOOLEAN, TokenType.AND, TokenType.OR);
+        precedence(COMPARISON, TokenType.EQUAL, TokenType.NOT_EQUAL, TokenType.LESS_THAN,
+                TokenType.LESS_THAN_OR_EQUAL, TokenType.GREATER_THAN, TokenType.GREATER_THAN_OR_EQUAL);
+        precedence(3, TokenType.PLUS, TokenType.MINUS);
+        precedence(4, TokenType.MULTIPLY, TokenType.DIVIDE);
+    }
+
+    // Kinds of expression frame
+    private static final byte TOP = 0;
+    private static final byte PARENTHESIZED = 1;
+    private static final byte EQUALITY = 2;
+    private static final byte SUBSCRIPT = 3;
+
+    private final TokenSource source;
+    private final CharSequence sourceCode;
+    // The window is packed like TokenBuffer: type ordinal, start, length and name.
+    private final byte[] windowTypes = new byte[LOOKAHEAD];
+    private final int[] windowStarts = new int[LOOKAHEAD];
+    private final int[] windowLengths = new int[LOOKAHEAD];
+    private final int[] windowNames = new int[LOOKAHEAD];
+    private int windowHead;
+    private int windowSize;
+    private TokenType currentType;
+    // Index of the current token in the stream, counted from the token the
+    // parser started at.
+    private int tokenIndex;
+    private final StatementSpans spans;
+    private final SymbolTable symbols;
+    // Errors are recorded rather than thrown. After a syntax error the parser
+    // is panicking: it reports nothing more until the statement list it is in
+    // has skipped ahead to a statement boundary.
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    private boolean panicking;
     private int declaraCount = 0;
 
     private int initializerCount = 0;
+    private final Ast ast;
+
+    private final NameTable names;
+
+    // Operands and pending operators of the expression being parsed, and one
+    // frame per open parenthesis, subscript or "name ==". Frames hold what to
+    // build when their expression ends, so nesting depth is bounded by the
+    // heap rather than the Java stack.
+    private int[] operands = new int[16];
+    private int operandCount;
+    private byte[] operators = new byte[16];
+    private int operatorCount;
+    private byte[] frameKinds = new byte[8];
+    private int[] frameNodes = new int[8];
+    private int[] framePositions = new int[8];
+    private int[] frameMinus = new int[8];
+    private int[] frameOperators = new int[8];
+    private boolean[] frameCompared = new boolean[8];
+    private int frameCount;
+    // Links of the else-if chains being parsed, innermost chain on top
+    private int[] chainPositions = new int[8];
+    private int[] chainConditions = new int[8];
+    private int[] chainBlocks = new int[8];
+    private int chainCount;
+    // Blocks around the current token
+    private int nesting;
+
+    public Parser(TokenSource source) {
+        this(source, new Ast(source.names(), source.sourceCode()), new SymbolTable(), null, 0, 0);
+    }
+
+    /**
+     * Parser that adds to an existing tree, for re-parsing part of a file.
+     * {@code symbols} holds the declarations visible at the first token,
+     * which is token number {@code firstToken} of the whole stream, inside
+     * {@code nesting} blocks. When {@code spans} is given, the token range
+     * of every statement and block is recorded in it.
+     */
+    Parser(TokenSource source, Ast ast, SymbolTable symbols, StatementSpans spans, int firstToken, int nesting) {
+        this.source = source;
+        this.sourceCode = source.sourceCode();
+        this.names = source.names();
+        this.symbols = symbols;
+        this.ast = ast;
+        this.spans = spans;
+        this.tokenIndex = firstToken;
+        this.nesting = nesting;
+        fill();
+        this.currentType = TokenType.of(windowTypes[windowHead]);
+    }
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
-        this.currentTokenIndex = 0;
-        this.currentToken = tokens.get(currentTokenIndex);
-        this.variables = new HashMap<>();
-        this.errors = new ArrayList<>();
+    public Parser(TokenBuffer tokens) {
+        this(tokens.reader());
     }
 
     public void parse() {
-        while (currentToken.getType() != TokenType.EOF) {
-            parseStatement();
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (currentType != TokenType.EOF) {
+            int statement = parseListStatement();
+            if (statement != Ast.NONE) {
+                if (last == Ast.NONE) {
+                    first = statement;
+                } else {
+                    ast.setNext(last, statement);
+                }
+                last = statement;
+            }
         }
+        ast.setRoot(ast.add(NodeKind.PROGRAM, 0, first, Ast.NONE, Ast.NONE));
+        if (diagnostics.isEmpty()) {
+            // Indexes are checked against the whole tree, since loop bounds and lengths can come from anywhere
+            diagnostics.addAll(BoundsAnalysis.analyze(ast).errors());
+        }
+    }
 
-        checkVariableDeclarations();
+    public Ast getAst() {
+        return ast;
     }
 
-    private void checkVariableDeclarations() {
-        for (Map.Entry<String, TokenType> entry : variables.entrySet()) {
-            String variableName = entry.getKey();
-            TokenType variableType = entry.getValue();
+    /** Every error found, in source order. The tree is only usable when this is empty. */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
 
-            int declarationCount = 0;
-            for (Token token : tokens) {
-                if (token.getType() == TokenType.IDENTIFIER && token.getValue().equals(variableName)) {
-                    declarationCount++;
-                    if (declarationCount > 1) {
-                            addError("Variable " + variableName + " is already declared.");
-                        break;
-                    }
-                }
-            }
+    public boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
 
-            if (declarationCount == 1 && !matchVariableType(variableName, variableType)) {
-                addError("Variable " + variableName + " is declared with a different type.");
-            }
+    /** Parses one statement of a statement list, or returns NONE for a dropped one. */
+    int parseNextStatement() {
+        return parseListStatement();
+    }
+
+    int tokenIndex() {
+        return tokenIndex;
+    }
+
+    // One diagnostic per offset; the first explains the rest
+    private void addError(int start, int length, String message) {
+        if (!panicking && (diagnostics.isEmpty() || diagnostics.get(diagnostics.size() - 1).start() != start)) {
+            diagnostics.add(new Diagnostic(start, length, message));
         }
     }
 
-    private boolean matchVariableType(String variableName, TokenType variableType) {
-        for (int i = 0; i < tokens.size(); i++) {
-            Token token = tokens.get(i);
-            if (token.getType() == TokenType.IDENTIFIER && token.getValue().equals(variableName)) {
-                if (i + 2 < tokens.size() && tokens.get(i + 2).getType() == variableType) {
-                    return true;
+    // Reports the current token as unexpected and skips the rest of the statement
+    private void syntaxError(String message) {
+        addError(currentStart(), windowLengths[windowHead], message);
+        panicking = true;
+    }
+
+    private int parseListStatement() {
+        int firstToken = tokenIndex;
+        panicking = false;
+        int statement = parseStatement();
+        if (panicking) {
+            synchronize(firstToken);
+        }
+        return statement;
+    }
+
+    // Skips to just past the next ';' or braced block, or to the next '}' or
+    // statement keyword. Recovery always makes progress: a statement that
+    // consumed nothing loses at least its first token.
+    private void synchronize(int firstToken) {
+        panicking = false;
+        boolean progressed = tokenIndex != firstToken;
+        while (currentType != TokenType.EOF) {
+            switch (currentType) {
+                case SEMICOLON -> {
+                    advance();
+                    return;
+                }
+                case LEFT_BRACE -> {
+                    skipBlock();
+                    return;
+                }
+                case RIGHT_BRACE, VAR, IF, FOR, FUNC -> {
+                    if (progressed) {
+                        return;
+                    }
+                    advance();
                 }
+                default -> advance();
             }
+            progressed = true;
         }
-        return false;
     }
 
-    private void addError(String message) {
-        errors.add(message);
+    private void skipBlock() {
+        int depth = 0;
+        while (currentType != TokenType.EOF) {
+            if (currentType == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (currentType == TokenType.RIGHT_BRACE && --depth == 0) {
+                advance();
+                return;
+            }
+            advance();
+        }
     }
 
-    private boolean variableExists(String variableName) {
-        return variables.containsKey(variableName);
+    private int parseStatement() {
+        int firstToken = tokenIndex;
+        int statement = parseStatementKind();
+        if (spans != null && statement != Ast.NONE) {
+            spans.set(statement, firstToken, tokenIndex);
+        }
+        return statement;
     }
 
-    private void parseStatement() {
+    private int parseStatementKind() {
         if (match(TokenType.VAR)) {
-            parseVariableDeclaration();
+            return parseVariableDeclaration();
         } else if (match(TokenType.IDENTIFIER)) {
-            if (peek().getType() == TokenType.LEFT_BRACKET) {
-                parseArrayAssignment();
-            } else if (peek().getType() == TokenType.INCREMENT) {
-                parseIncrementStatement();
-            } else if (peek().getType() == TokenType.DECREMENT) {
-                parseDecrementStatement();
-            } else if (peek().getType() == TokenType.ASSIGN) {
-                parseAssignment();
+            if (peekType() == TokenType.LEFT_BRACKET) {
+                return parseArrayAssignment();
+            } else if (peekType() == TokenType.INCREMENT) {
+                return parseIncrementStatement();
+            } else if (peekType() == TokenType.DECREMENT) {
+                return parseDecrementStatement();
+            } else if (peekType() == TokenType.ASSIGN) {
+                return parseAssignment();
             } else {
-                parseAssignmentWithArithmetic(); // Handle assignment with arithmetic expressions
+                return parseAssignmentWithArithmetic(); // Handle assignment with arithmetic expressions
             }
         } else if (match(TokenType.IF)) {
-            parseIfStatement();
+            return parseIfStatement();
         } else if (match(TokenType.FOR)) {
-            parseForLoop();
+            return parseForLoop();
         } else if (match(TokenType.FUNC)) {
-            parseFunctionDeclaration();
+            return parseFunctionDeclaration();
         } else {
-            throw new RuntimeException("Unexpected token: " + currentToken.getType());
+            syntaxError("Unexpected token: " + currentType);
+            return Ast.NONE;
         }
     }
 
 
 
 
-    private void parseVariableDeclaration() {
-        consume(TokenType.VAR);
+    private int parseVariableDeclaration() {
+        int firstToken = tokenIndex;
+        int declaration = parseVariableDeclarationKind();
+        if (spans != null && declaration != Ast.NONE) {
+            spans.set(declaration, firstToken, tokenIndex);
+        }
+        return declaration;
+    }
 
-        Token identifier = consume(TokenType.IDENTIFIER);
-        String variableName = identifier.getValue();
+    private int parseVariableDeclarationKind() {
+        int position = currentStart();
+        consume(TokenType.VAR);
 
-        if (variableExists(variableName)) {
-            addError("Variable " + variableName + " is already declared.");
-            return;
+        int namePosition = currentStart();
+        int nameId = consumeName();
+        if (panicking) {
+            return Ast.NONE;
+        }
+        if (symbols.type(nameId) != null) {
+            String variableName = names.name(nameId);
+            addError(namePosition, variableName.length(), "Variable " + variableName + " is already declared.");
+            panicking = true;
+            return Ast.NONE;
         }
 
         if (match(TokenType.INT) || match(TokenType.FLOAT)) {
-            TokenType type = currentToken.getType();
+            TokenType type = currentType;
             consume(type);
 
+            int initializer = Ast.NONE;
             if (match(TokenType.ASSIGN)) {
                 consume(TokenType.ASSIGN);
-                parseExpression();
+                initializer = parseExpression();
             }
+            // Declared even if the rest fails to parse, so that later uses are not reported too
+            symbols.declare(nameId, type == TokenType.FLOAT ? ValueType.FLOAT : ValueType.INT);
 
             if (!match(TokenType.SEMICOLON)) {
-                addError("Expected token type SEMICOLON but found " + currentToken.getType());
-                return;
+                syntaxError("Expected token type SEMICOLON but found " + currentType);
+                return Ast.NONE;
             }
 
             consume(TokenType.SEMICOLON);
-
-            variables.put(variableName, type);
+            return ast.add(NodeKind.VAR_DECL, position, nameId, type.ordinal(), initializer);
         } else if (match(TokenType.ASSIGN)) {
-            TokenType type = currentToken.getType();
+            TokenType type = currentType;
             consume(TokenType.ASSIGN);
-            parseArrayDeclaration(variableName, type);
-            parseArrayInitializer(variableName, type);
-            if(declaraCount != initializerCount){
-                throw new ArrayIndexOutOfBoundsException();
-            }
+            int declaration = parseArrayDeclaration(position, nameId, type);
+            parseArrayInitializer(declaration, namePosition, type);
+            // Declared even if it fails to parse, as an int array when the element type is missing
+            symbols.declare(nameId, ast.second(declaration) == TokenType.FLOAT.ordinal()
+                    ? ValueType.FLOAT_ARRAY : ValueType.INT_ARRAY);
+            return declaration;
         } else {
-            addError("Expected token type INT or FLOAT but found " + currentToken.getType());
-            return;
+            syntaxError("Expected token type INT or FLOAT but found " + currentType);
+            return Ast.NONE;
         }
     }
 
-    private void parseArrayDeclaration(String variableName, TokenType variableType) {
+    private int parseArrayDeclaration(int position, int nameId, TokenType variableType) {
         consume(TokenType.LEFT_BRACKET);
 
         if (match(TokenType.INTEGER_LITERAL)) {
-            Token integerValue = consume(TokenType.INTEGER_LITERAL);
-            declaraCount = Integer.parseInt(integerValue.getValue());
+            int start = currentStart();
+            int length = windowLengths[windowHead];
+            int errors = diagnostics.size();
+            long value = integerValue(start, length);
+            consume(TokenType.INTEGER_LITERAL);
+            if (value > Integer.MAX_VALUE) {
+                addError(start, length, "Array length " + sourceCode.subSequence(start, start + length)
+                        + " is out of range.");
+            }
+            // A length already reported is not compared with the initializers
+            declaraCount = diagnostics.size() == errors ? (int) value : -1;
         } else {
-            addError("Expected token type INTEGER_LITERAL but found " + currentToken.getType());
-            return;
+            syntaxError("Expected token type INTEGER_LITERAL but found " + currentType);
+            return ast.add(NodeKind.ARRAY_DECL, position, nameId, Ast.NONE, Ast.NONE, declaraCount);
         }
 
         consume(TokenType.RIGHT_BRACKET);
+        int elementType = Ast.NONE;
         if(match(TokenType.INT)){
             consume(TokenType.INT);
-            
+            elementType = TokenType.INT.ordinal();
         } else if (match(TokenType.FLOAT)) {
             consume(TokenType.FLOAT);
+            elementType = TokenType.FLOAT.ordinal();
         }
 
+        return ast.add(NodeKind.ARRAY_DECL, position, nameId, elementType, Ast.NONE, declaraCount);
     }
 
-    private void parseArrayInitializer(String variableName, TokenType variableType) {
+    private void parseArrayInitializer(int declaration, int namePosition, TokenType variableType) {
         consume(TokenType.LEFT_BRACE);
+        initializerCount = 0;
 
-        while (!match(TokenType.RIGHT_BRACE)) {
-            parseExpression();
+        int last = Ast.NONE;
+        while (!match(TokenType.RIGHT_BRACE) && !match(TokenType.EOF) && !panicking) {
+            int element = parseExpression();
+            if (last == Ast.NONE) {
+                ast.setThird(declaration, element);
+            } else {
+                ast.setNext(last, element);
+            }
+            last = element;
             if (!match(TokenType.RIGHT_BRACE)) {
                 consume(TokenType.COMMA);
             }
@@ -175,237 +369,491 @@ public class Parser {
         }
         consume(TokenType.RIGHT_BRACE);
 
-        if(declaraCount != initializerCount){
-            addError("ArrayOutOfBounds Exception");
+        if(declaraCount >= 0 && declaraCount != initializerCount){
+            String arrayName = ast.name(declaration);
+            addError(namePosition, arrayName.length(), "Array " + arrayName + " has length " + declaraCount
+                    + " but " + initializerCount + " initializers.");
         }
     }
 
 
-    private void parseFunctionDeclaration() {
+    private int parseFunctionDeclaration() {
+        int position = currentStart();
         consume(TokenType.FUNC);
-        consume(TokenType.IDENTIFIER);
+        int nameId = consumeName();
         consume(TokenType.LEFT_PAREN);
         consume(TokenType.RIGHT_PAREN);
-        parseBlock();
+        int body = parseBlock();
+        return ast.add(NodeKind.FUNC, position, nameId, body, Ast.NONE);
     }
 
-    private void parseArrayAssignment() {
-        Token identifier = consume(TokenType.IDENTIFIER);
+    private int parseArrayAssignment() {
+        int position = currentStart();
+        int nameId = consumeName();
+        checkUse(position, nameId, true);
         consume(TokenType.LEFT_BRACKET);
-        parseExpression();
+        int index = parseExpression();
         consume(TokenType.RIGHT_BRACKET);
         consume(TokenType.ASSIGN);
-        parseExpression();
+        int value = parseExpression();
         consume(TokenType.SEMICOLON);
+        return ast.add(NodeKind.ARRAY_ASSIGN, position, nameId, index, value);
     }
 
 
-    private void parseAssignment() {
-        Token identifier = consume(TokenType.IDENTIFIER);
-
-        if (!variableExists(identifier.getValue())) {
-            addError("Variable " + identifier.getValue() + " is not declared.");
-            return;
+    private int parseAssignment() {
+        int position = currentStart();
+        int nameId = consumeName();
+        if (panicking) {
+            return Ast.NONE;
+        }
+        ValueType type = symbols.type(nameId);
+        if (type == null || type.isArray()) {
+            String variableName = names.name(nameId);
+            addError(position, variableName.length(), type == null
+                    ? "Variable " + variableName + " is not declared."
+                    : "Array " + variableName + " cannot be assigned as a whole.");
+            panicking = true;
+            return Ast.NONE;
         }
 
         consume(TokenType.ASSIGN);
-        parseExpression();
+        int value = parseExpression();
         consume(TokenType.SEMICOLON);
+        return ast.add(NodeKind.ASSIGN, position, nameId, value, Ast.NONE);
+    }
+
+    // Reports a name that is not declared here, or that is used as an array when it is not one or the other way round
+    private void checkUse(int position, int nameId, boolean array) {
+        if (nameId < 0) {
+            return;
+        }
+        ValueType type = symbols.type(nameId);
+        String name = names.name(nameId);
+        if (type == null) {
+            addError(position, name.length(), "Variable " + name + " is not declared.");
+        } else if (type.isArray() != array) {
+            addError(position, name.length(), array
+                    ? "Variable " + name + " is not an array."
+                    : "Array " + name + " cannot be used as a value.");
+        }
     }
 
-    private void parseIfStatement() {
-        consume(TokenType.IF);
+    private int parseIfStatement() {
+        // An else-if chain is parsed in a loop rather than nested, so a long
+        // chain neither deepens the Java stack nor counts as block nesting.
+        // Each link waits here until the chain ends.
+        int base = chainCount;
+        int elseBranch = Ast.NONE;
+        while (true) {
+            int position = currentStart();
+            consume(TokenType.IF);
+            int condition = parseIfCondition();
+            int thenBlock = parseBlock();
+            if (chainCount == chainPositions.length) {
+                chainPositions = Arrays.copyOf(chainPositions, chainCount * 2);
+                chainConditions = Arrays.copyOf(chainConditions, chainCount * 2);
+                chainBlocks = Arrays.copyOf(chainBlocks, chainCount * 2);
+            }
+            chainPositions[chainCount] = position;
+            chainConditions[chainCount] = condition;
+            chainBlocks[chainCount++] = thenBlock;
+            if (!match(TokenType.ELSE)) {
+                break;
+            }
+            consume(TokenType.ELSE);
+            if (!match(TokenType.IF)) {
+                elseBranch = parseBlock();
+                break;
+            }
+        }
+        while (chainCount > base) {
+            chainCount--;
+            elseBranch = ast.add(NodeKind.IF, chainPositions[chainCount], chainConditions[chainCount],
+                    chainBlocks[chainCount], elseBranch);
+        }
+        return elseBranch;
+    }
+
+    private int parseIfCondition() {
+        int condition = Ast.NONE;
         if (match(TokenType.IDENTIFIER)) {
-            consume(TokenType.IDENTIFIER);
+            int conditionPosition = currentStart();
+            int nameId = consumeName();
+            checkUse(conditionPosition, nameId, false);
+            condition = ast.add(NodeKind.NAME, conditionPosition, nameId, Ast.NONE, Ast.NONE);
             if(match(TokenType.EQUAL)){
                 consume(TokenType.EQUAL);
-                parseExpression();
+                condition = binary(TokenType.EQUAL, condition, parseExpression());
             } else if (match(TokenType.NOT_EQUAL)) {
                 consume(TokenType.NOT_EQUAL);
-                parseExpression();
-            }
-        }
-        parseBlock();
-
-        if (match(TokenType.ELSE)) {
-            consume(TokenType.ELSE);
-            if (match(TokenType.IF)) {
-                parseIfStatement();
-            } else {
-                parseBlock();
+                condition = binary(TokenType.NOT_EQUAL, condition, parseExpression());
             }
+        } else if (match(TokenType.TRUE) || match(TokenType.FALSE)) {
+            condition = parsePrimaryExpression();
         }
+        return condition;
     }
 
 
-    private void parseForLoop() {
+    private int parseForLoop() {
+        int position = currentStart();
         consume(TokenType.FOR);
         consume(TokenType.LEFT_PAREN);
+        // A variable declared in the header is visible in the loop only
+        symbols.enterScope();
+        int init;
         if (match(TokenType.VAR)) {
-            parseVariableDeclaration();
+            init = parseVariableDeclaration();
             consume(TokenType.SEMICOLON);
         } else {
-            parseAssignment();
+            init = parseAssignment();
         }
-        parseExpression();
+        int condition = parseExpression();
         consume(TokenType.SEMICOLON);
-        consume(TokenType.IDENTIFIER);
+        int updatePosition = currentStart();
+        int nameId = consumeName();
+        checkUse(updatePosition, nameId, false);
+        int update = Ast.NONE;
         if(match(TokenType.INCREMENT)){
             consume(TokenType.INCREMENT);
+            update = ast.add(NodeKind.INCREMENT, updatePosition, nameId, Ast.NONE, Ast.NONE);
         }
         else if(match(TokenType.DECREMENT)){
             consume(TokenType.DECREMENT);
+            update = ast.add(NodeKind.DECREMENT, updatePosition, nameId, Ast.NONE, Ast.NONE);
         }
         consume(TokenType.RIGHT_PAREN);
 
-        parseBlock();
+        int body = parseBlock();
+        symbols.exitScope();
+        return ast.add(NodeKind.FOR, position, init, condition, body, update);
     }
 
-    private void parseIncrementStatement() {
-        Token identifier = consume(TokenType.IDENTIFIER);
+    private int parseIncrementStatement() {
+        int position = currentStart();
+        int nameId = consumeName();
+        checkUse(position, nameId, false);
         consume(TokenType.INCREMENT);
         consume(TokenType.SEMICOLON);
-        // You can perform further processing or create an AST node for the increment statement here
+        return ast.add(NodeKind.INCREMENT, position, nameId, Ast.NONE, Ast.NONE);
     }
 
-    private void parseDecrementStatement() {
-        Token identifier = consume(TokenType.IDENTIFIER);
+    private int parseDecrementStatement() {
+        int position = currentStart();
+        int nameId = consumeName();
+        checkUse(position, nameId, false);
         consume(TokenType.DECREMENT);
         consume(TokenType.SEMICOLON);
-        // You can perform further processing or create an AST node for the decrement statement here
+        return ast.add(NodeKind.DECREMENT, position, nameId, Ast.NONE, Ast.NONE);
     }
 
 
-    private void parseExpression() {
-        parseBooleanExpression();
-    }
+    private int parseExpression() {
+        openFrame(TOP, Ast.NONE, Ast.NONE, -1);
+        while (true) {
+            // An operand: an optional minus, then a primary or a new frame
+            int minus = -1;
+            if (match(TokenType.MINUS)) {
+                minus = currentStart();
+                consume(TokenType.MINUS);
+            }
+            int position = currentStart();
+            int operand;
+            if (match(TokenType.LEFT_PAREN)) {
+                consume(TokenType.LEFT_PAREN);
+                openFrame(PARENTHESIZED, Ast.NONE, position, minus);
+                continue;
+            } else if (match(TokenType.IDENTIFIER)) {
+                int nameId = consumeName();
+                checkUse(position, nameId, match(TokenType.LEFT_BRACKET));
+                if (match(TokenType.LEFT_BRACKET)) {
+                    consume(TokenType.LEFT_BRACKET);
+                    openFrame(SUBSCRIPT, nameId, position, minus);
+                    continue;
+                }
+                operand = ast.add(NodeKind.NAME, position, nameId, Ast.NONE, Ast.NONE);
+                if (match(TokenType.EQUAL)) {
+                    // "name == " takes the whole rest of the expression as its right side
+                    consume(TokenType.EQUAL);
+                    openFrame(EQUALITY, operand, position, minus);
+                    continue;
+                }
+            } else {
+                operand = parsePrimaryExpression();
+            }
 
-    private void parseBlock() {
-        consume(TokenType.LEFT_BRACE);
+            // Then an operator, or the end of as many frames as end here
+            while (true) {
+                if (minus >= 0) {
+                    operand = ast.add(NodeKind.UNARY, minus, operand, Ast.NONE, TokenType.MINUS.ordinal());
+                }
+                pushOperand(operand);
+                int frame = frameCount - 1;
+                TokenType operator = currentType;
+                int precedence = panicking ? 0 : PRECEDENCE[operator.ordinal()];
+                if (precedence == COMPARISON) {
+                    // Comparisons do not chain: a second one ends the expression
+                    if (frameCompared[frame]) {
+                        precedence = 0;
+                    }
+                    frameCompared[frame] = true;
+                } else if (precedence == BOOLEAN) {
+                    frameCompared[frame] = false;
+                }
+                if (precedence > 0) {
+                    reduce(frame, precedence);
+                    pushOperator(operator);
+                    consume(operator);
+                    break;
+                }
 
-        while (!match(TokenType.RIGHT_BRACE)) {
-            parseStatement();
+                reduce(frame, BOOLEAN);
+                operand = operands[--operandCount];
+                frameCount--;
+                minus = frameMinus[frame];
+                switch (frameKinds[frame]) {
+                    case PARENTHESIZED -> consume(TokenType.RIGHT_PAREN);
+                    case EQUALITY -> operand = binary(TokenType.EQUAL, frameNodes[frame], operand);
+                    case SUBSCRIPT -> {
+                        consume(TokenType.RIGHT_BRACKET);
+                        operand = ast.add(NodeKind.INDEX, framePositions[frame], frameNodes[frame], operand, Ast.NONE);
+                    }
+                    default -> {
+                        return operand;
+                    }
+                }
+            }
         }
-
-        consume(TokenType.RIGHT_BRACE);
     }
 
-    private void parseBooleanExpression() {
-        parseComparisonExpression();
-
-        while (match(TokenType.AND) || match(TokenType.OR)) {
-            consume(currentToken.getType());
-            parseComparisonExpression();
+    // Builds the pending operators of the frame that bind at least as tightly
+    private void reduce(int frame, int precedence) {
+        while (operatorCount > frameOperators[frame]
+                && PRECEDENCE[operators[operatorCount - 1]] >= precedence) {
+            TokenType operator = TokenType.of(operators[--operatorCount]);
+            int right = operands[--operandCount];
+            int left = operands[--operandCount];
+            pushOperand(binary(operator, left, right));
         }
     }
 
-    private void parseComparisonExpression() {
-        parseAdditiveExpression();
-
-        if (match(TokenType.EQUAL) || match(TokenType.NOT_EQUAL) ||
-                match(TokenType.LESS_THAN) || match(TokenType.LESS_THAN_OR_EQUAL) ||
-                match(TokenType.GREATER_THAN) || match(TokenType.GREATER_THAN_OR_EQUAL)) {
-            consume(currentToken.getType());
-            parseAdditiveExpression();
+    private void openFrame(byte kind, int node, int position, int minus) {
+        if (frameCount == frameKinds.length) {
+            int capacity = frameCount * 2;
+            frameKinds = Arrays.copyOf(frameKinds, capacity);
+            frameNodes = Arrays.copyOf(frameNodes, capacity);
+            framePositions = Arrays.copyOf(framePositions, capacity);
+            frameMinus = Arrays.copyOf(frameMinus, capacity);
+            frameOperators = Arrays.copyOf(frameOperators, capacity);
+            frameCompared = Arrays.copyOf(frameCompared, capacity);
         }
+        frameKinds[frameCount] = kind;
+        frameNodes[frameCount] = node;
+        framePositions[frameCount] = position;
+        frameMinus[frameCount] = minus;
+        frameOperators[frameCount] = operatorCount;
+        frameCompared[frameCount] = false;
+        frameCount++;
     }
 
+    private void pushOperand(int node) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = node;
+    }
 
-    private void parseAdditiveExpression() {
-        parseMultiplicativeExpression();
-
-        while (match(TokenType.PLUS) || match(TokenType.MINUS)) {
-            consume(currentToken.getType());
-            parseMultiplicativeExpression();
+    private void pushOperator(TokenType operator) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
         }
+        operators[operatorCount++] = (byte) operator.ordinal();
     }
 
-    private void parseMultiplicativeExpression() {
-        parseUnaryExpression();
+    private int parseBlock() {
+        int firstToken = tokenIndex;
+        int position = currentStart();
+        if (nesting >= MAX_DEPTH && match(TokenType.LEFT_BRACE)) {
+            addError(position, 1, "Blocks are nested too deeply.");
+            skipBlock();
+            return ast.add(NodeKind.BLOCK, position, Ast.NONE, Ast.NONE, Ast.NONE);
+        }
+        consume(TokenType.LEFT_BRACE);
+        if (panicking) {
+            return Ast.NONE;
+        }
 
-        while (match(TokenType.MULTIPLY) || match(TokenType.DIVIDE)) {
-            consume(currentToken.getType());
-            parseUnaryExpression();
+        nesting++;
+        symbols.enterScope();
+        int first = Ast.NONE;
+        int last = Ast.NONE;
+        while (!match(TokenType.RIGHT_BRACE) && !match(TokenType.EOF)) {
+            int statement = parseListStatement();
+            if (statement != Ast.NONE) {
+                if (last == Ast.NONE) {
+                    first = statement;
+                } else {
+                    ast.setNext(last, statement);
+                }
+                last = statement;
+            }
+        }
+        symbols.exitScope();
+        nesting--;
+
+        consume(TokenType.RIGHT_BRACE);
+        int block = ast.add(NodeKind.BLOCK, position, first, Ast.NONE, Ast.NONE);
+        if (spans != null) {
+            spans.set(block, firstToken, tokenIndex);
         }
+        return block;
     }
 
-    private void parseAssignmentWithArithmetic() {
-        Token identifier = consume(TokenType.IDENTIFIER);
+    private int parseAssignmentWithArithmetic() {
+        int position = currentStart();
+        int nameId = consumeName();
         consume(TokenType.ASSIGN);
 
-        parseExpression();
+        int value = parseExpression();
 
         consume(TokenType.SEMICOLON);
+        return ast.add(NodeKind.ASSIGN, position, nameId, value, Ast.NONE);
     }
 
 
 
-    private void parseUnaryExpression() {
-        if (match(TokenType.MINUS)) {
-            consume(TokenType.MINUS);
-        } else if (match(TokenType.IDENTIFIER)) {
-            //consume(TokenType.IDENTIFIER);
-
-            if (match(TokenType.INCREMENT)) {
-                consume(TokenType.INCREMENT);
-            }
-        }
-        parsePrimaryExpression();
-    }
-
-    private void parsePrimaryExpression() {
-        if (match(TokenType.INTEGER_LITERAL) || match(TokenType.FLOAT_LITERAL) || match(TokenType.STRING_LITERAL)) {
-            consume(currentToken.getType());
-        } else if (match(TokenType.IDENTIFIER)) {
-            consume(TokenType.IDENTIFIER);
-
-            if (match(TokenType.EQUAL)) {
-                consume(TokenType.EQUAL);
-                parseExpression();
-            } else if (match(TokenType.LEFT_BRACKET)) {
-                consume(TokenType.LEFT_BRACKET);
-                parseExpression();
-                consume(TokenType.RIGHT_BRACKET);
-            }
+    // Primaries without an expression inside; parseExpression handles the rest
+    private int parsePrimaryExpression() {
+        int position = currentStart();
+        if (match(TokenType.INTEGER_LITERAL)) {
+            long value = integerValue(position, windowLengths[windowHead]);
+            consume(TokenType.INTEGER_LITERAL);
+            return ast.add(NodeKind.INT_LITERAL, position, Ast.NONE, Ast.NONE, Ast.NONE, value);
+        } else if (match(TokenType.FLOAT_LITERAL)) {
+            double value = Double.parseDouble(consumeText(TokenType.FLOAT_LITERAL));
+            return ast.add(NodeKind.FLOAT_LITERAL, position, Ast.NONE, Ast.NONE, Ast.NONE,
+                    Double.doubleToRawLongBits(value));
+        } else if (match(TokenType.TRUE) || match(TokenType.FALSE)) {
+            long value = match(TokenType.TRUE) ? 1 : 0;
+            consume(currentType);
+            return ast.add(NodeKind.BOOL_LITERAL, position, Ast.NONE, Ast.NONE, Ast.NONE, value);
+        } else if (match(TokenType.STRING_LITERAL)) {
+            int length = windowLengths[windowHead];
+            consume(TokenType.STRING_LITERAL);
+            return ast.add(NodeKind.STRING_LITERAL, position, position, length, Ast.NONE);
         } else if (match(TokenType.NEW)) {
             consume(TokenType.NEW);
-            consume(TokenType.IDENTIFIER);
+            int nameId = consumeName();
             consume(TokenType.LEFT_PAREN);
             consume(TokenType.RIGHT_PAREN);
-        } else if (match(TokenType.LEFT_PAREN)) {
-            consume(TokenType.LEFT_PAREN);
-            parseExpression();
-            consume(TokenType.RIGHT_PAREN);
+            return ast.add(NodeKind.NEW, position, nameId, Ast.NONE, Ast.NONE);
         } else {
-            throw new RuntimeException("Unexpected token: " + currentToken.getType());
+            syntaxError("Unexpected token: " + currentType);
+            return ast.add(NodeKind.ERROR, position, Ast.NONE, Ast.NONE, Ast.NONE);
         }
     }
 
+    private static void precedence(int level, TokenType... operators) {
+        for (TokenType operator : operators) {
+            PRECEDENCE[operator.ordinal()] = (byte) level;
+        }
+    }
 
-    private Token consume(TokenType expectedType) {
-        if (currentToken.getType() == expectedType) {
-            Token token = currentToken;
-            currentTokenIndex++;
-            if (currentTokenIndex < tokens.size()) {
-                currentToken = tokens.get(currentTokenIndex);
-            } else {
-                currentToken = new Token(TokenType.EOF, "");
+    private int binary(TokenType operator, int left, int right) {
+        return ast.add(NodeKind.BINARY, ast.position(left), left, right, operator.ordinal());
+    }
+
+    // Integer literals are decoded straight from the source range.
+    private long integerValue(int start, int length) {
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = sourceCode.charAt(i);
+            if (c >= 128 && sourceCode instanceof SourceFile.Utf8CharSequence) {
+                // Digits outside ASCII span several bytes of a UTF-8 view
+                try {
+                    return Long.parseLong(sourceCode.subSequence(start, start + length).toString());
+                } catch (NumberFormatException e) {
+                    return outOfRange(start, length);
+                }
             }
-            return token;
+            int digit = Character.digit(c, 10);
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return outOfRange(start, length);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private long outOfRange(int start, int length) {
+        addError(start, length, "Integer literal " + sourceCode.subSequence(start, start + length)
+                + " is out of range.");
+        return 0;
+    }
+
+
+    // While panicking nothing matches and nothing is consumed, so the rest of
+    // a broken statement unwinds without touching the tokens synchronize skips.
+    private void consume(TokenType expectedType) {
+        if (match(expectedType)) {
+            advance();
         } else {
-            throw new RuntimeException("Expected token type " + expectedType + " but found " + currentToken.getType());
+            syntaxError("Expected token type " + expectedType + " but found " + currentType);
+        }
+    }
+
+    // Like consume, but also returns the token text for the few places that need it.
+    private String consumeText(TokenType expectedType) {
+        int start = windowStarts[windowHead];
+        int length = windowLengths[windowHead];
+        consume(expectedType);
+        return sourceCode.subSequence(start, start + length).toString();
+    }
+
+    // Returns -1 when the current token is not an identifier
+    private int consumeName() {
+        if (!match(TokenType.IDENTIFIER)) {
+            consume(TokenType.IDENTIFIER);
+            return -1;
         }
+        int nameId = windowNames[windowHead];
+        advance();
+        return nameId;
+    }
+
+    private int currentStart() {
+        return windowStarts[windowHead];
     }
 
     private boolean match(TokenType expectedType) {
-        return currentToken.getType() == expectedType;
+        return currentType == expectedType && !panicking;
     }
 
-    private Token peek() {
-        if (currentTokenIndex + 1 < tokens.size()) {
-            return tokens.get(currentTokenIndex + 1);
-        } else {
-            return new Token(TokenType.EOF, "");
+    private TokenType peekType() {
+        if (windowSize < 2) {
+            fill();
+        }
+        return TokenType.of(windowTypes[(windowHead + 1) & WINDOW_MASK]);
+    }
+
+    private void advance() {
+        tokenIndex++;
+        windowHead = (windowHead + 1) & WINDOW_MASK;
+        windowSize--;
+        if (windowSize == 0) {
+            fill();
         }
+        currentType = TokenType.of(windowTypes[windowHead]);
+    }
+
+    private void fill() {
+        TokenType type = source.next();
+        int slot = (windowHead + windowSize) & WINDOW_MASK;
+        windowTypes[slot] = (byte) type.ordinal();
+        windowStarts[slot] = source.tokenStart();
+        windowLengths[slot] = source.tokenLength();
+        windowNames[slot] = source.tokenName();
+        windowSize++;
     }
 }
@@ -0,0 +1,38 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one compiler phase on one file. Enable it with, for
+ * example, {@code -XX:StartFlightRecording:settings=default} or in a custom
+ * .jfc file under the name {@code compiler.Phase}.
+ */
+@Name("compiler.Phase")
+@Label("Compiler Phase")
+@Category("Compiler")
+@Description("One phase of compiling one source file")
+@StackTrace(false)
+public final class PhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Tokens")
+    long tokens;
+
+    @Label("Diagnostics")
+    int diagnostics;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator of valid programs in the supported Go subset, for
+ * benchmarks and {@link SelfTest}. The same shape, size and seed always give the same text. Every
+ * name is declared exactly once before it is used, and array initializers
+ * match their declared length, so generated programs parse without errors.
+ */
+public final class ProgramGenerator {
+    public enum Shape {
+        /** Long runs of scalar {@code var} declarations. */
+        VAR_LISTS,
+        /** Parenthesized arithmetic and boolean expressions nested several levels deep. */
+        DEEP_EXPRESSIONS,
+        /** Array declarations with hundreds of initializers each. */
+        ARRAY_INITIALIZERS,
+        /** Functions made of nested {@code for} loops and {@code if}/{@code else} chains. */
+        NESTED_BLOCKS,
+        /** All of the above, interleaved. */
+        MIXED
+    }
+
+    private static final int MAX_EXPRESSION_DEPTH = 8;
+    private static final int MAX_BLOCK_DEPTH = 4;
+
+    private final Random random;
+    private final StringBuilder out;
+    private final List<String> intNames = new ArrayList<>();
+    private int nextName;
+
+    private ProgramGenerator(long seed, int capacity) {
+        this.random = new Random(seed);
+        this.out = new StringBuilder(capacity + 4096);
+    }
+
+    /** Returns a program of at least {@code targetBytes} characters. */
+    public static String generate(Shape shape, int targetBytes, long seed) {
+        ProgramGenerator generator = new ProgramGenerator(seed, targetBytes);
+        // Expressions refer to earlier globals, so there are always a few
+        for (int i = 0; i < 4; i++) {
+            generator.scalarDeclaration("int");
+        }
+        int unit = 0;
+        while (generator.out.length() < targetBytes) {
+            Shape next = shape == Shape.MIXED ? Shape.values()[unit++ % (Shape.values().length - 1)] : shape;
+            generator.unit(next);
+        }
+        return generator.out.toString();
+    }
+
+    private void unit(Shape shape) {
+        switch (shape) {
+            case VAR_LISTS -> {
+                for (int i = 0; i < 16; i++) {
+                    scalarDeclaration(random.nextInt(4) == 0 ? "float" : "int");
+                }
+            }
+            case DEEP_EXPRESSIONS -> {
+                String name = newName("e");
+                out.append("var ").append(name).append(" int = ");
+                expression(MAX_EXPRESSION_DEPTH);
+                out.append(";\n");
+                intNames.add(name);
+            }
+            case ARRAY_INITIALIZERS -> arrayDeclaration(64 + random.nextInt(448));
+            case NESTED_BLOCKS -> function();
+            case MIXED -> throw new IllegalArgumentException("MIXED is not a single unit");
+        }
+    }
+
+    private void scalarDeclaration(String type) {
+        String name = newName("v");
+        out.append("var ").append(name).append(' ').append(type).append(" = ");
+        if (type.equals("int")) {
+            out.append(random.nextInt(1000));
+            intNames.add(name);
+        } else {
+            out.append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+        }
+        out.append(";\n");
+    }
+
+    private void arrayDeclaration(int length) {
+        boolean floats = random.nextBoolean();
+        out.append("var ").append(newName("a")).append(" = [").append(length).append(']')
+                .append(floats ? "float" : "int").append('{');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(i % 16 == 0 ? ",\n    " : ", ");
+            }
+            out.append(random.nextInt(100000));
+            if (floats) {
+                out.append('.').append(random.nextInt(10));
+            }
+        }
+        out.append("}\n");
+    }
+
+    private void expression(int depth) {
+        if (depth == 0 || random.nextInt(MAX_EXPRESSION_DEPTH + 2) > depth + 1) {
+            operand();
+            return;
+        }
+        switch (random.nextInt(4)) {
+            case 0 -> {
+                out.append('(');
+                expression(depth - 1);
+                out.append(random.nextBoolean() ? " + " : " - ");
+                expression(depth - 1);
+                out.append(')');
+            }
+            case 1 -> {
+                expression(depth - 1);
+                out.append(random.nextBoolean() ? " * " : " / ");
+                out.append('(');
+                expression(depth - 1);
+                out.append(')');
+            }
+            case 2 -> {
+                out.append('(');
+                expression(depth - 1);
+                out.append(random.nextBoolean() ? " < " : " >= ");
+                expression(depth - 1);
+                out.append(random.nextBoolean() ? ") && (" : ") || (");
+                expression(depth - 1);
+                out.append(')');
+            }
+            default -> {
+                out.append('-');
+                out.append('(');
+                expression(depth - 1);
+                out.append(')');
+            }
+        }
+    }
+
+    private void operand() {
+        if (random.nextBoolean()) {
+            out.append(intNames.get(random.nextInt(intNames.size())));
+        } else {
+            out.append(random.nextInt(100));
+        }
+    }
+
+    private void function() {
+        String suffix = Integer.toString(nextName++);
+        out.append("func f").append(suffix).append("() {\n");
+        block(1);
+        out.append("}\n");
+    }
+
+    private void block(int depth) {
+        int statements = 1 + random.nextInt(3);
+        for (int i = 0; i < statements; i++) {
+            int kind = depth >= MAX_BLOCK_DEPTH ? 0 : random.nextInt(3);
+            switch (kind) {
+                case 0 -> {
+                    indent(depth);
+                    String target = intNames.get(random.nextInt(intNames.size()));
+                    out.append(target).append(" = ").append(target).append(" + ");
+                    expression(2);
+                    out.append(";\n");
+                }
+                case 1 -> forLoop(depth);
+                default -> ifChain(depth);
+            }
+        }
+    }
+
+    // Counters are named by depth, so sibling loops and other functions reuse them
+    private void forLoop(int depth) {
+        String counter = "i" + depth;
+        indent(depth);
+        out.append("for (var ").append(counter).append(" int = 0;; ").append(counter).append(" < ")
+                .append(1 + random.nextInt(100)).append("; ").append(counter).append("++) {\n");
+        intNames.add(counter);
+        block(depth + 1);
+        intNames.remove(intNames.size() - 1);
+        indent(depth);
+        out.append("}\n");
+    }
+
+    private void ifChain(int depth) {
+        indent(depth);
+        out.append("if ").append(intNames.get(random.nextInt(intNames.size())))
+                .append(random.nextBoolean() ? " == " : " != ").append(random.nextInt(10)).append(" {\n");
+        block(depth + 1);
+        indent(depth);
+        out.append('}');
+        if (random.nextBoolean()) {
+            out.append(" else {\n");
+            block(depth + 1);
+            indent(depth);
+            out.append('}');
+        }
+        out.append('\n');
+    }
+
+    private void indent(int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("    ");
+        }
+    }
+
+    private String newName(String prefix) {
+        return prefix + nextName++;
+    }
+}
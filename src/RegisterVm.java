@@ -0,0 +1,277 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Register-based interpreter for programs compiled by {@link VmCompiler}.
+ * INT and FLOAT values live unboxed in separate long[] and double[] register
+ * files, arrays in two more, and instructions are packed into a flat int[]
+ * (opcode followed by its operands). The dispatch loop is a single dense
+ * switch, which the JIT turns into a jump table, and nothing is allocated
+ * per instruction.
+ */
+public final class RegisterVm {
+    // Operand legend: i = int register, f = float register, a = int array
+    // register, b = float array register, k = constant index, t = code offset.
+    static final int ICONST = 0;    // i k
+    static final int FCONST = 1;    // f k
+    static final int IMOV = 2;      // i i
+    static final int FMOV = 3;      // f f
+    static final int IADD = 4;      // i i i
+    static final int ISUB = 5;      // i i i
+    static final int IMUL = 6;      // i i i
+    static final int IDIV = 7;      // i i i
+    static final int INEG = 8;      // i i
+    static final int IADDI = 9;     // i i immediate
+    static final int FADD = 10;     // f f f
+    static final int FSUB = 11;     // f f f
+    static final int FMUL = 12;     // f f f
+    static final int FDIV = 13;     // f f f
+    static final int FNEG = 14;     // f f
+    static final int I2F = 15;      // f i
+    static final int F2I = 16;      // i f
+    static final int FEQ = 17;      // i f f
+    static final int FNE = 18;      // i f f
+    static final int FLT = 19;      // i f f
+    static final int FLE = 20;      // i f f
+    static final int FGT = 21;      // i f f
+    static final int FGE = 22;      // i f f
+    static final int JMP = 23;      // t
+    static final int JZ = 24;       // i t
+    static final int JNZ = 25;      // i t
+    static final int JEQ = 26;      // i i t
+    static final int JNE = 27;      // i i t
+    static final int JLT = 28;      // i i t
+    static final int JLE = 29;      // i i t
+    static final int JGT = 30;      // i i t
+    static final int JGE = 31;      // i i t
+    static final int NEWIA = 32;    // a length
+    static final int NEWFA = 33;    // b length
+    static final int IALOAD = 34;   // i a i
+    static final int IASTORE = 35;  // a i i
+    static final int FALOAD = 36;   // f b i
+    static final int FASTORE = 37;  // b i f
+    static final int CALL = 38;     // t
+    static final int RET = 39;      //
+    static final int HALT = 40;     //
+    static final int ANULL = 41;    // a
+    static final int BNULL = 42;    // b
+    // Array accesses whose index BoundsAnalysis proved in range skip the
+    // check on the whole long index; the others fail on it rather than
+    // truncating the index to an int
+    static final int IALOADU = 43;  // i a i
+    static final int IASTOREU = 44; // a i i
+    static final int FALOADU = 45;  // f b i
+    static final int FASTOREU = 46; // b i f
+
+    private final VmProgram program;
+
+    public RegisterVm(Ast ast) {
+        this.program = new VmCompiler(ast).compile();
+    }
+
+    /**
+     * Runs the program and returns the final value of every global variable
+     * by name in order of first appearance.
+     */
+    public Map<String, Object> run() {
+        final int[] code = program.code;
+        final long[] intConstants = program.intConstants;
+        final double[] floatConstants = program.floatConstants;
+        final long[] ints = new long[program.intRegisters];
+        final double[] floats = new double[program.floatRegisters];
+        final long[][] intArrays = new long[program.intArrayRegisters][];
+        final double[][] floatArrays = new double[program.floatArrayRegisters][];
+        System.arraycopy(intConstants, 0, ints, 0, program.preloadedIntConstants);
+        System.arraycopy(floatConstants, 0, floats, 0, program.preloadedFloatConstants);
+        int[] returnStack = new int[8];
+        int returnDepth = 0;
+        int pc = 0;
+
+        for (;;) {
+            switch (code[pc]) {
+                case ICONST -> {
+                    ints[code[pc + 1]] = intConstants[code[pc + 2]];
+                    pc += 3;
+                }
+                case FCONST -> {
+                    floats[code[pc + 1]] = floatConstants[code[pc + 2]];
+                    pc += 3;
+                }
+                case IMOV -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]];
+                    pc += 3;
+                }
+                case FMOV -> {
+                    floats[code[pc + 1]] = floats[code[pc + 2]];
+                    pc += 3;
+                }
+                case IADD -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]] + ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case ISUB -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]] - ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case IMUL -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]] * ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case IDIV -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]] / ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case INEG -> {
+                    ints[code[pc + 1]] = -ints[code[pc + 2]];
+                    pc += 3;
+                }
+                case IADDI -> {
+                    ints[code[pc + 1]] = ints[code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                }
+                case FADD -> {
+                    floats[code[pc + 1]] = floats[code[pc + 2]] + floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case FSUB -> {
+                    floats[code[pc + 1]] = floats[code[pc + 2]] - floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case FMUL -> {
+                    floats[code[pc + 1]] = floats[code[pc + 2]] * floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case FDIV -> {
+                    floats[code[pc + 1]] = floats[code[pc + 2]] / floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case FNEG -> {
+                    floats[code[pc + 1]] = -floats[code[pc + 2]];
+                    pc += 3;
+                }
+                case I2F -> {
+                    floats[code[pc + 1]] = ints[code[pc + 2]];
+                    pc += 3;
+                }
+                case F2I -> {
+                    ints[code[pc + 1]] = (long) floats[code[pc + 2]];
+                    pc += 3;
+                }
+                case FEQ -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] == floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case FNE -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] != floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case FLT -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] < floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case FLE -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] <= floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case FGT -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] > floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case FGE -> {
+                    ints[code[pc + 1]] = floats[code[pc + 2]] >= floats[code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case JMP -> pc = code[pc + 1];
+                case JZ -> pc = ints[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                case JNZ -> pc = ints[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                case JEQ -> pc = ints[code[pc + 1]] == ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case JNE -> pc = ints[code[pc + 1]] != ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case JLT -> pc = ints[code[pc + 1]] < ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case JLE -> pc = ints[code[pc + 1]] <= ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case JGT -> pc = ints[code[pc + 1]] > ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case JGE -> pc = ints[code[pc + 1]] >= ints[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                case NEWIA -> {
+                    intArrays[code[pc + 1]] = new long[code[pc + 2]];
+                    pc += 3;
+                }
+                case NEWFA -> {
+                    floatArrays[code[pc + 1]] = new double[code[pc + 2]];
+                    pc += 3;
+                }
+                case IALOAD -> {
+                    long[] array = intArrays[code[pc + 2]];
+                    ints[code[pc + 1]] = array[(int) Objects.checkIndex(ints[code[pc + 3]], array.length)];
+                    pc += 4;
+                }
+                case IASTORE -> {
+                    long[] array = intArrays[code[pc + 1]];
+                    array[(int) Objects.checkIndex(ints[code[pc + 2]], array.length)] = ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case FALOAD -> {
+                    double[] array = floatArrays[code[pc + 2]];
+                    floats[code[pc + 1]] = array[(int) Objects.checkIndex(ints[code[pc + 3]], array.length)];
+                    pc += 4;
+                }
+                case FASTORE -> {
+                    double[] array = floatArrays[code[pc + 1]];
+                    array[(int) Objects.checkIndex(ints[code[pc + 2]], array.length)] = floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case IALOADU -> {
+                    ints[code[pc + 1]] = intArrays[code[pc + 2]][(int) ints[code[pc + 3]]];
+                    pc += 4;
+                }
+                case IASTOREU -> {
+                    intArrays[code[pc + 1]][(int) ints[code[pc + 2]]] = ints[code[pc + 3]];
+                    pc += 4;
+                }
+                case FALOADU -> {
+                    floats[code[pc + 1]] = floatArrays[code[pc + 2]][(int) ints[code[pc + 3]]];
+                    pc += 4;
+                }
+                case FASTOREU -> {
+                    floatArrays[code[pc + 1]][(int) ints[code[pc + 2]]] = floats[code[pc + 3]];
+                    pc += 4;
+                }
+                case CALL -> {
+                    if (returnDepth == returnStack.length) {
+                        returnStack = Arrays.copyOf(returnStack, returnDepth * 2);
+                    }
+                    returnStack[returnDepth++] = pc + 2;
+                    pc = code[pc + 1];
+                }
+                case RET -> pc = returnStack[--returnDepth];
+                case ANULL -> {
+                    intArrays[code[pc + 1]] = null;
+                    pc += 2;
+                }
+                case BNULL -> {
+                    floatArrays[code[pc + 1]] = null;
+                    pc += 2;
+                }
+                case HALT -> {
+                    return globals(ints, floats, intArrays, floatArrays);
+                }
+                default -> throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    private Map<String, Object> globals(long[] ints, double[] floats, long[][] intArrays, double[][] floatArrays) {
+        Map<String, Object> globals = new LinkedHashMap<>();
+        for (VmProgram.Global global : program.globals) {
+            int register = global.register();
+            Object value = switch (global.type()) {
+                case INT -> ints[register];
+                case FLOAT -> floats[register];
+                case INT_ARRAY -> intArrays[register];
+                case FLOAT_ARRAY -> floatArrays[register];
+            };
+            globals.put(global.name(), value);
+        }
+        return globals;
+    }
+}
@@ -0,0 +1,704 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks run by {@code --selftest}. Regression cases pin the output of
+ * programs the compiler once got wrong. Differential checks generate
+ * programs and require the ways of compiling them to agree: plain and
+ * optimized on both backends, an {@link IncrementalDocument} edited at
+ * random and a full parse of the same text, and a compiled entry and the
+ * {@link SyntaxImage} written from it. Every failure is printed, and the
+ * run fails if there is any.
+ */
+public final class SelfTest {
+    private static final long SEED = 42;
+    private static final int PROGRAMS = 100;
+    private static final int EDITS = 40;
+    private static final int GENERATED_BYTES = 4096;
+
+    // Inserted by the random edits; most of them break the program for a while
+    private static final String[] SNIPPETS = {
+            "x", "1", "2.5", " ", "\n", ";", "{", "}", "g = g + 1;", "var n int = 3;", "g++;",
+            "if g == 2 { g = g + 1; }", "+", "*", "(", ")", "else { g = 1; }", "\"s\"", "==", "=", "[", "]", "0"
+    };
+
+    // Build modes, each compared with the plain JVM run
+    private static final String[] MODES = {"run", "run optimized", "interpret", "interpret optimized"};
+
+    private final Path directory;
+    private final BuildDriver[] drivers = new BuildDriver[MODES.length];
+    private final List<String> failures = new ArrayList<>();
+    private int checks;
+
+    private SelfTest(Path directory) {
+        this.directory = directory;
+        for (int mode = 0; mode < MODES.length; mode++) {
+            boolean interpret = mode >= 2;
+            drivers[mode] = new BuildDriver(new CompileOptions(false, false, mode % 2 == 1, !interpret, interpret,
+                    null), 1, null, CompilerMetrics.DISABLED);
+        }
+    }
+
+    /** Runs every check and returns whether all of them passed. */
+    public static boolean run() throws IOException {
+        Path directory = Files.createTempDirectory("selftest");
+        try {
+            SelfTest test = new SelfTest(directory);
+            test.regressions();
+            test.differential();
+            for (String failure : test.failures) {
+                System.out.println("FAILED " + failure);
+            }
+            System.out.println(test.checks + " checks, " + test.failures.size() + " failed");
+            return test.failures.isEmpty();
+        } finally {
+            try (Stream<Path> walk = Files.walk(directory)) {
+                for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private void regressions() throws IOException {
+        // Constant folding compares floats as the backends do
+        program("float comparisons", """
+                var x int = 0.0 == -0.0;
+                var y int = -0.0 < 0.0;
+                var z int = 0.0 / 0.0 != 0.0 / 0.0;
+                var w int = 0.0 / 0.0 >= 1.0;
+                """, """
+                Parsing completed successfully!
+                x = 1
+                y = 0
+                z = 1
+                w = 0""");
+        program("array length out of range", """
+                var a = [99999999999]int{}
+                var b int = 1;
+                """, """
+                Parsing failed: 1 error
+                  1:10: Array length 99999999999 is out of range.""");
+        program("declaration with a broken initializer", """
+                func main() {
+                    var x int = ;
+                    x = 3;
+                }
+                """, """
+                Parsing failed: 1 error
+                  2:17: Unexpected token: SEMICOLON""");
+
+        // Names end with their block
+        program("block local used after its block", """
+                var x int = 0;
+                func main() {
+                    if x == 0 {
+                        var k int = 7;
+                    }
+                    x = k;
+                }
+                """, """
+                Parsing failed: 1 error
+                  6:9: Variable k is not declared.""");
+        program("loop variable used after its loop", """
+                var x int = 0;
+                func main() {
+                    for (var i int = 0;; i < 3; i++) {
+                        x = x + i;
+                    }
+                    x = i;
+                }
+                """, """
+                Parsing failed: 1 error
+                  6:9: Variable i is not declared.""");
+        program("global initialized from a local", """
+                func main() {
+                    var z int = 3;
+                }
+                var y int = z;
+                """, """
+                Parsing failed: 1 error
+                  4:13: Variable z is not declared.""");
+        program("loop header declarations through loop transforms", """
+                var s int = 0;
+                func main() {
+                  for (var i int = 0;; i < 3; i++) {
+                    s = s + i;
+                  }
+                  for (var i int = 0;; i < 3; i++) {
+                    s = s + i * 2;
+                  }
+                  if true {
+                    var k int = 1;
+                    s = s + k;
+                  }
+                  var k int = 5;
+                  var n int = 0;
+                  n = 50;
+                  for (var j int = 0;; j < n; j++) {
+                    s = s + j * 3 + k;
+                  }
+                  for (var j int = 0;; j < n; j++) {
+                    s = s + j * 4;
+                  }
+                }
+                """, """
+                Parsing completed successfully!
+                s = 8835""");
+
+        // Every declaration is a variable of its own
+        program("loop counter reused by another function", """
+                var s int = 0;
+                func f() {
+                    for (var i int = 0;; i < 3; i++) {
+                        s = s + i;
+                    }
+                }
+                func main() {
+                    for (var i int = 0;; i < 3; i++) {
+                        s = s + i * 10;
+                    }
+                }
+                """, """
+                Parsing completed successfully!
+                s = 30""");
+        program("name reused with another type by another function", """
+                var s float = 0.0;
+                func f() {
+                    var k int = 7;
+                    s = s + k / 2;
+                }
+                func main() {
+                    var k float = 0.5;
+                    s = s + k;
+                }
+                """, """
+                Parsing completed successfully!
+                s = 0.5""");
+        program("name redeclared with another type after its block", """
+                var s float = 0.0;
+                func main() {
+                    if s == 0.0 {
+                        var k int = 7;
+                        s = k / 2;
+                    }
+                    var k float = 0.25;
+                    s = s + k;
+                }
+                """, """
+                Parsing completed successfully!
+                s = 3.25""");
+        program("array with too few initializers", """
+                var numbers = [3]int{1, 2}
+                """, """
+                Parsing failed: 1 error
+                  1:5: Array numbers has length 3 but 2 initializers.""");
+        program("index never in bounds", """
+                var a = [3]int{1, 2, 3}
+                var x int = a[5];
+                """, """
+                Parsing failed: 1 error
+                  2:13: Index 5 is out of bounds for array a of length 3.""");
+
+        // Trees deeper than a recursive pass could walk
+        program("long sum", "var x int = " + "1 + ".repeat(20_000) + "1;\n", """
+                Parsing completed successfully!
+                x = 20001""");
+        program("deep parentheses", "var x int = " + "(1 + ".repeat(6000) + "1" + ")".repeat(6000) + ";\n", """
+                Parsing completed successfully!
+                x = 6001""");
+        program("long else-if chain", "var x int = 0;\nfunc main() {\n    if x == 1 { x = 1; }"
+                + " else if x == 1 { x = 2; }".repeat(1000) + " else { x = 3; }\n}\n", """
+                Parsing completed successfully!
+                x = 3""");
+        program("blocks nested to the limit", "var x int = 0;\nfunc main() {\n"
+                + "if x == 0 {\n".repeat(999) + "x = 1;\n" + "}\n".repeat(999) + "}\n", """
+                Parsing completed successfully!
+                x = 1""");
+
+        edit("declaration turned into an array", """
+                func main() {
+                    var a int = 0;
+                    a = 5;
+                }
+                """, "var a int = 0;", "var a = [1]int{0}", "Array a cannot be assigned as a whole.");
+        edit("index moved out of bounds", """
+                var a = [3]int{1, 2, 3}
+                var x int = a[1];
+                """, "a[1]", "a[5]", "Index 5 is out of bounds for array a of length 3.");
+        edit("block nested one level too deep", "var x int = 0;\nfunc main() {\n"
+                + "if x == 0 {\n".repeat(999) + "x = 1;\n" + "}\n".repeat(999) + "}\n",
+                "x = 1;", "if x == 0 { x = 1; }", "Blocks are nested too deeply.");
+        editsBesideErrors();
+
+        images();
+        cachedSources();
+        server();
+    }
+
+    // Runs a program in every mode and compares the output, optimizer report aside
+    private void program(String name, String source, String expected) throws IOException {
+        Path file = directory.resolve("case.txt");
+        Files.writeString(file, source);
+        for (int mode = 0; mode < MODES.length; mode++) {
+            check(output(mode, file).equals(expected), name + " (" + MODES[mode] + ")");
+        }
+    }
+
+    // An error in one function leaves edits in another, and the fix itself, to a partial re-parse
+    private void editsBesideErrors() {
+        String source = """
+                var x int = 0;
+                func f() {
+                    x = x + ;
+                }
+                func main() {
+                    x = 2;
+                }
+                """;
+        IncrementalDocument document = new IncrementalDocument(source);
+        IncrementalDocument.EditResult result = document.edit(source.indexOf("2;"), 1, "3");
+        check(!result.fullParse(), "edit beside an error parsed locally");
+        compareWithFullParse("edit beside an error", document);
+        result = document.edit(document.text().toString().indexOf("+ ;"), 3, "+ 1;");
+        check(!result.fullParse() && document.ast() != null, "fixed error parsed locally");
+        compareWithFullParse("fixed error", document);
+    }
+
+    // Replaces the first occurrence of a text and compares the diagnostics with a full parse's
+    private void edit(String name, String source, String from, String to, String expected) {
+        IncrementalDocument document = new IncrementalDocument(source);
+        document.edit(source.indexOf(from), from.length(), to);
+        List<String> messages = document.diagnostics().stream().map(Diagnostic::message).toList();
+        check(messages.equals(List.of(expected)), name + ": " + messages);
+        compareWithFullParse(name, document);
+    }
+
+    private void images() throws IOException {
+        Path first = directory.resolve("a").resolve("same.txt");
+        Path second = directory.resolve("b").resolve("same.txt");
+        Path images = directory.resolve("images");
+        check(!BuildDriver.imagePath(images, first).equals(BuildDriver.imagePath(images, second)),
+                "images of files with the same name");
+
+        // Written with the permissions any new file gets, not owner-only ones
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(images);
+            Path plain = Files.writeString(images.resolve("plain"), "");
+            ByteBuffer source = ByteBuffer.wrap("var x int = 1;\n".getBytes());
+            Path image = images.resolve("x.syn");
+            SyntaxImage.write(image, source, new CompilationCache(0, null).compile(source));
+            check(Files.getPosixFilePermissions(image).equals(Files.getPosixFilePermissions(plain)),
+                    "syntax image permissions");
+        }
+    }
+
+    // A cache hit must not read the text of the file that was cached first,
+    // which may have changed since
+    private void cachedSources() throws IOException {
+        String text = "var x int = 1;\n".repeat(8000) + "var y int = z;\n";
+        Path first = Files.writeString(directory.resolve("first.txt"), text);
+        Path second = Files.writeString(directory.resolve("second.txt"), text);
+        CompilationCache cache = new CompilationCache(1L << 30, null);
+        cache.compile(SourceFile.readBytes(first));
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        }
+        CompilationCache.Entry entry = cache.compile(SourceFile.readBytes(second));
+        try {
+            check(entry.tokens().sourceCode().toString().equals(text), "cache hit reads its own source");
+        } catch (InternalError e) {
+            check(false, "cache hit reads its own source: " + e);
+        }
+    }
+
+    private void server() throws IOException {
+        CompileOptions options = new CompileOptions(false, false, false, true, false, null);
+
+        // A server that goes away halfway through its reply
+        Path socket = directory.resolve("truncated.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Thread half = new Thread(() -> {
+                try (SocketChannel client = server.accept()) {
+                    // The whole request first, or the client can still be writing when the connection closes
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+                    for (int flag = 0; flag < 5; flag++) {
+                        in.readBoolean();
+                    }
+                    in.readUTF();
+                    in.readUTF();
+                    for (int files = in.readInt(); files > 0; files--) {
+                        in.readUTF();
+                    }
+                    client.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 100, 'x'}));
+                } catch (IOException ignored) {
+                }
+            });
+            half.start();
+            CompileServer.Reply reply = CompileServer.request(socket, options, List.of(Path.of("x.txt")));
+            check(reply != null && reply.failed(), "truncated compile server reply");
+        }
+
+        // A server that hangs up without reading a request too large to buffer
+        Path closing = directory.resolve("closing.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(closing));
+            Thread hangUp = new Thread(() -> {
+                try {
+                    server.accept().close();
+                } catch (IOException ignored) {
+                }
+            });
+            hangUp.start();
+            List<Path> files = new ArrayList<>();
+            for (int i = 0; i < 100_000; i++) {
+                files.add(Path.of("file" + i + ".txt"));
+            }
+            CompileServer.Reply reply = CompileServer.request(closing, options, files);
+            check(reply != null && reply.failed(), "compile server that hangs up on a request");
+        }
+
+        // A request that makes the build throw
+        Path live = directory.resolve("live.sock");
+        Thread serving = new Thread(() -> {
+            try {
+                new CompileServer(live, 1, null).serve();
+            } catch (IOException ignored) {
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        for (int wait = 0; wait < 500 && !Files.exists(live); wait++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(live))) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            for (int flag = 0; flag < 5; flag++) {
+                out.writeBoolean(flag == 3);
+            }
+            out.writeUTF("");
+            out.writeUTF(directory.toString());
+            out.writeInt(1);
+            // No path can hold a NUL character
+            out.writeUTF("bad\0name.txt");
+            out.flush();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            boolean failed = in.readBoolean();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            check(failed && new String(output).startsWith("Build failed:"), "compile server build that throws");
+        }
+    }
+
+    private void differential() throws IOException {
+        Random random = new Random(SEED);
+        for (int i = 0; i < PROGRAMS; i++) {
+            compare("loop program " + i, LoopProgram.generate(SEED + i), random);
+        }
+        for (ProgramGenerator.Shape shape : ProgramGenerator.Shape.values()) {
+            compare(shape.toString(), ProgramGenerator.generate(shape, GENERATED_BYTES, SEED), random);
+        }
+    }
+
+    private void compare(String name, String source, Random random) throws IOException {
+        Path file = directory.resolve("program.txt");
+        Files.writeString(file, source);
+        String expected = output(0, file);
+        for (int mode = 1; mode < MODES.length; mode++) {
+            check(output(mode, file).equals(expected), name + ": " + MODES[mode] + " differs from " + MODES[0]);
+        }
+        compareImage(name, file);
+        resolve(name, source);
+
+        IncrementalDocument document = new IncrementalDocument(source);
+        for (int i = 0; i < EDITS; i++) {
+            int length = document.text().length();
+            int offset = random.nextInt(length + 1);
+            int removed = random.nextInt(4) == 0 ? Math.min(random.nextInt(8), length - offset) : 0;
+            String inserted = random.nextInt(3) == 0 ? "" : SNIPPETS[random.nextInt(SNIPPETS.length)];
+            document.edit(offset, removed, inserted);
+            if (!compareWithFullParse(name + " after edit " + i, document)) {
+                break;
+            }
+        }
+    }
+
+    // The backends bind the names of every program the parser accepts
+    private void resolve(String name, String source) {
+        Parser parser = new Parser(new Lexer(source).tokenize());
+        parser.parse();
+        String error = null;
+        if (!parser.hasErrors()) {
+            try {
+                Bindings.resolve(parser.getAst());
+            } catch (RuntimeException e) {
+                error = e.getMessage();
+            }
+        }
+        check(error == null, name + ": parsed but not bound: " + error);
+    }
+
+    private boolean compareWithFullParse(String name, IncrementalDocument document) {
+        String text = document.text().toString();
+        TokenBuffer tokens = new Lexer(text).tokenize();
+        Parser parser = new Parser(tokens);
+        parser.parse();
+        String expected = parser.hasErrors() ? parser.getDiagnostics().toString() : describe(parser.getAst());
+        String actual = document.ast() == null ? document.diagnostics().toString() : describe(document.ast());
+        return check(describe(tokens).equals(describe(document.tokens())) && actual.equals(expected),
+                name + ": incremental result differs from a full parse");
+    }
+
+    private void compareImage(String name, Path file) throws IOException {
+        ByteBuffer bytes = SourceFile.readBytes(file);
+        CompilationCache.Entry entry = new CompilationCache(0, null).compile(bytes);
+        Path path = directory.resolve("program.syn");
+        SyntaxImage.write(path, bytes, entry);
+        SyntaxImage image = SyntaxImage.open(path);
+        TokenBuffer tokens = entry.tokens();
+        boolean same = image.tokenCount() == tokens.size() && image.nameCount() == tokens.names().size()
+                && image.parsed() == entry.parsed() && image.diagnostics().equals(entry.diagnostics());
+        for (int i = 0; same && i < tokens.size(); i++) {
+            same = image.tokenType(i) == tokens.type(i) && image.tokenStart(i) == tokens.start(i)
+                    && image.tokenLength(i) == tokens.length(i) && image.tokenNameId(i) == tokens.nameId(i);
+        }
+        if (same && entry.parsed()) {
+            Ast ast = entry.ast();
+            same = image.nodeCount() == ast.size() && image.root() == ast.root();
+            for (int node = 0; same && node < ast.size(); node++) {
+                same = image.kind(node) == ast.kind(node) && image.first(node) == ast.first(node)
+                        && image.second(node) == ast.second(node) && image.third(node) == ast.third(node)
+                        && image.next(node) == ast.next(node) && image.position(node) == ast.position(node)
+                        && image.value(node) == ast.value(node);
+            }
+            Ast read = image.toEntry(image.source()).ast();
+            same = same && read.format(read.root()).equals(ast.format(ast.root()));
+        }
+        check(same, name + ": syntax image differs from the compiled entry");
+    }
+
+    private String output(int mode, Path file) {
+        return String.join("\n", drivers[mode].compile(file).output().lines()
+                .filter(line -> !line.startsWith("Folded ") && !line.matches(" {2}\\d+:\\d+: loop .*"))
+                .toList());
+    }
+
+    private boolean check(boolean passed, String description) {
+        checks++;
+        if (!passed) {
+            failures.add(description);
+        }
+        return passed;
+    }
+
+    private static String describe(TokenBuffer tokens) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            out.append(tokens.type(i)).append(' ').append(tokens.start(i)).append(' ').append(tokens.length(i));
+            if (tokens.type(i) == TokenType.IDENTIFIER) {
+                out.append(' ').append(tokens.names().name(tokens.nameId(i)));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    // The formatted tree, then the kind and position of every node, which the format leaves out
+    private static String describe(Ast ast) {
+        StringBuilder out = new StringBuilder(ast.format(ast.root()));
+        positions(ast, ast.root(), out);
+        return out.toString();
+    }
+
+    private static void positions(Ast ast, int node, StringBuilder out) {
+        if (node == Ast.NONE) {
+            return;
+        }
+        out.append(ast.kind(node)).append('@').append(ast.position(node)).append(' ');
+        switch (ast.kind(node)) {
+            case PROGRAM, BLOCK -> {
+                for (int statement = ast.first(node); statement != Ast.NONE; statement = ast.next(statement)) {
+                    positions(ast, statement, out);
+                }
+            }
+            case FUNC, ASSIGN, INDEX -> positions(ast, ast.second(node), out);
+            case ARRAY_ASSIGN -> {
+                positions(ast, ast.second(node), out);
+                positions(ast, ast.third(node), out);
+            }
+            case BINARY -> {
+                positions(ast, ast.first(node), out);
+                positions(ast, ast.second(node), out);
+            }
+            case IF -> {
+                positions(ast, ast.first(node), out);
+                positions(ast, ast.second(node), out);
+                positions(ast, ast.third(node), out);
+            }
+            case FOR -> {
+                positions(ast, ast.first(node), out);
+                positions(ast, ast.second(node), out);
+                positions(ast, (int) ast.value(node), out);
+                positions(ast, ast.third(node), out);
+            }
+            case VAR_DECL -> positions(ast, ast.third(node), out);
+            case UNARY -> positions(ast, ast.first(node), out);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Runnable programs built around counted loops, for the loop transforms:
+     * globals and a main function whose loops count up or down over literal
+     * or variable bounds, with array accesses both provably in bounds and not.
+     */
+    private static final class LoopProgram {
+        private final Random random;
+        private final StringBuilder out = new StringBuilder();
+        private final List<String> ints = new ArrayList<>();
+        private int loops;
+        private int temporaries;
+        private int depth;
+
+        private LoopProgram(long seed) {
+            this.random = new Random(seed);
+        }
+
+        static String generate(long seed) {
+            LoopProgram program = new LoopProgram(seed);
+            return program.program();
+        }
+
+        private String program() {
+            out.append("var g int = ").append(random.nextInt(5)).append(";\n");
+            out.append("var h float = 1.5;\n");
+            out.append("var arr = [32]int{");
+            for (int i = 0; i < 32; i++) {
+                out.append(i == 0 ? "" : ", ").append(random.nextInt(9));
+            }
+            out.append("}\n");
+            ints.add("g");
+            if (random.nextBoolean()) {
+                loop("", false);
+            }
+            out.append("func main() {\n");
+            for (String name : new String[]{"p", "q", "z"}) {
+                out.append("    var ").append(name).append(" int = ").append(random.nextInt(7) - 2).append(";\n");
+                ints.add(name);
+            }
+            out.append("    var w float = 0.5;\n");
+            for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                loop("    ", true);
+            }
+            out.append("}\n");
+            return out.toString();
+        }
+
+        private void loop(String indent, boolean inMain) {
+            depth++;
+            // A counter declared in the header is only visible in its loop, so loops at one depth share its name
+            boolean header = random.nextBoolean();
+            String counter = header ? "i" + depth : "c" + loops++;
+            int low = random.nextInt(4);
+            int high = low + random.nextInt(random.nextBoolean() ? 5 : 14);
+            boolean down = random.nextInt(3) == 0;
+            String bound = random.nextBoolean() || !inMain ? String.valueOf(high) : "p + " + high;
+            String condition = down
+                    ? counter + " > " + (random.nextBoolean() || !inMain ? String.valueOf(low) : "p")
+                    : random.nextBoolean() ? counter + " < " + bound : bound + " >= " + counter;
+            String start = String.valueOf(down ? high : low);
+            String update = counter + (down ? "--" : "++");
+            if (header) {
+                out.append(indent).append("for (var ").append(counter).append(" int = ").append(start).append(";; ");
+            } else {
+                out.append(indent).append("var ").append(counter).append(" int = 0;\n");
+                out.append(indent).append("for (").append(counter).append(" = ").append(start).append("; ");
+            }
+            out.append(condition).append("; ").append(update).append(") {\n");
+            ints.add(counter);
+            String inner = indent + "    ";
+            for (int i = 1 + random.nextInt(4); i > 0; i--) {
+                int kind = random.nextInt(10);
+                if (kind < 4) {
+                    String target = inMain && random.nextBoolean() ? "z" : "g";
+                    out.append(inner).append(target).append(" = ").append(target).append(" + ")
+                            .append(random.nextBoolean() ? expression(0) : counter + " * " + expression(2))
+                            .append(";\n");
+                } else if (kind < 5) {
+                    out.append(inner).append("arr[(").append(counter).append(" * 3 + 1) - ").append(counter)
+                            .append(" * 3] = arr[").append(index()).append("] + ").append(expression(1)).append(";\n");
+                } else if (kind < 6 && inMain) {
+                    out.append(inner).append("h = h + w * ").append(expression(1)).append(";\n");
+                } else if (kind < 7 && depth < 3) {
+                    loop(inner, inMain);
+                } else if (kind < 8) {
+                    out.append(inner).append("if ").append(name()).append(" == ").append(expression(1)).append(" {\n")
+                            .append(inner).append("    g = g + ").append(expression(1)).append(";\n")
+                            .append(inner).append("}\n");
+                } else if (kind < 9 && inMain) {
+                    String temporary = "t" + temporaries++;
+                    out.append(inner).append("var ").append(temporary).append(" int = ").append(expression(0))
+                            .append(";\n");
+                    out.append(inner).append("q = q + ").append(temporary).append(";\n");
+                } else {
+                    out.append(inner).append("g = g + arr[").append(index()).append("] * ")
+                            .append(random.nextBoolean() ? counter + " * 2" : "2 * " + counter).append(";\n");
+                }
+            }
+            out.append(indent).append("}\n");
+            ints.remove(counter);
+            depth--;
+        }
+
+        private String expression(int depth) {
+            return switch (random.nextInt(depth > 2 ? 3 : 9)) {
+                case 0 -> String.valueOf(random.nextInt(10));
+                case 1, 2 -> name();
+                case 3 -> "(" + expression(depth + 1) + " * " + expression(depth + 1) + ")";
+                case 4 -> "(" + expression(depth + 1) + " + " + expression(depth + 1) + ")";
+                case 5 -> "(" + expression(depth + 1) + " - " + expression(depth + 1) + ")";
+                case 6 -> "(" + expression(depth + 1) + " / "
+                        + (random.nextBoolean() ? String.valueOf(1 + random.nextInt(4)) : expression(depth + 1)) + ")";
+                case 7 -> "arr[" + index() + "]";
+                default -> random.nextBoolean()
+                        ? "(" + expression(depth + 1) + " < " + expression(depth + 1) + ")"
+                        : "-" + expression(depth + 1);
+            };
+        }
+
+        // Mostly within the array, sometimes past its end
+        private String index() {
+            return random.nextInt(3) == 0
+                    ? "((" + expression(2) + ") * 0 + " + random.nextInt(40) + ")"
+                    : "(" + name() + " * 0 + " + random.nextInt(32) + ")";
+        }
+
+        private String name() {
+            return ints.get(random.nextInt(ints.size()));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads source files for the lexer without building intermediate strings.
+ * Large files are memory-mapped, small ones are read with a single bulk read.
+ * The bytes are never decoded as a whole: the lexer reads them through a
+ * view indexed by byte offset, and only characters outside ASCII, which the
+ * syntax itself never uses, are decoded where they occur.
+ */
+public final class SourceFile {
+    // Below this size mapping costs more than it saves.
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private SourceFile() {
+    }
+
+    public static CharSequence load(Path path) throws IOException {
+        return decode(readBytes(path));
+    }
+
+    static CharSequence decode(ByteBuffer bytes) {
+        return new Utf8CharSequence(bytes, 0, bytes.limit());
+    }
+
+    static ByteBuffer readBytes(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Source file too large: " + path + " (" + size + " bytes)");
+            }
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Read-only view over UTF-8 bytes, indexed by byte offset, so no copy of
+     * the input is ever made. ASCII bytes read as themselves. A byte of a
+     * multi-byte sequence reads as U+FFFD, which is no letter, digit or
+     * operator, so code that only cares about ASCII can use charAt as is;
+     * {@link #codePointAt} and {@link #sequenceLength} decode the rest.
+     * {@link #toString} decodes the whole range.
+     */
+    static final class Utf8CharSequence implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        Utf8CharSequence(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        AsciiScanner scanner() {
+            return new AsciiScanner(bytes, offset, length);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            byte b = bytes.get(offset + index);
+            return b >= 0 ? (char) b : '\uFFFD';
+        }
+
+        /** Bytes in the character at {@code index}; 1 for a byte that starts no well-formed sequence. */
+        int sequenceLength(int index) {
+            return decode(index) >>> 21;
+        }
+
+        /** The code point at {@code index}, or U+FFFD where the bytes are not well-formed UTF-8. */
+        int codePointAt(int index) {
+            return decode(index) & 0x1FFFFF;
+        }
+
+        /** UTF-16 chars in the decoded text of {@code [start, end)}, for columns. */
+        int charCount(int start, int end) {
+            int count = 0;
+            for (int i = start; i < end; i += sequenceLength(i)) {
+                count += codePointAt(i) >= 0x10000 ? 2 : 1;
+            }
+            return count;
+        }
+
+        // The sequence length in the top bits, the code point below
+        private int decode(int index) {
+            int lead = bytes.get(offset + index) & 0xFF;
+            int length;
+            int codePoint;
+            if (lead < 0x80) {
+                return 1 << 21 | lead;
+            } else if (lead >= 0xC2 && lead <= 0xDF) {
+                length = 2;
+                codePoint = lead & 0x1F;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                length = 3;
+                codePoint = lead & 0x0F;
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                length = 4;
+                codePoint = lead & 0x07;
+            } else {
+                return 1 << 21 | 0xFFFD;
+            }
+            if (index + length > this.length) {
+                return 1 << 21 | 0xFFFD;
+            }
+            for (int i = 1; i < length; i++) {
+                int next = bytes.get(offset + index + i) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    return 1 << 21 | 0xFFFD;
+                }
+                codePoint = codePoint << 6 | next & 0x3F;
+            }
+            // Overlong forms, surrogates and code points past U+10FFFF
+            if (length == 3 && (codePoint < 0x800 || codePoint >= 0xD800 && codePoint <= 0xDFFF)
+                    || length == 4 && (codePoint < 0x10000 || codePoint > 0x10FFFF)) {
+                return 1 << 21 | 0xFFFD;
+            }
+            return length << 21 | codePoint;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            return new Utf8CharSequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] copy = new byte[length];
+            bytes.get(offset, copy);
+            return new String(copy, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.Arrays;
+
+/**
+ * Token range of each statement and block in an {@link Ast}, indexed by
+ * node. Ranges are half-open: {@code first} is the statement's first token
+ * and {@code end} the token just after it.
+ */
+final class StatementSpans {
+    private int[] firsts = new int[256];
+    private int[] ends = new int[256];
+
+    void set(int node, int first, int end) {
+        if (node >= firsts.length) {
+            int capacity = Math.max(firsts.length * 2, node + 1);
+            firsts = Arrays.copyOf(firsts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        firsts[node] = first;
+        ends[node] = end;
+    }
+
+    int first(int node) {
+        return firsts[node];
+    }
+
+    int end(int node) {
+        return ends[node];
+    }
+
+    /**
+     * Moves every token index at or after {@code from} by {@code delta} for
+     * nodes below {@code limit}.
+     */
+    void shift(int limit, int from, int delta) {
+        for (int node = 0; node < limit && node < firsts.length; node++) {
+            if (firsts[node] >= from) {
+                firsts[node] += delta;
+            }
+            if (ends[node] >= from) {
+                ends[node] += delta;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+/**
+ * Names declared at the parser's current position, by name ID. Blocks and
+ * for headers open scopes, and closing a scope forgets the names declared
+ * in it. Shadowing is not allowed, so a name is visible at most once and
+ * its type sits in a flat array indexed by name ID. The scopes are a stack of name IDs
+ * with the stack height at which each scope began.
+ */
+final class SymbolTable {
+    private static final byte UNDECLARED = -1;
+    private static final ValueType[] TYPES = ValueType.values();
+
+    private byte[] types = new byte[64];
+    private int[] declared = new int[64];
+    private int declaredCount;
+    private int[] scopeStarts = new int[16];
+    private int depth;
+
+    SymbolTable() {
+        Arrays.fill(types, UNDECLARED);
+    }
+
+    void enterScope() {
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        }
+        scopeStarts[depth++] = declaredCount;
+    }
+
+    void exitScope() {
+        int start = scopeStarts[--depth];
+        while (declaredCount > start) {
+            types[declared[--declaredCount]] = UNDECLARED;
+        }
+    }
+
+    /** Declares the name in the innermost scope; returns false if it is already visible. */
+    boolean declare(int nameId, ValueType type) {
+        if (nameId >= types.length) {
+            int old = types.length;
+            types = Arrays.copyOf(types, Math.max(old * 2, nameId + 1));
+            Arrays.fill(types, old, types.length, UNDECLARED);
+        } else if (types[nameId] != UNDECLARED) {
+            return false;
+        }
+        if (declaredCount == declared.length) {
+            declared = Arrays.copyOf(declared, declaredCount * 2);
+        }
+        declared[declaredCount++] = nameId;
+        types[nameId] = (byte) type.ordinal();
+        return true;
+    }
+
+    /** Number of names visible here. */
+    int size() {
+        return declaredCount;
+    }
+
+    /** The type of a visible name, or null if it is not declared here. */
+    ValueType type(int nameId) {
+        return nameId < types.length && types[nameId] != UNDECLARED ? TYPES[types[nameId]] : null;
+    }
+}
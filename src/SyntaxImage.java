@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tokens and tree of one source, written once to a file that later
+ * runs and other tools map with {@link FileChannel#map} and read in place.
+ * Every reference in the file is an index or an offset from its start, so
+ * the bytes mean the same wherever they are mapped, and the accessors below
+ * read single fields straight from the mapping without building anything.
+ * <p>
+ * All numbers are little-endian. After a header of {@value #HEADER_SIZE}
+ * bytes come these sections, each starting at a multiple of eight bytes:
+ * <ul>
+ * <li>tokens, the columns of a {@link TokenBuffer}: one type byte per
+ *     token, then start, length and name ID ints;
+ * <li>nodes, the columns of an {@link Ast}: one kind byte per node, then
+ *     first, second, third, next and position ints, then value longs;
+ * <li>diagnostics, three ints each: start, length and the string ID of the
+ *     message;
+ * <li>the string table, an (offset, byte length) int pair per string
+ *     followed by the UTF-8 bytes; identifier names are strings 0 to
+ *     {@link #nameCount()} - 1, in name ID order;
+ * <li>the source bytes, which token and node offsets point into.
+ * </ul>
+ * A byte column is padded with zeros to a multiple of eight, so the columns
+ * after it stay aligned. The header records the compiler version besides
+ * the format version, since a newer parser may build a different tree from
+ * the same source.
+ * <p>
+ * Readers map the whole file as one buffer and the header holds int
+ * offsets, so an image is at most {@value #MAX_SIZE} bytes; {@link #write}
+ * refuses a source whose image would be larger.
+ */
+public final class SyntaxImage {
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 72;
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private static final int MAGIC = 0x4E595343;
+
+    // Header fields, by offset
+    private static final int FORMAT_AT = 4;
+    private static final int COMPILER_AT = 8;
+    private static final int ROOT_AT = 12;
+    private static final int HASH_AT = 16;
+    private static final int SOURCE_LENGTH_AT = 24;
+    private static final int TOKEN_COUNT_AT = 28;
+    private static final int NODE_COUNT_AT = 32;
+    private static final int NAME_COUNT_AT = 36;
+    private static final int STRING_COUNT_AT = 40;
+    private static final int DIAGNOSTIC_COUNT_AT = 44;
+    private static final int TOKENS_AT = 48;
+    private static final int NODES_AT = 52;
+    private static final int DIAGNOSTICS_AT = 56;
+    private static final int STRINGS_AT = 60;
+    private static final int SOURCE_AT = 64;
+
+    // Makes the names of images being written unique within this process
+    private static final AtomicLong TEMPORARY_FILES = new AtomicLong();
+
+    private final ByteBuffer image;
+    private final int tokenCount;
+    private final int nodeCount;
+    private final int tokenTypes;
+    private final int tokenStarts;
+    private final int tokenLengths;
+    private final int tokenNames;
+    private final int nodeKinds;
+    private final int nodeFirsts;
+    private final int nodeSeconds;
+    private final int nodeThirds;
+    private final int nodeNexts;
+    private final int nodePositions;
+    private final int nodeValues;
+    private final int strings;
+
+    private SyntaxImage(ByteBuffer image) {
+        this.image = image;
+        tokenCount = image.getInt(TOKEN_COUNT_AT);
+        nodeCount = image.getInt(NODE_COUNT_AT);
+        tokenTypes = image.getInt(TOKENS_AT);
+        tokenStarts = tokenTypes + BinaryArrays.aligned(tokenCount);
+        tokenLengths = tokenStarts + tokenCount * Integer.BYTES;
+        tokenNames = tokenLengths + tokenCount * Integer.BYTES;
+        nodeKinds = image.getInt(NODES_AT);
+        nodeFirsts = nodeKinds + BinaryArrays.aligned(nodeCount);
+        nodeSeconds = nodeFirsts + nodeCount * Integer.BYTES;
+        nodeThirds = nodeSeconds + nodeCount * Integer.BYTES;
+        nodeNexts = nodeThirds + nodeCount * Integer.BYTES;
+        nodePositions = nodeNexts + nodeCount * Integer.BYTES;
+        nodeValues = nodeFirsts + BinaryArrays.aligned(5 * nodeCount * Integer.BYTES);
+        strings = image.getInt(STRINGS_AT);
+    }
+
+    /**
+     * Maps an image file. Fails if the file is not an image, was written by
+     * another format or compiler version, or is cut short.
+     */
+    public static SyntaxImage open(Path file) throws IOException {
+        ByteBuffer image;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > MAX_SIZE) {
+                throw new IOException("Not a syntax image: " + file);
+            }
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (image.getInt(0) != MAGIC) {
+            throw new IOException("Not a syntax image: " + file);
+        }
+        if (image.getInt(FORMAT_AT) != FORMAT_VERSION || image.getInt(COMPILER_AT) != CompilationCache.COMPILER_VERSION) {
+            throw new IOException("Syntax image " + file + " has format " + image.getInt(FORMAT_AT)
+                    + " from compiler version " + image.getInt(COMPILER_AT) + ", expected format "
+                    + FORMAT_VERSION + " from version " + CompilationCache.COMPILER_VERSION);
+        }
+        // Each section must end where the next begins, and the source at the end of the file
+        int tokenCount = image.getInt(TOKEN_COUNT_AT);
+        int nodeCount = image.getInt(NODE_COUNT_AT);
+        int stringCount = image.getInt(STRING_COUNT_AT);
+        int nameCount = image.getInt(NAME_COUNT_AT);
+        long tokens = image.getInt(TOKENS_AT);
+        long nodes = image.getInt(NODES_AT);
+        long diagnostics = image.getInt(DIAGNOSTICS_AT);
+        long strings = image.getInt(STRINGS_AT);
+        long source = image.getInt(SOURCE_AT);
+        int root = image.getInt(ROOT_AT);
+        if (tokenCount < 0 || nodeCount < 0 || nameCount < 0 || stringCount < nameCount
+                || root < Ast.NONE || root >= nodeCount
+                || image.getInt(DIAGNOSTIC_COUNT_AT) < 0 || tokens != HEADER_SIZE
+                || nodes != tokens + tokensSize(tokenCount)
+                || diagnostics != nodes + nodesSize(nodeCount)
+                || strings != diagnostics + diagnosticsSize(image.getInt(DIAGNOSTIC_COUNT_AT))
+                || source < strings + (long) stringCount * 2 * Integer.BYTES
+                || source + image.getInt(SOURCE_LENGTH_AT) != image.limit()) {
+            throw new IOException("Syntax image is damaged: " + file);
+        }
+        return new SyntaxImage(image);
+    }
+
+    /**
+     * Writes the image of a compiled source. The file is written under a
+     * temporary name and moved into place, so readers never see part of one.
+     */
+    public static void write(Path file, ByteBuffer source, CompilationCache.Entry entry) throws IOException {
+        write(file, source, CompilationCache.hash(source), entry);
+    }
+
+    static void write(Path file, ByteBuffer source, long sourceHash, CompilationCache.Entry entry) throws IOException {
+        TokenBuffer tokens = entry.tokens();
+        NameTable names = tokens.names();
+        List<byte[]> strings = new ArrayList<>(names.size() + entry.diagnostics().size());
+        for (int i = 0; i < names.size(); i++) {
+            strings.add(names.name(i).getBytes(StandardCharsets.UTF_8));
+        }
+        for (Diagnostic diagnostic : entry.diagnostics()) {
+            strings.add(diagnostic.message().getBytes(StandardCharsets.UTF_8));
+        }
+        long stringBytes = 0;
+        for (byte[] string : strings) {
+            stringBytes += string.length;
+        }
+
+        int nodeCount = entry.parsed() ? entry.ast().size() : 0;
+        long nodes = HEADER_SIZE + tokensSize(tokens.size());
+        long diagnostics = nodes + nodesSize(nodeCount);
+        long stringTable = diagnostics + diagnosticsSize(entry.diagnostics().size());
+        long sourceAt = BinaryArrays.aligned(stringTable + strings.size() * 2L * Integer.BYTES + stringBytes);
+        if (sourceAt + source.limit() > MAX_SIZE) {
+            throw new IOException("Syntax image of " + (sourceAt + source.limit()) + " bytes is over the limit of "
+                    + MAX_SIZE + ": " + file);
+        }
+
+        // Everything but the source, which goes to the file from its own buffer
+        ByteBuffer out = ByteBuffer.allocate((int) sourceAt).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(FORMAT_VERSION);
+        out.putInt(CompilationCache.COMPILER_VERSION);
+        out.putInt(entry.parsed() ? entry.ast().root() : Ast.NONE);
+        out.putLong(sourceHash);
+        out.putInt(source.limit());
+        out.putInt(tokens.size());
+        out.putInt(nodeCount);
+        out.putInt(names.size());
+        out.putInt(strings.size());
+        out.putInt(entry.diagnostics().size());
+        out.putInt(HEADER_SIZE);
+        out.putInt((int) nodes);
+        out.putInt((int) diagnostics);
+        out.putInt((int) stringTable);
+        out.putInt((int) sourceAt);
+        BinaryArrays.pad(out);
+
+        tokens.write(out);
+        if (entry.parsed()) {
+            entry.ast().write(out);
+        }
+        for (int i = 0; i < entry.diagnostics().size(); i++) {
+            Diagnostic diagnostic = entry.diagnostics().get(i);
+            out.putInt(diagnostic.start());
+            out.putInt(diagnostic.length());
+            out.putInt(names.size() + i);
+        }
+        BinaryArrays.pad(out);
+        int data = (int) stringTable + strings.size() * 2 * Integer.BYTES;
+        for (byte[] string : strings) {
+            out.putInt(data);
+            out.putInt(string.length);
+            data += string.length;
+        }
+        for (byte[] string : strings) {
+            out.put(string);
+        }
+        BinaryArrays.pad(out);
+        ByteBuffer[] parts = {out.flip(), source.duplicate().rewind()};
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        // Not Files.createTempFile, whose owner-only permissions the move would keep
+        Path temporary = directory.resolve(file.getFileName() + "." + ProcessHandle.current().pid() + "-"
+                + TEMPORARY_FILES.incrementAndGet() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                while (parts[0].hasRemaining() || parts[1].hasRemaining()) {
+                    channel.write(parts);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static long tokensSize(int count) {
+        return BinaryArrays.aligned((long) count) + BinaryArrays.aligned(3L * count * Integer.BYTES);
+    }
+
+    private static long nodesSize(int count) {
+        return BinaryArrays.aligned((long) count) + BinaryArrays.aligned(5L * count * Integer.BYTES)
+                + (long) count * Long.BYTES;
+    }
+
+    private static long diagnosticsSize(int count) {
+        return BinaryArrays.aligned(3L * count * Integer.BYTES);
+    }
+
+    /** {@link CompilationCache#hash} of the source bytes. */
+    public long sourceHash() {
+        return image.getLong(HASH_AT);
+    }
+
+    public int sourceLength() {
+        return image.getInt(SOURCE_LENGTH_AT);
+    }
+
+    /** The source, read from the mapping. */
+    public CharSequence source() {
+        return new SourceFile.Utf8CharSequence(image, image.getInt(SOURCE_AT), sourceLength());
+    }
+
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    public TokenType tokenType(int index) {
+        return TokenType.of(image.get(tokenTypes + index));
+    }
+
+    public int tokenStart(int index) {
+        return image.getInt(tokenStarts + index * Integer.BYTES);
+    }
+
+    public int tokenLength(int index) {
+        return image.getInt(tokenLengths + index * Integer.BYTES);
+    }
+
+    public int tokenNameId(int index) {
+        return image.getInt(tokenNames + index * Integer.BYTES);
+    }
+
+    /** Whether the source parsed; if not, there are no nodes and {@link #diagnostics} says why. */
+    public boolean parsed() {
+        return root() != Ast.NONE;
+    }
+
+    public int root() {
+        return image.getInt(ROOT_AT);
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public NodeKind kind(int node) {
+        return NodeKind.of(image.get(nodeKinds + node));
+    }
+
+    public int first(int node) {
+        return image.getInt(nodeFirsts + node * Integer.BYTES);
+    }
+
+    public int second(int node) {
+        return image.getInt(nodeSeconds + node * Integer.BYTES);
+    }
+
+    public int third(int node) {
+        return image.getInt(nodeThirds + node * Integer.BYTES);
+    }
+
+    public int next(int node) {
+        return image.getInt(nodeNexts + node * Integer.BYTES);
+    }
+
+    public int position(int node) {
+        return image.getInt(nodePositions + node * Integer.BYTES);
+    }
+
+    public long value(int node) {
+        return image.getLong(nodeValues + node * Long.BYTES);
+    }
+
+    public int nameCount() {
+        return image.getInt(NAME_COUNT_AT);
+    }
+
+    /** The identifier with this name ID, decoded from the string table. */
+    public String name(int id) {
+        return string(id);
+    }
+
+    public List<Diagnostic> diagnostics() {
+        int at = image.getInt(DIAGNOSTICS_AT);
+        int count = image.getInt(DIAGNOSTIC_COUNT_AT);
+        List<Diagnostic> diagnostics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++, at += 3 * Integer.BYTES) {
+            diagnostics.add(new Diagnostic(image.getInt(at), image.getInt(at + 4), string(image.getInt(at + 8))));
+        }
+        return List.copyOf(diagnostics);
+    }
+
+    private String string(int id) {
+        int entry = strings + id * 2 * Integer.BYTES;
+        byte[] bytes = new byte[image.getInt(entry + Integer.BYTES)];
+        image.get(image.getInt(entry), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the image into heap arrays over {@code sourceCode}, which must be
+     * the source the image was written from; {@link #source()} will do.
+     */
+    public CompilationCache.Entry toEntry(CharSequence sourceCode) {
+        NameTable names = new NameTable();
+        for (int i = 0; i < nameCount(); i++) {
+            names.intern(string(i));
+        }
+        TokenBuffer tokens = TokenBuffer.read(image.duplicate().position(tokenTypes).order(ByteOrder.LITTLE_ENDIAN),
+                tokenCount, sourceCode, names);
+        Ast ast = parsed()
+                ? Ast.read(image.duplicate().position(nodeKinds).order(ByteOrder.LITTLE_ENDIAN),
+                        nodeCount, root(), names, sourceCode)
+                : null;
+        return new CompilationCache.Entry(tokens, ast, diagnostics());
+    }
+}
@@ -1,10 +1,23 @@
 class Token {
     private TokenType type;
     private String value;
+    private int start;
 
     public Token(TokenType type, String value) {
+        this(type, value, -1);
+    }
+
+    public Token(TokenType type, String value, int start) {
         this.type = type;
         this.value = value;
+        this.start = start;
+    }
+
+    static Token of(TokenType type, CharSequence sourceCode, int start, int length) {
+        if (type == TokenType.EOF) {
+            return new Token(type, "EOF", start);
+        }
+        return new Token(type, sourceCode.subSequence(start, start + length).toString(), start);
     }
 
     public TokenType getType() {
@@ -15,6 +28,11 @@ class Token {
         return value;
     }
 
+    /** Offset of the token in the source, or -1 if unknown; see {@link LineMap}. */
+    public int getStart() {
+        return start;
+    }
+
     @Override
     public String toString() {
         return "Token{" +
@@ -22,4 +40,4 @@ class Token {
                 ", value='" + value + '\'' +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packed token stream stored as parallel arrays: one byte for the type
+ * ordinal, two ints for the start offset and length of the token text in
+ * the source, and one int for the interned name of identifiers. A token
+ * costs thirteen bytes and no objects; {@link #token(int)} builds a
+ * {@link Token} view only when one is asked for.
+ */
+public final class TokenBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+    // Measured over the generated programs: about 3.8 characters per token,
+    // and 2.0 in long expressions. A third of the length holds most programs
+    // without growing, and the densest grow once.
+    private static final int CHARACTERS_PER_TOKEN = 3;
+
+    private final CharSequence sourceCode;
+    private final NameTable names;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] nameIds;
+    private int size;
+
+    public TokenBuffer(CharSequence sourceCode, NameTable names) {
+        this(sourceCode, names, capacityFor(sourceCode.length()));
+    }
+
+    /** A capacity for the tokens of {@code characters} characters of source. */
+    static int capacityFor(int characters) {
+        return Math.max(INITIAL_CAPACITY, characters / CHARACTERS_PER_TOKEN);
+    }
+
+    public TokenBuffer(CharSequence sourceCode, NameTable names, int capacity) {
+        this.sourceCode = sourceCode;
+        this.names = names;
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.nameIds = new int[capacity];
+    }
+
+    public void add(TokenType type, int start, int length, int nameId) {
+        if (size == types.length) {
+            grow();
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        nameIds[size] = nameId;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = types.length + (types.length >> 1) + 1;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int index) {
+        return TokenType.of(types[index]);
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    public int nameId(int index) {
+        return nameIds[index];
+    }
+
+    public CharSequence sourceCode() {
+        return sourceCode;
+    }
+
+    /**
+     * The same tokens over another copy of their source text. The columns
+     * are shared, so neither buffer may be changed afterwards.
+     */
+    TokenBuffer withSource(CharSequence sourceCode) {
+        TokenBuffer view = new TokenBuffer(sourceCode, names, 0);
+        view.types = types;
+        view.starts = starts;
+        view.lengths = lengths;
+        view.nameIds = nameIds;
+        view.size = size;
+        return view;
+    }
+
+    public NameTable names() {
+        return names;
+    }
+
+    /**
+     * Replaces tokens {@code from} (inclusive) to {@code to} (exclusive) with
+     * all tokens of {@code replacement}, and moves the start offsets of the
+     * tokens after them by {@code delta}.
+     */
+    public void replace(int from, int to, TokenBuffer replacement, int delta) {
+        int inserted = replacement.size;
+        int newSize = size - (to - from) + inserted;
+        while (newSize > types.length) {
+            grow();
+        }
+        int tail = size - to;
+        System.arraycopy(types, to, types, from + inserted, tail);
+        System.arraycopy(starts, to, starts, from + inserted, tail);
+        System.arraycopy(lengths, to, lengths, from + inserted, tail);
+        System.arraycopy(nameIds, to, nameIds, from + inserted, tail);
+        System.arraycopy(replacement.types, 0, types, from, inserted);
+        System.arraycopy(replacement.starts, 0, starts, from, inserted);
+        System.arraycopy(replacement.lengths, 0, lengths, from, inserted);
+        System.arraycopy(replacement.nameIds, 0, nameIds, from, inserted);
+        size = newSize;
+        for (int i = from + inserted; i < size; i++) {
+            starts[i] += delta;
+        }
+    }
+
+    /**
+     * Appends all tokens of {@code chunk}, which was lexed with a name table
+     * of its own, translating its identifiers' name IDs through
+     * {@code nameMap}.
+     */
+    void append(TokenBuffer chunk, int[] nameMap) {
+        int count = chunk.size;
+        while (size + count > types.length) {
+            grow();
+        }
+        System.arraycopy(chunk.types, 0, types, size, count);
+        System.arraycopy(chunk.starts, 0, starts, size, count);
+        System.arraycopy(chunk.lengths, 0, lengths, size, count);
+        byte identifier = (byte) TokenType.IDENTIFIER.ordinal();
+        for (int i = 0; i < count; i++) {
+            nameIds[size + i] = chunk.types[i] == identifier ? nameMap[chunk.nameIds[i]] : -1;
+        }
+        size += count;
+    }
+
+    /**
+     * Writes the type, start, length and name ID columns, padded to a
+     * multiple of eight bytes, in the layout of {@link SyntaxImage}.
+     */
+    void write(ByteBuffer out) {
+        out.put(types, 0, size);
+        BinaryArrays.pad(out);
+        BinaryArrays.putInts(out, starts, size);
+        BinaryArrays.putInts(out, lengths, size);
+        BinaryArrays.putInts(out, nameIds, size);
+        BinaryArrays.pad(out);
+    }
+
+    /** Reads {@code size} tokens in the form {@link #write} produces. */
+    static TokenBuffer read(ByteBuffer in, int size, CharSequence sourceCode, NameTable names) {
+        int capacity = Math.max(size, 1);
+        TokenBuffer tokens = new TokenBuffer(sourceCode, names, capacity);
+        in.get(tokens.types, 0, size);
+        in.position(in.position() + BinaryArrays.aligned(size) - size);
+        tokens.starts = BinaryArrays.getInts(in, size, capacity);
+        tokens.lengths = BinaryArrays.getInts(in, size, capacity);
+        tokens.nameIds = BinaryArrays.getInts(in, size, capacity);
+        tokens.size = size;
+        return tokens;
+    }
+
+    public String value(int index) {
+        return token(index).getValue();
+    }
+
+    public Token token(int index) {
+        return Token.of(type(index), sourceCode, starts[index], lengths[index]);
+    }
+
+    /**
+     * Replays the buffered tokens in order, continuing with EOF past the end.
+     */
+    public TokenSource reader() {
+        return reader(0);
+    }
+
+    /**
+     * Replays the buffered tokens starting with the one at {@code from}.
+     */
+    public TokenSource reader(int from) {
+        return new TokenSource() {
+            private int index = from - 1;
+
+            @Override
+            public TokenType next() {
+                if (index < size) {
+                    index++;
+                }
+                return index < size ? TokenType.of(types[index]) : TokenType.EOF;
+            }
+
+            @Override
+            public int tokenStart() {
+                return index < size ? starts[index] : sourceCode.length();
+            }
+
+            @Override
+            public int tokenLength() {
+                return index < size ? lengths[index] : 0;
+            }
+
+            @Override
+            public int tokenName() {
+                return index < size ? nameIds[index] : -1;
+            }
+
+            @Override
+            public CharSequence sourceCode() {
+                return sourceCode;
+            }
+
+            @Override
+            public NameTable names() {
+                return names;
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Pull-based supplier of tokens. {@link #next()} advances to the next token
+ * and returns its type; the token's text is described by its start offset
+ * and length in {@link #sourceCode()}, so reading a token allocates nothing.
+ * Implementations keep returning EOF once the input is exhausted, so callers
+ * never have to check for the end of the stream separately.
+ */
+public interface TokenSource {
+    TokenType next();
+
+    int tokenStart();
+
+    int tokenLength();
+
+    /**
+     * Name ID of the current token in {@link #names()}. Only meaningful when
+     * the current token is an IDENTIFIER.
+     */
+    int tokenName();
+
+    CharSequence sourceCode();
+
+    NameTable names();
+
+    /**
+     * Advances and materializes the token as an object. Meant for debugging
+     * output and tools, not for the parsing hot path.
+     */
+    default Token nextToken() {
+        TokenType type = next();
+        return Token.of(type, sourceCode(), tokenStart(), tokenLength());
+    }
+}
@@ -58,5 +58,11 @@ public enum TokenType {
     EOF,
 
     // Custom token
-    NEW
+    NEW;
+
+    private static final TokenType[] VALUES = values();
+
+    public static TokenType of(int ordinal) {
+        return VALUES[ordinal];
+    }
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+/**
+ * Runtime types of variables as seen by the execution backends. INT values
+ * are 64-bit integers and FLOAT values are doubles.
+ */
+public enum ValueType {
+    INT,
+    FLOAT,
+    INT_ARRAY,
+    FLOAT_ARRAY;
+
+    public boolean isArray() {
+        return this == INT_ARRAY || this == FLOAT_ARRAY;
+    }
+
+    public ValueType elementType() {
+        return switch (this) {
+            case INT_ARRAY -> INT;
+            case FLOAT_ARRAY -> FLOAT;
+            default -> this;
+        };
+    }
+}
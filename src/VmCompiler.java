@@ -0,0 +1,634 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles an {@link Ast} into {@link RegisterVm} instructions. Every
+ * literal in the program and every variable gets a fixed register in the
+ * file for its type, and expression temporaries are allocated above them and
+ * released after each statement. Reading a literal or a variable therefore
+ * costs no instruction: its register is used directly as an operand.
+ */
+final class VmCompiler {
+    private final Ast ast;
+    private final Bindings bindings;
+    private final BoundsAnalysis bounds;
+    private final int[] registers;
+
+    private int[] code = new int[256];
+    private int length;
+    private long[] intConstants = new long[16];
+    private int intConstantCount;
+    private double[] floatConstants = new double[16];
+    private int floatConstantCount;
+
+    // Registers below these counts hold the preloaded constants
+    private final int preloadedIntConstants;
+    private final int preloadedFloatConstants;
+
+    private int intVariables;
+    private int floatVariables;
+    private int intArrays;
+    private int floatArrays;
+    private int intTemps;
+    private int floatTemps;
+    private int maxIntTemps;
+    private int maxFloatTemps;
+
+    // Kinds of expression task; see runTasks
+    private static final byte INT = 0;
+    private static final byte FLOAT = 1;
+    private static final byte JUMP = 2;
+    private static final byte INT_RESULT = 3;
+    private static final byte FLOAT_RESULT = 4;
+    private static final byte BOOLEAN_END = 5;
+    private static final byte INT_JUMP = 6;
+    private static final byte FLOAT_JUMP = 7;
+    private static final byte TEST = 8;
+    private static final byte PLACE = 9;
+
+    private byte[] taskKinds = new byte[16];
+    private int[] taskNodes = new int[16];
+    private int[] taskTargets = new int[16];
+    private int[] taskLabels = new int[16];
+    private int[] taskFlags = new int[16];
+    private int taskCount;
+    private int[] results = new int[16];
+    private int resultCount;
+
+    private int[] labelPositions = new int[16];
+    private int labelCount;
+    private int[] fixupSites = new int[16];
+    private int[] fixupLabels = new int[16];
+    private int fixupCount;
+
+    VmCompiler(Ast ast) {
+        this.ast = ast;
+        this.bindings = Bindings.resolve(ast);
+        this.bounds = BoundsAnalysis.analyze(ast);
+        this.registers = new int[bindings.variableCount()];
+
+        intConstant(0);
+        intConstant(1);
+        floatConstant(0);
+        floatConstant(1);
+        floatConstant(-1);
+        for (int node = 0; node < ast.size(); node++) {
+            if (ast.kind(node) == NodeKind.INT_LITERAL || ast.kind(node) == NodeKind.BOOL_LITERAL) {
+                intConstant(ast.value(node));
+            } else if (ast.kind(node) == NodeKind.FLOAT_LITERAL) {
+                floatConstant(ast.floatValue(node));
+            }
+        }
+        this.preloadedIntConstants = intConstantCount;
+        this.preloadedFloatConstants = floatConstantCount;
+        this.intVariables = preloadedIntConstants;
+        this.floatVariables = preloadedFloatConstants;
+    }
+
+    VmProgram compile() {
+        List<VmProgram.Global> globals = new ArrayList<>();
+        for (int global : bindings.globals()) {
+            ValueType type = bindings.type(global);
+            globals.add(new VmProgram.Global(bindings.name(global), type, assignRegister(global, type)));
+        }
+        List<Integer> functions = bindings.functions();
+        int[] functionLabels = new int[functions.size()];
+        for (int i = 0; i < functions.size(); i++) {
+            for (int local : bindings.locals(functions.get(i))) {
+                assignRegister(local, bindings.type(local));
+            }
+            functionLabels[i] = newLabel();
+        }
+
+        compileList(ast.first(ast.root()));
+        int main = bindings.mainFunction();
+        if (main != Ast.NONE) {
+            emit(RegisterVm.CALL);
+            emitLabel(functionLabels[functions.indexOf(main)]);
+        }
+        emit(RegisterVm.HALT);
+
+        for (int i = 0; i < functions.size(); i++) {
+            int function = functions.get(i);
+            place(functionLabels[i]);
+            for (int local : bindings.locals(function)) {
+                emitZero(local);
+            }
+            compileList(ast.first(ast.second(function)));
+            emit(RegisterVm.RET);
+        }
+
+        for (int i = 0; i < fixupCount; i++) {
+            code[fixupSites[i]] = labelPositions[fixupLabels[i]];
+        }
+        return new VmProgram(Arrays.copyOf(code, length),
+                Arrays.copyOf(intConstants, intConstantCount), Arrays.copyOf(floatConstants, floatConstantCount),
+                preloadedIntConstants, preloadedFloatConstants,
+                intVariables + maxIntTemps, floatVariables + maxFloatTemps, intArrays, floatArrays, globals);
+    }
+
+    private int assignRegister(int variable, ValueType type) {
+        int register = switch (type) {
+            case INT -> intVariables++;
+            case FLOAT -> floatVariables++;
+            case INT_ARRAY -> intArrays++;
+            case FLOAT_ARRAY -> floatArrays++;
+        };
+        registers[variable] = register;
+        return register;
+    }
+
+    private void compileList(int node) {
+        for (; node != Ast.NONE; node = ast.next(node)) {
+            int savedIntTemps = intTemps;
+            int savedFloatTemps = floatTemps;
+            compileStatement(node);
+            intTemps = savedIntTemps;
+            floatTemps = savedFloatTemps;
+        }
+    }
+
+    private void compileStatement(int node) {
+        switch (ast.kind(node)) {
+            case BLOCK -> compileList(ast.first(node));
+            case VAR_DECL -> {
+                int variable = bindings.variable(node);
+                if (ast.third(node) == Ast.NONE) {
+                    emitZero(variable);
+                } else {
+                    compileInto(ast.third(node), variable);
+                }
+            }
+            case ARRAY_DECL -> compileArrayDeclaration(node);
+            case ASSIGN -> compileInto(ast.second(node), bindings.variable(node));
+            case ARRAY_ASSIGN -> {
+                int variable = bindings.variable(node);
+                ValueType type = bindings.arrayType(variable);
+                int array = registers[variable];
+                int index = compileInt(ast.second(node), -1);
+                boolean checked = !bounds.inBounds(node);
+                if (type == ValueType.INT_ARRAY) {
+                    emit(checked ? RegisterVm.IASTORE : RegisterVm.IASTOREU, array, index,
+                            compileInt(ast.third(node), -1));
+                } else {
+                    emit(checked ? RegisterVm.FASTORE : RegisterVm.FASTOREU, array, index,
+                            compileFloat(ast.third(node), -1));
+                }
+            }
+            case INCREMENT, DECREMENT -> {
+                int variable = bindings.variable(node);
+                int register = registers[variable];
+                int step = ast.kind(node) == NodeKind.INCREMENT ? 1 : -1;
+                if (bindings.type(variable) == ValueType.INT) {
+                    emit(RegisterVm.IADDI, register, register, step);
+                } else {
+                    emit(RegisterVm.FADD, register, register, floatConstant(step));
+                }
+            }
+            case IF -> {
+                // Else-if chains can be long, so they are followed in a loop
+                int endLabel = newLabel();
+                int branch = node;
+                while (branch != Ast.NONE && ast.kind(branch) == NodeKind.IF) {
+                    int elseLabel = newLabel();
+                    if (ast.first(branch) != Ast.NONE) {
+                        compileJump(ast.first(branch), elseLabel, false);
+                    }
+                    compileStatement(ast.second(branch));
+                    if (ast.third(branch) != Ast.NONE) {
+                        emitJump(endLabel);
+                    }
+                    place(elseLabel);
+                    branch = ast.third(branch);
+                }
+                if (branch != Ast.NONE) {
+                    compileStatement(branch);
+                }
+                place(endLabel);
+            }
+            case FOR -> {
+                // Condition at the bottom, so each iteration takes one branch
+                if (ast.first(node) != Ast.NONE) {
+                    compileStatement(ast.first(node));
+                }
+                int bodyLabel = newLabel();
+                int conditionLabel = newLabel();
+                emitJump(conditionLabel);
+                place(bodyLabel);
+                compileStatement(ast.third(node));
+                if (ast.value(node) != Ast.NONE) {
+                    compileStatement((int) ast.value(node));
+                }
+                place(conditionLabel);
+                compileJump(ast.second(node), bodyLabel, true);
+            }
+            case FUNC -> {
+                // Compiled after the top-level code
+            }
+            default -> throw new RuntimeException(ast.kind(node) + " statements cannot be executed.");
+        }
+    }
+
+    private void compileArrayDeclaration(int node) {
+        int variable = bindings.variable(node);
+        ValueType type = bindings.arrayType(variable);
+        int array = registers[variable];
+        emit(type == ValueType.INT_ARRAY ? RegisterVm.NEWIA : RegisterVm.NEWFA, array, (int) ast.value(node));
+        // The parser makes the elements fill the array exactly, so these stores need no check
+        int index = 0;
+        for (int element = ast.third(node); element != Ast.NONE; element = ast.next(element)) {
+            int indexRegister = newIntTemp();
+            emit(RegisterVm.ICONST, indexRegister, intConstant(index++));
+            if (type == ValueType.INT_ARRAY) {
+                emit(RegisterVm.IASTOREU, array, indexRegister, compileInt(element, -1));
+            } else {
+                emit(RegisterVm.FASTOREU, array, indexRegister, compileFloat(element, -1));
+            }
+        }
+    }
+
+    private void compileInto(int node, int variable) {
+        if (bindings.type(variable) == ValueType.INT) {
+            compileInt(node, registers[variable]);
+        } else {
+            compileFloat(node, registers[variable]);
+        }
+    }
+
+    /**
+     * Evaluates an expression as INT and returns the register holding it.
+     * With {@code target} of -1 a variable read returns the variable's own
+     * register; otherwise the result is written to {@code target}.
+     */
+    private int compileInt(int node, int target) {
+        int base = taskCount;
+        pushTask(INT, node, target, 0, 0);
+        runTasks(base);
+        return results[--resultCount];
+    }
+
+    /** Float counterpart of {@link #compileInt}. */
+    private int compileFloat(int node, int target) {
+        int base = taskCount;
+        pushTask(FLOAT, node, target, 0, 0);
+        runTasks(base);
+        return results[--resultCount];
+    }
+
+    /**
+     * Jumps to {@code label} when the condition's truth equals
+     * {@code jumpIf} and falls through otherwise.
+     */
+    private void compileJump(int node, int label, boolean jumpIf) {
+        int base = taskCount;
+        pushTask(JUMP, node, -1, label, jumpIf ? 1 : 0);
+        runTasks(base);
+    }
+
+    // Expressions can nest deeper than the Java stack allows, so they are
+    // compiled from a stack of tasks: a node to compile, or an instruction
+    // to emit once the operands pushed after it have left their registers
+    // on the result stack. Operands are pushed last-first.
+    private void runTasks(int base) {
+        while (taskCount > base) {
+            taskCount--;
+            int node = taskNodes[taskCount];
+            int target = taskTargets[taskCount];
+            int label = taskLabels[taskCount];
+            boolean jumpIf = taskFlags[taskCount] != 0;
+            switch (taskKinds[taskCount]) {
+                case INT -> compileIntNode(node, target);
+                case FLOAT -> compileFloatNode(node, target);
+                case JUMP -> compileJumpNode(node, label, jumpIf);
+                // For results, label holds the opcode and flag the number of operands on the result stack
+                case INT_RESULT -> emitResult(label, target >= 0 ? target : newIntTemp(), taskFlags[taskCount], node);
+                case FLOAT_RESULT -> emitResult(label, target >= 0 ? target : newFloatTemp(), taskFlags[taskCount],
+                        node);
+                case BOOLEAN_END -> {
+                    // node holds the scratch register
+                    emit(RegisterVm.ICONST, node, intConstant(1));
+                    place(label);
+                    emit(RegisterVm.IMOV, target, node);
+                    pushResult(target);
+                }
+                case INT_JUMP -> {
+                    int right = results[--resultCount];
+                    int left = results[--resultCount];
+                    int intJump = intJumpOpcode(ast.operator(node));
+                    emit(jumpIf ? intJump : negate(intJump), left, right);
+                    emitLabel(label);
+                }
+                case FLOAT_JUMP -> {
+                    int right = results[--resultCount];
+                    int left = results[--resultCount];
+                    int result = newIntTemp();
+                    emit(floatCompareOpcode(ast.operator(node)), result, left, right);
+                    emit(jumpIf ? RegisterVm.JNZ : RegisterVm.JZ, result);
+                    emitLabel(label);
+                }
+                case TEST -> {
+                    int value = results[--resultCount];
+                    if (target >= 0) {
+                        // A float is tested through the int register in target
+                        emit(RegisterVm.FNE, target, value, floatConstant(0));
+                        value = target;
+                    }
+                    emit(jumpIf ? RegisterVm.JNZ : RegisterVm.JZ, value);
+                    emitLabel(label);
+                }
+                default -> place(label);
+            }
+        }
+    }
+
+    // Emits opcode into result from the operands on the result stack; array loads also take node's array
+    private void emitResult(int opcode, int result, int operands, int node) {
+        int right = results[--resultCount];
+        switch (opcode) {
+            case RegisterVm.IALOAD, RegisterVm.IALOADU, RegisterVm.FALOAD, RegisterVm.FALOADU ->
+                    emit(opcode, result, registers[bindings.variable(node)], right);
+            default -> {
+                if (operands == 2) {
+                    emit(opcode, result, results[--resultCount], right);
+                } else {
+                    emit(opcode, result, right);
+                }
+            }
+        }
+        pushResult(result);
+    }
+
+    private void compileIntNode(int node, int target) {
+        if (bindings.expressionType(node) == ValueType.FLOAT) {
+            pushTask(INT_RESULT, node, target, RegisterVm.F2I, 1);
+            pushTask(FLOAT, node, -1, 0, 0);
+            return;
+        }
+
+        switch (ast.kind(node)) {
+            case NAME -> pushResult(move(RegisterVm.IMOV, registers[bindings.variable(node)], target, true));
+            case INT_LITERAL, BOOL_LITERAL -> pushResult(move(RegisterVm.IMOV, intConstant(ast.value(node)), target,
+                    false));
+            case INDEX -> {
+                pushTask(INT_RESULT, node, target, bounds.inBounds(node) ? RegisterVm.IALOADU : RegisterVm.IALOAD, 1);
+                pushTask(INT, ast.second(node), -1, 0, 0);
+            }
+            case UNARY -> {
+                pushTask(INT_RESULT, node, target, RegisterVm.INEG, 1);
+                pushTask(INT, ast.first(node), -1, 0, 0);
+            }
+            default -> {
+                TokenType operator = ast.operator(node);
+                if (Bindings.isArithmetic(operator)) {
+                    pushTask(INT_RESULT, node, target, intOpcode(operator), 2);
+                    pushTask(INT, ast.second(node), -1, 0, 0);
+                    pushTask(INT, ast.first(node), -1, 0, 0);
+                    return;
+                }
+                // Comparisons and logical operators yield 1 or 0
+                int result = target >= 0 ? target : newIntTemp();
+                int scratch = newIntTemp();
+                int endLabel = newLabel();
+                emit(RegisterVm.ICONST, scratch, intConstant(0));
+                pushTask(BOOLEAN_END, scratch, result, endLabel, 0);
+                pushTask(JUMP, node, -1, endLabel, 0);
+            }
+        }
+    }
+
+    private void compileFloatNode(int node, int target) {
+        if (bindings.expressionType(node) == ValueType.INT) {
+            pushTask(FLOAT_RESULT, node, target, RegisterVm.I2F, 1);
+            pushTask(INT, node, -1, 0, 0);
+            return;
+        }
+
+        switch (ast.kind(node)) {
+            case NAME -> pushResult(move(RegisterVm.FMOV, registers[bindings.variable(node)], target, true));
+            case FLOAT_LITERAL -> pushResult(move(RegisterVm.FMOV, floatConstant(ast.floatValue(node)), target,
+                    false));
+            case INDEX -> {
+                pushTask(FLOAT_RESULT, node, target,
+                        bounds.inBounds(node) ? RegisterVm.FALOADU : RegisterVm.FALOAD, 1);
+                pushTask(INT, ast.second(node), -1, 0, 0);
+            }
+            case UNARY -> {
+                pushTask(FLOAT_RESULT, node, target, RegisterVm.FNEG, 1);
+                pushTask(FLOAT, ast.first(node), -1, 0, 0);
+            }
+            default -> {
+                // Only arithmetic can produce a FLOAT
+                pushTask(FLOAT_RESULT, node, target, floatOpcode(ast.operator(node)), 2);
+                pushTask(FLOAT, ast.second(node), -1, 0, 0);
+                pushTask(FLOAT, ast.first(node), -1, 0, 0);
+            }
+        }
+    }
+
+    // The register holding a variable or constant, moved into target unless target is -1 or already holds it
+    private int move(int opcode, int register, int target, boolean variable) {
+        if (target < 0 || variable && target == register) {
+            return register;
+        }
+        emit(opcode, target, register);
+        return target;
+    }
+
+    private void compileJumpNode(int node, int label, boolean jumpIf) {
+        int flag = jumpIf ? 1 : 0;
+        if (ast.kind(node) == NodeKind.BINARY) {
+            TokenType operator = ast.operator(node);
+            if (operator == TokenType.AND || operator == TokenType.OR) {
+                boolean shortCircuitsOn = operator == TokenType.OR;
+                if (jumpIf == shortCircuitsOn) {
+                    pushTask(JUMP, ast.second(node), -1, label, flag);
+                    pushTask(JUMP, ast.first(node), -1, label, flag);
+                } else {
+                    int skip = newLabel();
+                    pushTask(PLACE, node, -1, skip, 0);
+                    pushTask(JUMP, ast.second(node), -1, label, flag);
+                    pushTask(JUMP, ast.first(node), -1, skip, 1 - flag);
+                }
+                return;
+            }
+            if (intJumpOpcode(operator) >= 0) {
+                ValueType left = bindings.expressionType(ast.first(node));
+                ValueType right = bindings.expressionType(ast.second(node));
+                byte kind = left == ValueType.INT && right == ValueType.INT ? INT : FLOAT;
+                pushTask(kind == INT ? INT_JUMP : FLOAT_JUMP, node, -1, label, flag);
+                pushTask(kind, ast.second(node), -1, 0, 0);
+                pushTask(kind, ast.first(node), -1, 0, 0);
+                return;
+            }
+        }
+
+        if (bindings.expressionType(node) == ValueType.FLOAT) {
+            pushTask(TEST, node, newIntTemp(), label, flag);
+            pushTask(FLOAT, node, -1, 0, 0);
+        } else {
+            pushTask(TEST, node, -1, label, flag);
+            pushTask(INT, node, -1, 0, 0);
+        }
+    }
+
+    private void pushTask(byte kind, int node, int target, int label, int flag) {
+        if (taskCount == taskKinds.length) {
+            taskKinds = Arrays.copyOf(taskKinds, taskCount * 2);
+            taskNodes = Arrays.copyOf(taskNodes, taskCount * 2);
+            taskTargets = Arrays.copyOf(taskTargets, taskCount * 2);
+            taskLabels = Arrays.copyOf(taskLabels, taskCount * 2);
+            taskFlags = Arrays.copyOf(taskFlags, taskCount * 2);
+        }
+        taskKinds[taskCount] = kind;
+        taskNodes[taskCount] = node;
+        taskTargets[taskCount] = target;
+        taskLabels[taskCount] = label;
+        taskFlags[taskCount++] = flag;
+    }
+
+    private void pushResult(int register) {
+        if (resultCount == results.length) {
+            results = Arrays.copyOf(results, resultCount * 2);
+        }
+        results[resultCount++] = register;
+    }
+
+    private static int intOpcode(TokenType operator) {
+        return switch (operator) {
+            case PLUS -> RegisterVm.IADD;
+            case MINUS -> RegisterVm.ISUB;
+            case MULTIPLY -> RegisterVm.IMUL;
+            default -> RegisterVm.IDIV;
+        };
+    }
+
+    private static int floatOpcode(TokenType operator) {
+        return switch (operator) {
+            case PLUS -> RegisterVm.FADD;
+            case MINUS -> RegisterVm.FSUB;
+            case MULTIPLY -> RegisterVm.FMUL;
+            default -> RegisterVm.FDIV;
+        };
+    }
+
+    private static int intJumpOpcode(TokenType operator) {
+        return switch (operator) {
+            case EQUAL -> RegisterVm.JEQ;
+            case NOT_EQUAL -> RegisterVm.JNE;
+            case LESS_THAN -> RegisterVm.JLT;
+            case LESS_THAN_OR_EQUAL -> RegisterVm.JLE;
+            case GREATER_THAN -> RegisterVm.JGT;
+            case GREATER_THAN_OR_EQUAL -> RegisterVm.JGE;
+            default -> -1;
+        };
+    }
+
+    private static int floatCompareOpcode(TokenType operator) {
+        return switch (operator) {
+            case EQUAL -> RegisterVm.FEQ;
+            case NOT_EQUAL -> RegisterVm.FNE;
+            case LESS_THAN -> RegisterVm.FLT;
+            case LESS_THAN_OR_EQUAL -> RegisterVm.FLE;
+            case GREATER_THAN -> RegisterVm.FGT;
+            default -> RegisterVm.FGE;
+        };
+    }
+
+    private static int negate(int jump) {
+        return switch (jump) {
+            case RegisterVm.JEQ -> RegisterVm.JNE;
+            case RegisterVm.JNE -> RegisterVm.JEQ;
+            case RegisterVm.JLT -> RegisterVm.JGE;
+            case RegisterVm.JGE -> RegisterVm.JLT;
+            case RegisterVm.JGT -> RegisterVm.JLE;
+            default -> RegisterVm.JGT;
+        };
+    }
+
+    private void emitZero(int variable) {
+        int register = registers[variable];
+        switch (bindings.type(variable)) {
+            case INT -> emit(RegisterVm.ICONST, register, intConstant(0));
+            case FLOAT -> emit(RegisterVm.FCONST, register, floatConstant(0));
+            case INT_ARRAY -> emit(RegisterVm.ANULL, register);
+            case FLOAT_ARRAY -> emit(RegisterVm.BNULL, register);
+        }
+    }
+
+    private int newIntTemp() {
+        int register = intVariables + intTemps++;
+        maxIntTemps = Math.max(maxIntTemps, intTemps);
+        return register;
+    }
+
+    private int newFloatTemp() {
+        int register = floatVariables + floatTemps++;
+        maxFloatTemps = Math.max(maxFloatTemps, floatTemps);
+        return register;
+    }
+
+    private int intConstant(long value) {
+        for (int i = 0; i < intConstantCount; i++) {
+            if (intConstants[i] == value) {
+                return i;
+            }
+        }
+        if (intConstantCount == intConstants.length) {
+            intConstants = Arrays.copyOf(intConstants, intConstantCount * 2);
+        }
+        intConstants[intConstantCount] = value;
+        return intConstantCount++;
+    }
+
+    private int floatConstant(double value) {
+        for (int i = 0; i < floatConstantCount; i++) {
+            if (Double.doubleToRawLongBits(floatConstants[i]) == Double.doubleToRawLongBits(value)) {
+                return i;
+            }
+        }
+        if (floatConstantCount == floatConstants.length) {
+            floatConstants = Arrays.copyOf(floatConstants, floatConstantCount * 2);
+        }
+        floatConstants[floatConstantCount] = value;
+        return floatConstantCount++;
+    }
+
+    private int newLabel() {
+        if (labelCount == labelPositions.length) {
+            labelPositions = Arrays.copyOf(labelPositions, labelCount * 2);
+        }
+        labelPositions[labelCount] = -1;
+        return labelCount++;
+    }
+
+    private void place(int label) {
+        labelPositions[label] = length;
+    }
+
+    private void emitJump(int label) {
+        emit(RegisterVm.JMP);
+        emitLabel(label);
+    }
+
+    // Emits a placeholder operand that is patched with the label's offset.
+    private void emitLabel(int label) {
+        if (fixupCount == fixupSites.length) {
+            fixupSites = Arrays.copyOf(fixupSites, fixupCount * 2);
+            fixupLabels = Arrays.copyOf(fixupLabels, fixupCount * 2);
+        }
+        fixupSites[fixupCount] = length;
+        fixupLabels[fixupCount] = label;
+        fixupCount++;
+        emit(-1);
+    }
+
+    private void emit(int... words) {
+        if (length + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+        }
+        for (int word : words) {
+            code[length++] = word;
+        }
+    }
+}
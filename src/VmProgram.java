@@ -0,0 +1,38 @@
+import java.util.List;
+
+/**
+ * Compiled form of a program for {@link RegisterVm}: the instruction stream,
+ * constant pools, the size of each register file and where every global
+ * variable lives. The first constants of each pool are preloaded into the
+ * lowest registers of the matching file before execution starts.
+ */
+final class VmProgram {
+    final int[] code;
+    final long[] intConstants;
+    final double[] floatConstants;
+    final int preloadedIntConstants;
+    final int preloadedFloatConstants;
+    final int intRegisters;
+    final int floatRegisters;
+    final int intArrayRegisters;
+    final int floatArrayRegisters;
+    final List<Global> globals;
+
+    VmProgram(int[] code, long[] intConstants, double[] floatConstants,
+              int preloadedIntConstants, int preloadedFloatConstants, int intRegisters, int floatRegisters,
+              int intArrayRegisters, int floatArrayRegisters, List<Global> globals) {
+        this.code = code;
+        this.intConstants = intConstants;
+        this.floatConstants = floatConstants;
+        this.preloadedIntConstants = preloadedIntConstants;
+        this.preloadedFloatConstants = preloadedFloatConstants;
+        this.intRegisters = intRegisters;
+        this.floatRegisters = floatRegisters;
+        this.intArrayRegisters = intArrayRegisters;
+        this.floatArrayRegisters = floatArrayRegisters;
+        this.globals = globals;
+    }
+
+    record Global(String name, ValueType type, int register) {
+    }
+}